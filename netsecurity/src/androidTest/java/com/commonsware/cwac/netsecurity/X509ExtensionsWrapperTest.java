@@ -0,0 +1,141 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.netsecurity.config.ApplicationConfig;
+import com.commonsware.cwac.netsecurity.config.RootTrustManager;
+import com.commonsware.cwac.netsecurity.config.XmlConfigSource;
+import com.commonsware.cwac.netsecurity.conscrypt.TrustManagerImpl;
+import com.commonsware.cwac.netsecurity.test.R;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Checks that X509ExtensionsWrapper picks the expected dispatcher for
+ * each kind of trust manager, and that calls through it have the same
+ * outcome as calling the trust manager directly. This lives in the
+ * library's package so it can see which dispatcher was picked.
+ */
+@RunWith(AndroidJUnit4.class)
+public class X509ExtensionsWrapperTest {
+  private static final String HOST="selfsigned.example.com";
+  private X509Certificate[] chain;
+  private String authType;
+  private ApplicationConfig config;
+
+  @Before
+  public void init() throws Exception {
+    InputStream in=InstrumentationRegistry.getContext().getResources()
+      .openRawResource(R.raw.selfsigned);
+
+    try {
+      chain=new X509Certificate[] {(X509Certificate)CertificateFactory
+        .getInstance("X.509").generateCertificate(in)};
+    }
+    finally {
+      in.close();
+    }
+
+    authType=chain[0].getPublicKey().getAlgorithm();
+    config=new ApplicationConfig(
+      new XmlConfigSource(InstrumentationRegistry.getContext(),
+        R.xml.selfsigned, false));
+  }
+
+  @Test
+  public void testRoot() throws Exception {
+    RootTrustManager tm=new RootTrustManager(config);
+    X509ExtensionsWrapper wrapper=new X509ExtensionsWrapper(tm);
+
+    assertDispatcher("RootDispatcher", wrapper);
+    Assert.assertEquals(tm.checkServerTrusted(chain, authType, HOST),
+      wrapper.checkServerTrusted(chain, authType, HOST));
+    Assert.assertFalse(wrapper.isUserAddedCertificate(chain[0]));
+  }
+
+  @Test
+  public void testNetworkSecurity() throws Exception {
+    X509ExtensionsWrapper wrapper=new X509ExtensionsWrapper(
+      config.getConfigForHostname(HOST).getTrustManager());
+
+    assertDispatcher("NetworkSecurityDispatcher", wrapper);
+    Assert.assertEquals(1,
+      wrapper.checkServerTrusted(chain, authType, HOST).size());
+  }
+
+  @Test
+  public void testTrustManagerImpl() throws Exception {
+    KeyStore keyStore=KeyStore.getInstance(KeyStore.getDefaultType());
+
+    keyStore.load(null, null);
+    keyStore.setCertificateEntry("selfsigned", chain[0]);
+
+    X509ExtensionsWrapper wrapper=
+      new X509ExtensionsWrapper(new TrustManagerImpl(keyStore));
+
+    assertDispatcher("TrustManagerImplDispatcher", wrapper);
+    Assert.assertEquals(1,
+      wrapper.checkServerTrusted(chain, authType, HOST).size());
+  }
+
+  @Test
+  public void testPlatform() throws Exception {
+    TrustManagerFactory tmf=TrustManagerFactory
+      .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+
+    tmf.init((KeyStore)null);
+
+    for (TrustManager tm : tmf.getTrustManagers()) {
+      if (tm instanceof X509TrustManager) {
+        X509ExtensionsWrapper wrapper=
+          new X509ExtensionsWrapper((X509TrustManager)tm);
+        String name=tm.getClass().getName();
+
+        // older devices hand out conscrypt's TrustManagerImpl; newer
+        // ones wrap it in the platform's own RootTrustManager, which
+        // only reflection reaches
+        if (name.endsWith(".TrustManagerImpl")) {
+          assertDispatcher("PlatformDispatcher", wrapper);
+        }
+        else {
+          assertDispatcher("ReflectionDispatcher", wrapper);
+        }
+
+        try {
+          wrapper.checkServerTrusted(chain, authType, HOST);
+          Assert.fail("Expected CertificateException for self-signed chain");
+        }
+        catch (CertificateException e) {
+          // expected, the system does not trust it
+        }
+      }
+    }
+  }
+
+  private static void assertDispatcher(String expected,
+                                       X509ExtensionsWrapper wrapper) {
+    Assert.assertEquals(expected,
+      wrapper.dispatcher.getClass().getSimpleName());
+  }
+}
@@ -0,0 +1,108 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.netsecurity.CertificateNotMemorizedException;
+import com.commonsware.cwac.netsecurity.MemorizingTrustManager;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.io.InputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+/**
+ * Fixture shared by the MemorizingTrustManager tests: a chain holding
+ * just the selfsigned test certificate, and a directory of memorized
+ * certificates that starts out empty for each test.
+ */
+@RunWith(AndroidJUnit4.class)
+abstract public class AbstractMemorizationTest {
+  abstract protected String getDirectoryName();
+  protected File memoDir;
+  protected X509Certificate[] chain;
+  protected String authType;
+
+  @Before
+  public void initMemorization() throws Exception {
+    memoDir=new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+      getDirectoryName());
+    chain=new X509Certificate[] {load(R.raw.selfsigned)};
+    authType=chain[0].getPublicKey().getAlgorithm();
+    delete(memoDir);
+  }
+
+  /**
+   * @return a builder saving to memoDir, without trust on first use
+   */
+  protected MemorizingTrustManager.Builder builder() {
+    return(new MemorizingTrustManager.Builder()
+      .saveTo(memoDir, "sekrit".toCharArray())
+      .noTOFU());
+  }
+
+  /**
+   * Checks the chain for a host that should have nothing memorized.
+   *
+   * @return the exception, for memorize() or memorizeForNow()
+   */
+  protected CertificateNotMemorizedException miss(MemorizingTrustManager memo,
+                                                  String host)
+    throws Exception {
+    try {
+      memo.checkServerTrusted(chain, authType, host);
+    }
+    catch (CertificateNotMemorizedException e) {
+      return(e);
+    }
+
+    Assert.fail("Expected CertificateNotMemorizedException for "+host);
+
+    return(null);
+  }
+
+  protected static X509Certificate load(int rawId) throws Exception {
+    InputStream in=
+      InstrumentationRegistry.getContext().getResources().openRawResource(rawId);
+
+    try {
+      return((X509Certificate)CertificateFactory.getInstance("X.509")
+        .generateCertificate(in));
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  protected static String host(int i) {
+    return("host"+i+".example.com");
+  }
+
+  protected static void delete(File f) {
+    if (f.exists()) {
+      if (f.isDirectory()) {
+        File[] children=f.listFiles();
+
+        if (children!=null) {
+          for (File child : children) {
+            delete(child);
+          }
+        }
+      }
+
+      f.delete();
+    }
+  }
+}
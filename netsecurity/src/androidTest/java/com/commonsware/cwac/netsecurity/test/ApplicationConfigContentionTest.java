@@ -0,0 +1,106 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.netsecurity.config.ApplicationConfig;
+import com.commonsware.cwac.netsecurity.config.XmlConfigSource;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark of ApplicationConfig lookups from many threads at once,
+ * as happens when lots of connections are being set up. Each pass
+ * runs the same number of lookups per thread with a different number
+ * of threads and logs the resulting throughput, which should scale
+ * with the thread count (up to the number of cores) as reads do not
+ * take a lock once the config is initialized.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ApplicationConfigContentionTest {
+  private static final String TAG="ApplicationConfigContention";
+  private static final int LOOKUPS_PER_THREAD=200000;
+  private static final int[] THREADS={1, 2, 4, 8, 16};
+  private static final String[] HOSTS={
+    "scrap.commonsware.com",
+    "wares.commonsware.com",
+    "commonsware.com",
+    "example.com"
+  };
+
+  @Test
+  public void testThroughput() throws Exception {
+    final ApplicationConfig config=new ApplicationConfig(
+      new XmlConfigSource(InstrumentationRegistry.getContext(),
+        R.xml.okhttp3_selfsigned_noclear_domain, false));
+
+    Assert.assertTrue(config.hasPerDomainConfigs());
+
+    for (int threads : THREADS) {
+      long elapsed=runLookups(config, threads);
+      int lookups=threads*LOOKUPS_PER_THREAD;
+
+      Log.i(TAG, String.format("threads=%d: %d lookups in %d ms (%.0f lookups/ms)",
+        threads, lookups, elapsed, lookups/(float)Math.max(elapsed, 1)));
+    }
+  }
+
+  private long runLookups(final ApplicationConfig config, int threads)
+    throws Exception {
+    final CountDownLatch start=new CountDownLatch(1);
+    final CountDownLatch done=new CountDownLatch(threads);
+    final AtomicInteger cleartextHosts=new AtomicInteger();
+
+    for (int i=0;i<threads;i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+
+            for (int j=0;j<LOOKUPS_PER_THREAD;j++) {
+              String host=HOSTS[j % HOSTS.length];
+
+              config.getConfigForHostname(host);
+              config.getTrustManager();
+
+              if (config.isCleartextTrafficPermitted(host)) {
+                cleartextHosts.incrementAndGet();
+              }
+            }
+          }
+          catch (InterruptedException e) {
+            // just finish early
+          }
+          finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+
+    long startTime=SystemClock.elapsedRealtime();
+
+    start.countDown();
+    Assert.assertTrue("Lookups timed out", done.await(2, TimeUnit.MINUTES));
+    Assert.assertEquals(threads*LOOKUPS_PER_THREAD*3/4, cleartextHosts.get());
+
+    return(SystemClock.elapsedRealtime()-startTime);
+  }
+}
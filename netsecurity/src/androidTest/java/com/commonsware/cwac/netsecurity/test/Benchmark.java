@@ -0,0 +1,97 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Timing loop shared by the single-threaded benchmarks. It runs an
+ * operation to warm it up, then times the same number of calls and
+ * logs the cost per call.
+ *
+ * On API Level 23+, it also logs the bytes allocated per call, from the
+ * runtime's process-wide allocation counter. Other threads count
+ * towards that too, so treat it as a rough guide, not something to
+ * assert on.
+ */
+final class Benchmark {
+  private static final String BYTES_ALLOCATED="art.gc.bytes-allocated";
+
+  interface Operation {
+    /**
+     * @param i index of this call, for picking inputs
+     * @return some result of the call, so that it is not optimized away
+     */
+    boolean run(int i) throws Exception;
+  }
+
+  /**
+   * @return nanoseconds per call
+   */
+  static long measure(String tag, String label, int calls,
+                      Operation operation) throws Exception {
+    int trues=0;
+
+    for (int i=0;i<calls;i++) {
+      if (operation.run(i)) {
+        trues++;
+      }
+    }
+
+    long bytesBefore=bytesAllocated();
+    long start=SystemClock.elapsedRealtimeNanos();
+
+    for (int i=0;i<calls;i++) {
+      if (operation.run(i)) {
+        trues++;
+      }
+    }
+
+    long nanosPerCall=(SystemClock.elapsedRealtimeNanos()-start)/calls;
+    long bytesAfter=bytesAllocated();
+
+    if (bytesBefore<0 || bytesAfter<0) {
+      Log.i(tag, String.format("%s: %d ns/call (%d true)",
+        label, nanosPerCall, trues));
+    }
+    else {
+      Log.i(tag, String.format("%s: %d ns/call, ~%.1f bytes/call (%d true)",
+        label, nanosPerCall, (double)(bytesAfter-bytesBefore)/calls, trues));
+    }
+
+    return(nanosPerCall);
+  }
+
+  /**
+   * @return bytes allocated by this process so far, or -1 if the
+   * runtime does not say
+   */
+  private static long bytesAllocated() {
+    if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.M) {
+      String stat=Debug.getRuntimeStat(BYTES_ALLOCATED);
+
+      if (stat!=null) {
+        try {
+          return(Long.parseLong(stat));
+        }
+        catch (NumberFormatException e) {
+          // fall through
+        }
+      }
+    }
+
+    return(-1);
+  }
+}
@@ -0,0 +1,107 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.netsecurity.config.CompiledConfigCache;
+import com.commonsware.cwac.netsecurity.config.NetworkSecurityConfig;
+import com.commonsware.cwac.netsecurity.config.XmlConfigSource;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+
+/**
+ * Checks that configurations loaded from the CompiledConfigCache match
+ * those parsed from XML, and logs how long each takes to load for a
+ * small and a large configuration. Each load uses a fresh
+ * XmlConfigSource, as happens on a cold start.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CompiledConfigTest {
+  private static final String TAG="CompiledConfigTest";
+  private static final int PASSES=10;
+  private Context ctxt;
+  private File cacheDir;
+
+  @Before
+  public void setUp() {
+    ctxt=InstrumentationRegistry.getContext();
+    cacheDir=new File(ctxt.getCacheDir(), "compiled-config-test");
+
+    File[] files=cacheDir.listFiles();
+
+    if (files!=null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testSmallConfig() {
+    compare("small", R.xml.okhttp3_valid_pin);
+  }
+
+  @Test
+  public void testLargeConfig() {
+    compare("large", R.xml.large_config);
+  }
+
+  private void compare(String label, int resourceId) {
+    XmlConfigSource xml=load(resourceId, null);
+    XmlConfigSource first=load(resourceId, new CompiledConfigCache(cacheDir));
+    XmlConfigSource compiled=load(resourceId, new CompiledConfigCache(cacheDir));
+
+    Assert.assertFalse(first.getLoadTimings().compiledCacheHit);
+    Assert.assertTrue(compiled.getLoadTimings().compiledCacheHit);
+    Assert.assertEquals(xml.getPerDomainConfigs().size(),
+      compiled.getPerDomainConfigs().size());
+    assertSameConfig(xml.getDefaultConfig(), compiled.getDefaultConfig());
+
+    long xmlNanos=0;
+    long compiledNanos=0;
+
+    for (int i=0;i<PASSES;i++) {
+      xmlNanos+=load(resourceId, null).getLoadTimings().mainParseNanos;
+      compiledNanos+=load(resourceId, new CompiledConfigCache(cacheDir))
+        .getLoadTimings().mainParseNanos;
+    }
+
+    Log.i(TAG, String.format("%s: XML %.2f ms, compiled %.2f ms", label,
+      xmlNanos/1e6/PASSES, compiledNanos/1e6/PASSES));
+  }
+
+  private XmlConfigSource load(int resourceId, CompiledConfigCache cache) {
+    XmlConfigSource result=new XmlConfigSource(ctxt, resourceId, false,
+      Build.VERSION_CODES.CUR_DEVELOPMENT, false, cache);
+
+    result.getDefaultConfig();
+
+    return(result);
+  }
+
+  private void assertSameConfig(NetworkSecurityConfig expected,
+                                NetworkSecurityConfig actual) {
+    Assert.assertEquals(expected.isCleartextTrafficPermitted(),
+      actual.isCleartextTrafficPermitted());
+    Assert.assertEquals(expected.isHstsEnforced(), actual.isHstsEnforced());
+    Assert.assertEquals(expected.getPins().expirationTime,
+      actual.getPins().expirationTime);
+    Assert.assertEquals(expected.getPins().pins, actual.getPins().pins);
+  }
+}
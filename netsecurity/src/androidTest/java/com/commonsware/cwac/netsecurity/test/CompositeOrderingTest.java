@@ -0,0 +1,165 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.netsecurity.CertificateNotMemorizedException;
+import com.commonsware.cwac.netsecurity.CompositeTrustManager;
+import com.commonsware.cwac.netsecurity.MemorizationListener;
+import com.commonsware.cwac.netsecurity.MemorizingTrustManager;
+import com.commonsware.cwac.netsecurity.TrustManagerBuilder;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.io.InputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Adaptive ordering of a default-or-memorize setup, with a fake
+ * trust manager standing in for the system one, so the test does not
+ * depend on the device's CA store.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CompositeOrderingTest {
+  private static final int CHECKS=100;
+  private final File memoDir=
+    new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+      "memo-ordering");
+  private X509Certificate[] trusted;
+  private X509Certificate[] selfSigned;
+
+  @Before
+  public void init() throws Exception {
+    trusted=new X509Certificate[] {load(R.raw.thawte_primary_root)};
+    selfSigned=new X509Certificate[] {load(R.raw.selfsigned)};
+    HURLMemorizationTests.delete(memoDir);
+  }
+
+  @Test
+  public void testDefaultStaysFirst() throws Exception {
+    MemorizingTrustManager memo=new MemorizingTrustManager.Builder()
+      .saveTo(memoDir, "sekrit".toCharArray())
+      .build();
+    final AtomicInteger memorized=new AtomicInteger();
+
+    memo.addMemorizationListener(new MemorizationListener() {
+      @Override
+      public void onMemorized(String host, boolean persistent) {
+        memorized.incrementAndGet();
+      }
+
+      @Override
+      public void onCleared(String host, boolean persistent) {
+        // unused
+      }
+    });
+
+    CompositeTrustManager composite=new TrustManagerBuilder()
+      .add(new FakeSystemTrustManager(trusted[0]))
+      .or()
+      .add(memo)
+      .build();
+
+    composite.setAdaptiveOrdering(true);
+
+    for (int i=0;i<CHECKS;i++) {
+      composite.checkServerTrusted(trusted, authType(trusted),
+        "trusted.example.com");
+    }
+
+    // trust on first use would have memorized the chain, had the
+    // memorizing manager been moved ahead of the default one
+    Assert.assertEquals(0, memorized.get());
+  }
+
+  @Test
+  public void testNotMemorizedException() throws Exception {
+    MemorizingTrustManager memo=new MemorizingTrustManager.Builder()
+      .saveTo(memoDir, "sekrit".toCharArray())
+      .noTOFU()
+      .build();
+    CompositeTrustManager composite=new TrustManagerBuilder()
+      .add(memo)
+      .or()
+      .add(new FakeSystemTrustManager(trusted[0]))
+      .build();
+
+    composite.setAdaptiveOrdering(true);
+
+    for (int i=0;i<CHECKS;i++) {
+      composite.checkServerTrusted(trusted, authType(trusted),
+        "trusted.example.com");
+
+      try {
+        composite.checkServerTrusted(selfSigned, authType(selfSigned),
+          "selfsigned.example.com");
+        Assert.fail("Expected CertificateNotMemorizedException");
+      }
+      catch (CertificateNotMemorizedException e) {
+        // expected, whichever manager failed last
+      }
+    }
+  }
+
+  private static X509Certificate load(int raw) throws Exception {
+    InputStream in=InstrumentationRegistry.getContext().getResources()
+      .openRawResource(raw);
+
+    try {
+      return((X509Certificate)CertificateFactory.getInstance("X.509")
+        .generateCertificate(in));
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private static String authType(X509Certificate[] chain) {
+    return(chain[0].getPublicKey().getAlgorithm());
+  }
+
+  private static class FakeSystemTrustManager implements X509TrustManager {
+    private final X509Certificate trusted;
+
+    FakeSystemTrustManager(X509Certificate trusted) {
+      this.trusted=trusted;
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain,
+                                   String authType)
+      throws CertificateException {
+      throw new CertificateException("not supported");
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain,
+                                   String authType)
+      throws CertificateException {
+      if (!trusted.equals(chain[0])) {
+        throw new CertificateException("Trust anchor not found");
+      }
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return(new X509Certificate[] {trusted});
+    }
+  }
+}
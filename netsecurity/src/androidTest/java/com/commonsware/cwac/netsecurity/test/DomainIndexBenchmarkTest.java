@@ -0,0 +1,113 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import androidx.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.netsecurity.config.Domain;
+import com.commonsware.cwac.netsecurity.config.DomainIndex;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark of per-domain config lookups with 10, 1,000, and 100,000
+ * domains, using DomainIndex and using the scan of every domain that
+ * ApplicationConfig.getConfigForHostname() used to do. Index lookups
+ * should cost about the same at every size, while the scan grows with
+ * the number of domains. See Benchmark for how these are measured.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DomainIndexBenchmarkTest {
+  private static final String TAG="DomainIndexBenchmark";
+  private static final int[] SIZES={10, 1000, 100000};
+  private static final int HOSTS=100;
+  private static final int INDEX_CALLS=100000;
+  private static final int SCAN_CHECKS=10000000;
+
+  @Test
+  public void testLookups() throws Exception {
+    for (int size : SIZES) {
+      final List<Domain> domains=new ArrayList<>(size);
+      final DomainIndex<Domain> index=new DomainIndex<>();
+      final String[] hosts=new String[HOSTS];
+
+      for (int i=0;i<size;i++) {
+        Domain domain=new Domain("host"+i+".example"+(i % 7)+".com",
+          i % 2==0);
+
+        domains.add(domain);
+        index.put(domain, domain);
+      }
+
+      // a mix of exact matches, subdomain matches, and misses
+      for (int i=0;i<HOSTS;i++) {
+        int n=(int)((long)i*size/HOSTS);
+
+        switch (i % 3) {
+          case 0:
+            hosts[i]="host"+n+".example"+(n % 7)+".com";
+            break;
+          case 1:
+            hosts[i]="www.host"+n+".example"+(n % 7)+".com";
+            break;
+          default:
+            hosts[i]="nowhere"+i+".example.org";
+        }
+
+        Assert.assertSame(scan(domains, hosts[i]), index.get(hosts[i]));
+      }
+
+      Benchmark.measure(TAG, "index, "+size+" domains", INDEX_CALLS,
+        new Benchmark.Operation() {
+          @Override
+          public boolean run(int i) {
+            return(index.get(hosts[i % HOSTS])!=null);
+          }
+        });
+      Benchmark.measure(TAG, "scan, "+size+" domains",
+        Math.max(HOSTS, SCAN_CHECKS/size), new Benchmark.Operation() {
+          @Override
+          public boolean run(int i) {
+            return(scan(domains, hosts[i % HOSTS])!=null);
+          }
+        });
+    }
+  }
+
+  /**
+   * The lookup that ApplicationConfig.getConfigForHostname() did before
+   * DomainIndex.
+   */
+  private static Domain scan(List<Domain> domains, String hostname) {
+    Domain bestMatch=null;
+
+    for (Domain domain : domains) {
+      if (domain.hostname.equals(hostname)) {
+        return(domain);
+      }
+
+      if (domain.subdomainsIncluded
+        && hostname.endsWith(domain.hostname)
+        && hostname.length()>domain.hostname.length()
+        && hostname.charAt(hostname.length()-domain.hostname.length()-1)=='.') {
+        if (bestMatch==null ||
+          domain.hostname.length()>bestMatch.hostname.length()) {
+          bestMatch=domain;
+        }
+      }
+    }
+
+    return(bestMatch);
+  }
+}
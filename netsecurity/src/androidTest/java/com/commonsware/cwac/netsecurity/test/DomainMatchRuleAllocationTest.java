@@ -0,0 +1,94 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import androidx.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.netsecurity.DomainMatchRule;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.util.regex.Pattern;
+import static com.commonsware.cwac.netsecurity.DomainMatchRule.allOf;
+import static com.commonsware.cwac.netsecurity.DomainMatchRule.blacklist;
+import static com.commonsware.cwac.netsecurity.DomainMatchRule.cached;
+import static com.commonsware.cwac.netsecurity.DomainMatchRule.is;
+import static com.commonsware.cwac.netsecurity.DomainMatchRule.not;
+import static com.commonsware.cwac.netsecurity.DomainMatchRule.optimize;
+
+/**
+ * Time taken, and roughly how much memory is allocated, per
+ * DomainMatchRule.matches() call, once the rule has warmed up. See
+ * Benchmark for how these are measured.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DomainMatchRuleAllocationTest {
+  private static final String TAG="DomainMatchRuleAlloc";
+  private static final int GLOBS=5000;
+  private static final int HOSTS=200;
+  private static final int CALLS=100000;
+  private final String[] hosts=new String[HOSTS];
+  private String[] globs;
+
+  @Before
+  public void init() {
+    globs=new String[GLOBS];
+
+    for (int i=0;i<GLOBS;i++) {
+      globs[i]=(i % 2==0 ? "*." : "")+"blocked"+i+".example.com";
+    }
+
+    for (int i=0;i<HOSTS;i++) {
+      hosts[i]=(i % 3==0 ? "www.blocked"+(i*7)+".example.com" : "api"+i+".example.org");
+    }
+  }
+
+  @Test
+  public void testGlobs() throws Exception {
+    measure("blacklist", blacklist(globs));
+  }
+
+  @Test
+  public void testOptimized() throws Exception {
+    DomainMatchRule rule=optimize(allOf(blacklist(globs),
+      not(is(Pattern.compile("[a-z]+[0-9]+\\.internal\\..*")))));
+
+    measure("optimized blacklist plus regex", rule);
+  }
+
+  @Test
+  public void testCached() throws Exception {
+    measure("cached blacklist", cached(blacklist(globs), HOSTS*2));
+  }
+
+  @Test
+  public void testMatcherPerCall() throws Exception {
+    // what every is(Pattern) check used to cost, for comparison
+    final Pattern pattern=Pattern.compile("[a-z]+[0-9]+\\.internal\\..*");
+
+    measure("new Matcher per call", new DomainMatchRule() {
+      @Override
+      public boolean matches(String host) {
+        return(pattern.matcher(host).matches());
+      }
+    });
+  }
+
+  private void measure(String label, final DomainMatchRule rule)
+    throws Exception {
+    Benchmark.measure(TAG, label, CALLS, new Benchmark.Operation() {
+      @Override
+      public boolean run(int i) {
+        return(rule.matches(hosts[i % HOSTS]));
+      }
+    });
+  }
+}
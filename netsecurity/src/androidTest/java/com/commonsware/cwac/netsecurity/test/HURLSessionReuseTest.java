@@ -0,0 +1,85 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.netsecurity.BuildConfig;
+import com.commonsware.cwac.netsecurity.CertChainListener;
+import com.commonsware.cwac.netsecurity.TrustManagerBuilder;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark of TLS session reuse with HttpURLConnection. Every request
+ * asks the server to close the connection, so each one needs a fresh
+ * TLS handshake. The CertChainListener is only called for full
+ * handshakes, not resumed ones, so it counts how many full handshakes
+ * were performed. Since applyTo() reuses one SSLSocketFactory, sessions
+ * should be resumed after the first request.
+ *
+ * Like the tests in the priv package, this uses the private test
+ * server, with its self-signed certificate.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HURLSessionReuseTest {
+  private static final String TAG="HURLSessionReuseTest";
+  private static final int REQUEST_COUNT=10;
+
+  @Test
+  public void testSessionReuse() throws Exception {
+    final AtomicInteger fullHandshakes=new AtomicInteger();
+    TrustManagerBuilder builder=new TrustManagerBuilder()
+      .withConfig(InstrumentationRegistry.getContext(), R.xml.selfsigned,
+        true)
+      .withCertChainListener(new CertChainListener() {
+        @Override
+        public void onChain(X509Certificate[] chain, String domain) {
+          fullHandshakes.incrementAndGet();
+        }
+      });
+    long start=SystemClock.elapsedRealtime();
+
+    for (int i=0;i<REQUEST_COUNT;i++) {
+      HttpURLConnection c=
+        (HttpURLConnection)new URL(BuildConfig.TEST_PRIVATE_HTTPS_URL).openConnection();
+
+      c.setRequestProperty("Connection", "close");
+      builder.applyTo(c);
+
+      InputStream in=c.getInputStream();
+
+      try {
+        AbstractHURLTest.slurp(in);
+      }
+      finally {
+        in.close();
+        c.disconnect();
+      }
+    }
+
+    long elapsed=SystemClock.elapsedRealtime()-start;
+
+    Log.i(TAG, String.format("%d requests, %d full handshakes, %d ms/request",
+      REQUEST_COUNT, fullHandshakes.get(), elapsed/REQUEST_COUNT));
+    Assert.assertTrue("Expected session resumption",
+      fullHandshakes.get()<REQUEST_COUNT);
+  }
+}
@@ -0,0 +1,130 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.commonsware.cwac.netsecurity.CertificateNotMemorizedException;
+import com.commonsware.cwac.netsecurity.MemorizationArchive;
+import com.commonsware.cwac.netsecurity.MemorizingTrustManager;
+import junit.framework.Assert;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Bulk import and export of memorized certificates for 10,000 hosts,
+ * compared with memorizing hosts one at a time. Throughput is logged
+ * in hosts/second under the MemorizationBulk tag, not asserted, as it
+ * depends on the device's storage; run this on the device you care
+ * about to get numbers.
+ */
+public class MemorizationBulkTest extends AbstractMemorizationTest {
+  private static final String TAG="MemorizationBulk";
+  private static final int HOSTS=10000;
+  private static final int ONE_AT_A_TIME_HOSTS=500;
+  private static final int BATCH_SIZE=1000;
+
+  @Override
+  protected String getDirectoryName() {
+    return("memo-bulk");
+  }
+
+  @Test
+  public void testImportExport() throws Exception {
+    MemorizingTrustManager memo=builder().build();
+    long start=SystemClock.elapsedRealtime();
+
+    Assert.assertEquals(HOSTS, memo.importFrom(entries(), BATCH_SIZE));
+    log("imported from iterator", HOSTS, start);
+
+    ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+
+    start=SystemClock.elapsedRealtime();
+    Assert.assertEquals(HOSTS, memo.exportTo(bytes));
+    log("exported", HOSTS, start);
+
+    delete(memoDir);
+    memo=builder().build();
+    start=SystemClock.elapsedRealtime();
+    Assert.assertEquals(HOSTS, memo.importFrom(
+      new ByteArrayInputStream(bytes.toByteArray()), BATCH_SIZE));
+    log("imported from stream", HOSTS, start);
+
+    memo=builder().build();
+
+    for (int i=0;i<HOSTS;i+=HOSTS/100) {
+      memo.checkServerTrusted(chain, authType, host(i));
+    }
+
+    try {
+      memo.checkServerTrusted(chain, authType, host(HOSTS));
+      Assert.fail("Expected CertificateNotMemorizedException");
+    }
+    catch (CertificateNotMemorizedException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testOneAtATime() throws Exception {
+    MemorizingTrustManager memo=new MemorizingTrustManager.Builder()
+      .saveTo(memoDir, "sekrit".toCharArray())
+      .build();
+    long start=SystemClock.elapsedRealtime();
+
+    for (int i=0;i<ONE_AT_A_TIME_HOSTS;i++) {
+      memo.checkServerTrusted(chain, authType, host(i));
+    }
+
+    log("memorized one at a time", ONE_AT_A_TIME_HOSTS, start);
+  }
+
+  private Iterator<MemorizationArchive.Entry> entries() {
+    final List<X509Certificate> certs=Collections.singletonList(chain[0]);
+
+    return(new Iterator<MemorizationArchive.Entry>() {
+      private int i=0;
+
+      @Override
+      public boolean hasNext() {
+        return(i<HOSTS);
+      }
+
+      @Override
+      public MemorizationArchive.Entry next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+
+        return(new MemorizationArchive.Entry(host(i++), certs));
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    });
+  }
+
+  private static void log(String what, int hosts, long start) {
+    long elapsed=Math.max(1, SystemClock.elapsedRealtime()-start);
+
+    Log.i(TAG, String.format("%s: %d hosts in %d ms (%d hosts/s)", what,
+      hosts, elapsed, hosts*1000L/elapsed));
+  }
+}
@@ -0,0 +1,110 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import com.commonsware.cwac.netsecurity.CertificateNotMemorizedException;
+import com.commonsware.cwac.netsecurity.MemorizingTrustManager;
+import junit.framework.Assert;
+import org.junit.Test;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Eviction from the store cache, which should not lose memorizeForNow()
+ * certificates.
+ */
+public class MemorizationCacheTest extends AbstractMemorizationTest {
+  @Override
+  protected String getDirectoryName() {
+    return("memo-cache");
+  }
+
+  @Test
+  public void testEvictionByCount() throws Exception {
+    assertTransientsSurvive(builder().cacheSize(1).build());
+  }
+
+  @Test
+  public void testEvictionByBytes() throws Exception {
+    // room for roughly one store
+    assertTransientsSurvive(builder().cacheSizeBytes(4096).build());
+  }
+
+  @Test
+  public void testClearAllEvicted() throws Exception {
+    MemorizingTrustManager memo=builder().cacheSize(1).build();
+
+    for (int i=0;i<3;i++) {
+      memo.memorize(miss(memo, host(i)));
+    }
+
+    // only the last host is still cached; the others are only on disk
+    memo.clearAll(true);
+
+    MemorizingTrustManager fresh=builder().build();
+
+    for (int i=0;i<3;i++) {
+      miss(fresh, host(i));
+    }
+  }
+
+  @Test
+  public void testEvictedTransientsMatchServerCertificate() throws Exception {
+    X509Certificate other=load(R.raw.thawte_primary_root);
+    MemorizingTrustManager memo=builder().cacheSize(1).build();
+    X509Certificate[] longChain=new X509Certificate[] {chain[0], other};
+
+    try {
+      memo.checkServerTrusted(longChain, authType, host(0));
+      Assert.fail("Expected CertificateNotMemorizedException");
+    }
+    catch (CertificateNotMemorizedException e) {
+      memo.memorizeForNow(e);
+    }
+
+    // evicts host(0)'s store, and with it the transient certificates
+    miss(memo, host(1));
+
+    try {
+      memo.checkServerTrusted(new X509Certificate[] {other},
+        other.getPublicKey().getAlgorithm(), host(0));
+      Assert.fail("Accepted a certificate that was not the server's");
+    }
+    catch (CertificateException e) {
+      // expected
+    }
+
+    Assert.assertTrue(memo.getCacheStats().getEvictionCount()>0);
+    memo.checkServerTrusted(chain, authType, host(0));
+  }
+
+  private void assertTransientsSurvive(MemorizingTrustManager memo)
+    throws Exception {
+    for (int i=0;i<3;i++) {
+      memo.memorizeForNow(miss(memo, host(i)));
+    }
+
+    MemorizingTrustManager.CacheStats stats=memo.getCacheStats();
+
+    Assert.assertTrue(stats.getEvictionCount()>0);
+    Assert.assertEquals(3, stats.getTransientHostCount());
+    Assert.assertTrue(stats.getSize()<=stats.getMaxSize());
+
+    for (int i=0;i<3;i++) {
+      memo.checkServerTrusted(chain, authType, host(i));
+    }
+
+    memo.clear(host(0), false);
+    miss(memo, host(0));
+    Assert.assertEquals(2, memo.getCacheStats().getTransientHostCount());
+  }
+}
@@ -0,0 +1,91 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.commonsware.cwac.netsecurity.MemorizationMismatchException;
+import com.commonsware.cwac.netsecurity.MemorizingTrustManager;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Benchmark of MemorizingTrustManager checks of a memorized certificate,
+ * comparing the default TrustManager-based validation with the
+ * fingerprint modes. Each mode also has to reject a certificate that was
+ * not memorized.
+ */
+public class MemorizationFingerprintTest extends AbstractMemorizationTest {
+  private static final String TAG="MemorizationFingerprint";
+  private static final String HOST="selfsigned.example.com";
+  private static final int CHECKS=20000;
+  private X509Certificate[] other;
+
+  @Override
+  protected String getDirectoryName() {
+    return("memo-fingerprint");
+  }
+
+  @Before
+  public void loadOther() throws Exception {
+    other=new X509Certificate[] {load(R.raw.thawte_primary_root)};
+  }
+
+  @Test
+  public void testChecks() throws Exception {
+    long pkix=runChecks("pkix", new MemorizingTrustManager.Builder());
+    long cert=runChecks("certificate",
+      new MemorizingTrustManager.Builder().useFingerprints(false));
+    long spki=runChecks("spki",
+      new MemorizingTrustManager.Builder().useFingerprints(true));
+
+    Log.i(TAG, String.format("speedup: certificate=%.1fx, spki=%.1fx",
+      pkix/(float)Math.max(cert, 1), pkix/(float)Math.max(spki, 1)));
+  }
+
+  private long runChecks(String mode, MemorizingTrustManager.Builder builder)
+    throws Exception {
+    delete(memoDir);
+
+    MemorizingTrustManager memo=builder
+      .saveTo(memoDir, "sekrit".toCharArray())
+      .build();
+
+    // trust on first use
+    memo.checkServerTrusted(chain, authType, HOST);
+
+    long start=SystemClock.elapsedRealtime();
+
+    for (int i=0;i<CHECKS;i++) {
+      memo.checkServerTrusted(chain, authType, HOST);
+    }
+
+    long elapsed=SystemClock.elapsedRealtime()-start;
+
+    Log.i(TAG, String.format("%s: %d checks in %d ms (%.1f checks/ms)",
+      mode, CHECKS, elapsed, CHECKS/(float)Math.max(elapsed, 1)));
+
+    try {
+      memo.checkServerTrusted(other, other[0].getPublicKey().getAlgorithm(),
+        HOST);
+      Assert.fail("Expected a MemorizationMismatchException for "+mode);
+    }
+    catch (CertificateException e) {
+      Assert.assertTrue(e instanceof MemorizationMismatchException);
+    }
+
+    return(elapsed);
+  }
+}
@@ -0,0 +1,63 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.commonsware.cwac.netsecurity.MemorizingTrustManager;
+import org.junit.Test;
+
+/**
+ * Checks of hosts with nothing memorized, under noTOFU(). Repeated misses
+ * should be served from the negative cache, and memorizing a host has to
+ * take it out of that cache.
+ */
+public class MemorizationNegativeCacheTest extends AbstractMemorizationTest {
+  private static final String TAG="MemorizationNegative";
+  private static final String HOST="unknown.example.com";
+  private static final int MISSES=20000;
+
+  @Override
+  protected String getDirectoryName() {
+    return("memo-negative");
+  }
+
+  @Test
+  public void testMemorizeAfterMiss() throws Exception {
+    MemorizingTrustManager memo=builder().build();
+
+    memo.memorizeForNow(miss(memo, HOST));
+    memo.checkServerTrusted(chain, authType, HOST);
+
+    memo.clear(HOST, true);
+    memo.memorize(miss(memo, HOST));
+    memo.checkServerTrusted(chain, authType, HOST);
+
+    memo=builder().build();
+    memo.checkServerTrusted(chain, authType, HOST);
+  }
+
+  @Test
+  public void testMisses() throws Exception {
+    MemorizingTrustManager memo=builder().build();
+    long start=SystemClock.elapsedRealtime();
+
+    for (int i=0;i<MISSES;i++) {
+      miss(memo, "host"+(i % 100)+".example.com");
+    }
+
+    long elapsed=SystemClock.elapsedRealtime()-start;
+
+    Log.i(TAG, String.format("%d misses over 100 hosts in %d ms", MISSES,
+      elapsed));
+  }
+}
@@ -0,0 +1,155 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.commonsware.cwac.netsecurity.KeyStoreMemorizationPersistence;
+import com.commonsware.cwac.netsecurity.MemorizingTrustManager;
+import com.commonsware.cwac.netsecurity.PreloadListener;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import java.security.KeyStore;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark of the first check for each of a set of memorized hosts,
+ * with and without preloading, using one KeyStore file per host (the
+ * costliest layout to load).
+ */
+public class MemorizationPreloadTest extends AbstractMemorizationTest {
+  private static final String TAG="MemorizationPreload";
+  private static final int HOSTS=50;
+
+  @Override
+  protected String getDirectoryName() {
+    return("memo-preload");
+  }
+
+  @Before
+  public void memorizeHosts() throws Exception {
+    memoDir.mkdirs();
+
+    MemorizingTrustManager memo=builder().build();
+
+    for (int i=0;i<HOSTS;i++) {
+      memo.checkServerTrusted(chain, authType, host(i));
+    }
+  }
+
+  @Test
+  public void testPreload() throws Exception {
+    long cold=firstChecks(builder().build());
+    final CountDownLatch done=new CountDownLatch(1);
+    final AtomicInteger preloaded=new AtomicInteger();
+    final AtomicInteger progress=new AtomicInteger();
+    final long[] preloadTime=new long[1];
+    ExecutorService executor=Executors.newFixedThreadPool(4);
+    MemorizingTrustManager memo=builder()
+      .preloadOnBuild(executor, new PreloadListener() {
+        @Override
+        public void onHostPreloaded(String host, int completed, int total) {
+          progress.incrementAndGet();
+        }
+
+        @Override
+        public void onPreloadComplete(int loaded, int total,
+                                      long elapsedMillis) {
+          preloaded.set(loaded);
+          preloadTime[0]=elapsedMillis;
+          done.countDown();
+        }
+      })
+      .build();
+
+    Assert.assertTrue(done.await(1, TimeUnit.MINUTES));
+    executor.shutdown();
+    Assert.assertEquals(HOSTS, preloaded.get());
+    Assert.assertEquals(HOSTS, progress.get());
+
+    long warm=firstChecks(memo);
+
+    Log.i(TAG, String.format("%d hosts: cold first checks %d ms, preload %d ms, preloaded first checks %d ms",
+      HOSTS, cold, preloadTime[0], warm));
+  }
+
+  @Test
+  public void testRejected() throws Exception {
+    final AtomicInteger progress=new AtomicInteger();
+    final int[] result=new int[] {-1, -1};
+    PreloadListener listener=new PreloadListener() {
+      @Override
+      public void onHostPreloaded(String host, int completed, int total) {
+        progress.incrementAndGet();
+      }
+
+      @Override
+      public void onPreloadComplete(int loaded, int total,
+                                    long elapsedMillis) {
+        result[0]=loaded;
+        result[1]=total;
+      }
+    };
+
+    // runs the task that lists the hosts, then rejects the per-host ones
+    Executor listOnly=new Executor() {
+      private boolean listed=false;
+
+      @Override
+      public void execute(Runnable command) {
+        if (listed) {
+          throw new RejectedExecutionException();
+        }
+
+        listed=true;
+        command.run();
+      }
+    };
+
+    builder().build().preload(listOnly, Integer.MAX_VALUE, listener);
+    Assert.assertEquals(HOSTS, progress.get());
+    Assert.assertEquals(0, result[0]);
+    Assert.assertEquals(HOSTS, result[1]);
+
+    ExecutorService shutDown=Executors.newSingleThreadExecutor();
+
+    shutDown.shutdown();
+    builder().build().preload(shutDown, Integer.MAX_VALUE, listener);
+    Assert.assertEquals(0, result[0]);
+    Assert.assertEquals(0, result[1]);
+  }
+
+  @Override
+  protected MemorizingTrustManager.Builder builder() {
+    return(new MemorizingTrustManager.Builder()
+      .persistTo(new KeyStoreMemorizationPersistence(memoDir,
+        "sekrit".toCharArray(), KeyStore.getDefaultType()))
+      .noTOFU());
+  }
+
+  private long firstChecks(MemorizingTrustManager memo) throws Exception {
+    long start=SystemClock.elapsedRealtime();
+
+    for (int i=0;i<HOSTS;i++) {
+      memo.checkServerTrusted(chain, authType, host(i));
+    }
+
+    return(SystemClock.elapsedRealtime()-start);
+  }
+}
@@ -0,0 +1,162 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import com.commonsware.cwac.netsecurity.MemorizationListener;
+import com.commonsware.cwac.netsecurity.MemorizingTrustManager;
+import junit.framework.Assert;
+import org.junit.Test;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Several MemorizingTrustManagers sharing their certificates via
+ * shareStores().
+ */
+public class MemorizationSharingTest extends AbstractMemorizationTest {
+  private static final String HOST="shared.example.com";
+
+  @Override
+  protected String getDirectoryName() {
+    return("memo-sharing");
+  }
+
+  @Test
+  public void testSharedCache() throws Exception {
+    File dir=freshDir();
+    MemorizingTrustManager tofu=builder(dir).build();
+    MemorizingTrustManager strict=builder(dir).noTOFU().build();
+
+    miss(strict, HOST);
+
+    // memorizes, and so must override strict's negative cache entry
+    tofu.checkServerTrusted(chain, authType, HOST);
+    strict.checkServerTrusted(chain, authType, HOST);
+
+    // strict's first check and tofu's load missed; strict's second
+    // check found what tofu loaded
+    MemorizingTrustManager.CacheStats stats=strict.getCacheStats();
+
+    Assert.assertEquals(1, stats.getSize());
+    Assert.assertEquals(2, stats.getMissCount());
+    Assert.assertEquals(1, stats.getHitCount());
+
+    tofu.clear(HOST, true);
+    miss(strict, HOST);
+  }
+
+  @Test
+  public void testNotifications() throws Exception {
+    File dir=freshDir();
+    MemorizingTrustManager tofu=builder(dir).build();
+    MemorizingTrustManager strict=builder(dir).noTOFU().build();
+    final List<String> events=new CopyOnWriteArrayList<>();
+
+    strict.addMemorizationListener(new MemorizationListener() {
+      @Override
+      public void onMemorized(String host, boolean persistent) {
+        events.add("memorized "+host+" "+persistent);
+      }
+
+      @Override
+      public void onCleared(String host, boolean persistent) {
+        events.add("cleared "+host+" "+persistent);
+      }
+    });
+
+    tofu.checkServerTrusted(chain, authType, HOST);
+    tofu.checkServerTrusted(chain, authType, HOST);
+    tofu.clear(HOST, true);
+    tofu.clearAll(false);
+
+    Assert.assertEquals(3, events.size());
+    Assert.assertEquals("memorized "+HOST+" true", events.get(0));
+    Assert.assertEquals("cleared "+HOST+" true", events.get(1));
+    Assert.assertEquals("cleared null false", events.get(2));
+  }
+
+  @Test
+  public void testDifferentSettings() throws Exception {
+    File dir=freshDir();
+    MemorizingTrustManager small=builder(dir).cacheSize(1).build();
+    MemorizingTrustManager large=builder(dir).cacheSize(10).build();
+
+    small.checkServerTrusted(chain, authType, HOST);
+    Assert.assertEquals(0, large.getCacheStats().getSize());
+
+    // separate caches, but the same storage underneath
+    MemorizingTrustManager strict=builder(dir).cacheSize(10).noTOFU().build();
+
+    strict.checkServerTrusted(chain, authType, HOST);
+    Assert.assertEquals(1, large.getCacheStats().getSize());
+    Assert.assertEquals(1, small.getCacheStats().getSize());
+  }
+
+  @Test
+  public void testMismatchedPersistence() throws Exception {
+    File dir=freshDir();
+    ExecutorService executor=Executors.newSingleThreadExecutor();
+
+    try {
+      MemorizingTrustManager tofu=builder(dir).writeBehind(executor).build();
+      MemorizingTrustManager strict=
+        builder(dir).writeBehind(executor).cacheSize(10).noTOFU().build();
+
+      // separate caches, but one write-behind queue, so strict loads
+      // what tofu memorized even if it is not yet on disk
+      tofu.checkServerTrusted(chain, authType, HOST);
+      strict.checkServerTrusted(chain, authType, HOST);
+      Assert.assertEquals(1, strict.getCacheStats().getSize());
+
+      try {
+        builder(dir).build();
+        Assert.fail("Expected IllegalStateException");
+      }
+      catch (IllegalStateException e) {
+        // expected
+      }
+
+      try {
+        new MemorizingTrustManager.Builder()
+          .saveTo(dir, "other".toCharArray())
+          .writeBehind(executor)
+          .shareStores()
+          .build();
+        Assert.fail("Expected IllegalStateException");
+      }
+      catch (IllegalStateException e) {
+        // expected
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  private MemorizingTrustManager.Builder builder(File dir) {
+    return(new MemorizingTrustManager.Builder()
+      .saveTo(dir, "sekrit".toCharArray())
+      .shareStores());
+  }
+
+  /**
+   * Managers from earlier tests may not have been collected yet, and
+   * would still be sharing their state, so each test gets its own
+   * directory.
+   */
+  private File freshDir() {
+    return(new File(memoDir, Long.toString(System.nanoTime())));
+  }
+}
@@ -0,0 +1,132 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.commonsware.cwac.netsecurity.CertificateNotMemorizedException;
+import com.commonsware.cwac.netsecurity.CompositeTrustManager;
+import com.commonsware.cwac.netsecurity.MemorizingTrustManager;
+import com.commonsware.cwac.netsecurity.SweepListener;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sweeping of memorized certificates that have outlived maxAge().
+ */
+public class MemorizationSweepTest extends AbstractMemorizationTest {
+  private static final String TAG="MemorizationSweep";
+  private static final int HOSTS=20;
+
+  @Override
+  protected String getDirectoryName() {
+    return("memo-sweep");
+  }
+
+  @Before
+  public void memorizeHosts() throws Exception {
+    MemorizingTrustManager memo=new MemorizingTrustManager.Builder()
+      .saveTo(memoDir, "sekrit".toCharArray())
+      .build();
+
+    for (int i=0;i<HOSTS;i++) {
+      memo.checkServerTrusted(chain, authType, host(i));
+    }
+
+    SystemClock.sleep(100);
+  }
+
+  @Test
+  public void testSweep() throws Exception {
+    MemorizingTrustManager memo=builder().build();
+
+    // loading one host prunes it right away
+    miss(memo, host(0));
+
+    MemorizingTrustManager.SweepResult result=memo.sweep();
+
+    Log.i(TAG, String.format("removed %d hosts, %d certificates (%d bytes), reclaimed %d bytes in %d ms",
+      result.getHostsRemoved(), result.getCertificatesRemoved(),
+      result.getCertificateBytesRemoved(), result.getStorageBytesReclaimed(),
+      result.getElapsedMillis()));
+
+    Assert.assertEquals(HOSTS-1, result.getHostsRemoved());
+    Assert.assertEquals(HOSTS-1, result.getCertificatesRemoved());
+    Assert.assertTrue(result.getCertificateBytesRemoved()>0);
+
+    for (int i=1;i<HOSTS;i++) {
+      miss(memo, host(i));
+    }
+
+    Assert.assertEquals(0, memo.sweep().getHostsRemoved());
+  }
+
+  @Test
+  public void testScheduledSweep() throws Exception {
+    final CountDownLatch done=new CountDownLatch(1);
+    final AtomicReference<MemorizingTrustManager.SweepResult> result=
+      new AtomicReference<>();
+    ScheduledExecutorService executor=
+      Executors.newSingleThreadScheduledExecutor();
+
+    builder()
+      .sweepEvery(executor, 100, TimeUnit.MILLISECONDS, new SweepListener() {
+        @Override
+        public void onSweepComplete(MemorizingTrustManager.SweepResult r) {
+          if (result.compareAndSet(null, r)) {
+            done.countDown();
+          }
+        }
+      })
+      .build();
+
+    Assert.assertTrue(done.await(1, TimeUnit.MINUTES));
+    executor.shutdownNow();
+    Assert.assertEquals(HOSTS, result.get().getHostsRemoved());
+  }
+
+  @Test
+  public void testSweepDropsVerdicts() throws Exception {
+    MemorizingTrustManager memo=super.builder()
+      .maxAge(1, TimeUnit.SECONDS)
+      .build();
+    CompositeTrustManager composite=CompositeTrustManager.matchAll(memo);
+    String host=host(HOSTS);
+
+    composite.setVerdictCache(10, 60000);
+    memo.memorize(miss(memo, host));
+    composite.checkServerTrusted(chain, authType, host);
+
+    SystemClock.sleep(1500);
+    Assert.assertTrue(memo.sweep().getCertificatesRemoved()>0);
+
+    // the cached verdict for host must not outlive its certificate
+    try {
+      composite.checkServerTrusted(chain, authType, host);
+      Assert.fail("Expected CertificateNotMemorizedException for "+host);
+    }
+    catch (CertificateNotMemorizedException e) {
+      // expected
+    }
+  }
+
+  @Override
+  protected MemorizingTrustManager.Builder builder() {
+    return(super.builder().maxAge(50, TimeUnit.MILLISECONDS));
+  }
+}
@@ -0,0 +1,97 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.netsecurity.OkHttp3Integrator;
+import com.commonsware.cwac.netsecurity.TrustManagerBuilder;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Benchmark of concurrent OkHttp3 calls through OkHttp3Integrator. Each
+ * pass enqueues the same number of calls with a different
+ * Dispatcher.maxRequests value and logs the resulting throughput, which
+ * should scale with maxRequests now that the interceptor does not
+ * serialize calls.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OkHttp3ConcurrencyTest {
+  private static final String TAG="OkHttp3ConcurrencyTest";
+  private static final String URL=
+    "https://wares.commonsware.com/static/test.json";
+  private static final int CALL_COUNT=60;
+  private static final int[] MAX_REQUESTS={1, 4, 16, 64};
+
+  @Test
+  public void testThroughput() throws Exception {
+    for (int maxRequests : MAX_REQUESTS) {
+      Dispatcher dispatcher=new Dispatcher();
+
+      dispatcher.setMaxRequests(maxRequests);
+      dispatcher.setMaxRequestsPerHost(maxRequests);
+
+      OkHttpClient.Builder builder=
+        new OkHttpClient.Builder().dispatcher(dispatcher);
+      TrustManagerBuilder tmb=new TrustManagerBuilder().useDefault();
+
+      OkHttp3Integrator.applyTo(tmb, builder);
+
+      long elapsed=runCalls(builder.build());
+
+      Log.i(TAG, String.format("maxRequests=%d: %d calls in %d ms (%.1f calls/s)",
+        maxRequests, CALL_COUNT, elapsed, CALL_COUNT*1000.0f/elapsed));
+    }
+  }
+
+  private long runCalls(OkHttpClient client) throws Exception {
+    final CountDownLatch latch=new CountDownLatch(CALL_COUNT);
+    final AtomicInteger failures=new AtomicInteger();
+    Request request=new Request.Builder().url(URL).build();
+    long start=SystemClock.elapsedRealtime();
+
+    for (int i=0;i<CALL_COUNT;i++) {
+      client.newCall(request).enqueue(new Callback() {
+        @Override
+        public void onFailure(Call call, IOException e) {
+          failures.incrementAndGet();
+          latch.countDown();
+        }
+
+        @Override
+        public void onResponse(Call call, Response response)
+          throws IOException {
+          response.body().string();
+          latch.countDown();
+        }
+      });
+    }
+
+    Assert.assertTrue("Calls timed out", latch.await(2, TimeUnit.MINUTES));
+    Assert.assertEquals(0, failures.get());
+
+    return(SystemClock.elapsedRealtime()-start);
+  }
+}
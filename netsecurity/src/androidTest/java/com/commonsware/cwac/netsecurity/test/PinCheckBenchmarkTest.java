@@ -0,0 +1,129 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.netsecurity.config.NetworkSecurityTrustManager;
+import com.commonsware.cwac.netsecurity.config.Pin;
+import com.commonsware.cwac.netsecurity.config.PinSet;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Time taken, and roughly how much memory is allocated, per pin check
+ * of a three-certificate chain whose leaf is pinned, which is the worst
+ * case, as checks start from the root end of the chain. See Benchmark
+ * for how these are measured.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PinCheckBenchmarkTest {
+  private static final String TAG="PinCheckBenchmark";
+  private static final int CALLS=20000;
+  private final List<X509Certificate> chain=new ArrayList<>();
+  private PinSet pinSet;
+
+  @Before
+  public void init() throws Exception {
+    CertificateFactory cf=CertificateFactory.getInstance("X.509");
+    int[] raws={R.raw.verisign_class3, R.raw.thawte_primary_root,
+      R.raw.addtrustexternalcaroot};
+
+    for (int raw : raws) {
+      InputStream in=InstrumentationRegistry.getContext().getResources()
+        .openRawResource(raw);
+
+      try {
+        chain.add((X509Certificate)cf.generateCertificate(in));
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    Set<Pin> pins=new HashSet<>();
+    byte[] backup=new byte[32];
+
+    pins.add(new Pin("SHA-256", MessageDigest.getInstance("SHA-256")
+      .digest(chain.get(0).getPublicKey().getEncoded())));
+    pins.add(new Pin("SHA-256", backup));
+    pinSet=new PinSet(pins, Long.MAX_VALUE);
+  }
+
+  @Test
+  public void testPinCheck() throws Exception {
+    Assert.assertTrue(legacyMatchesPins(pinSet, chain));
+    Assert.assertTrue(NetworkSecurityTrustManager.matchesPins(pinSet, chain));
+
+    Benchmark.measure(TAG, "digest per check", CALLS,
+      new Benchmark.Operation() {
+        @Override
+        public boolean run(int i) throws Exception {
+          return(legacyMatchesPins(pinSet, chain));
+        }
+      });
+    Benchmark.measure(TAG, "cached digests", CALLS,
+      new Benchmark.Operation() {
+        @Override
+        public boolean run(int i) {
+          return(NetworkSecurityTrustManager.matchesPins(pinSet, chain));
+        }
+      });
+  }
+
+  /**
+   * What checkPins() used to do: look up a MessageDigest, encode and
+   * digest each key, and allocate a Pin to probe the set, every time.
+   */
+  private static boolean legacyMatchesPins(PinSet pinSet,
+                                           List<X509Certificate> chain)
+    throws Exception {
+    Set<String> pinAlgorithms=new HashSet<>();
+
+    for (Pin pin : pinSet.pins) {
+      pinAlgorithms.add(pin.digestAlgorithm);
+    }
+
+    Map<String, MessageDigest> digestMap=new HashMap<>(pinAlgorithms.size());
+
+    for (int i=chain.size()-1;i>=0;i--) {
+      byte[] encodedSPKI=chain.get(i).getPublicKey().getEncoded();
+
+      for (String algorithm : pinAlgorithms) {
+        MessageDigest md=digestMap.get(algorithm);
+
+        if (md==null) {
+          md=MessageDigest.getInstance(algorithm);
+          digestMap.put(algorithm, md);
+        }
+
+        if (pinSet.pins.contains(new Pin(algorithm, md.digest(encodedSPKI)))) {
+          return(true);
+        }
+      }
+    }
+
+    return(false);
+  }
+}
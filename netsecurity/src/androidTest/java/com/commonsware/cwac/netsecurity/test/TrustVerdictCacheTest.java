@@ -0,0 +1,119 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.netsecurity.CompositeTrustManager;
+import com.commonsware.cwac.netsecurity.X509Extensions;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.InputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class TrustVerdictCacheTest {
+  private X509Certificate[] chain;
+
+  @Before
+  public void init() throws Exception {
+    InputStream in=InstrumentationRegistry.getContext().getResources()
+      .openRawResource(R.raw.selfsigned);
+
+    try {
+      chain=new X509Certificate[] {(X509Certificate)CertificateFactory
+        .getInstance("X.509").generateCertificate(in)};
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testCached() throws Exception {
+    CountingTrustManager counting=new CountingTrustManager();
+    CompositeTrustManager composite=
+      CompositeTrustManager.matchAny(counting);
+
+    composite.setVerdictCache(10, 60000);
+    composite.checkServerTrusted(chain, "RSA", "foo.com");
+    composite.checkServerTrusted(chain, "RSA", "foo.com");
+    Assert.assertEquals(1, counting.calls);
+
+    composite.clearVerdictCache();
+    composite.checkServerTrusted(chain, "RSA", "foo.com");
+    Assert.assertEquals(2, counting.calls);
+  }
+
+  @Test
+  public void testClearedDuringCheck() throws Exception {
+    CountingTrustManager counting=new CountingTrustManager();
+    CompositeTrustManager composite=
+      CompositeTrustManager.matchAny(counting);
+
+    composite.setVerdictCache(10, 60000);
+    counting.clearDuringCheck=composite;
+    composite.checkServerTrusted(chain, "RSA", "foo.com");
+    counting.clearDuringCheck=null;
+
+    // the verdict predates the clear, so it must not have been cached
+    composite.checkServerTrusted(chain, "RSA", "foo.com");
+    Assert.assertEquals(2, counting.calls);
+  }
+
+  private static class CountingTrustManager implements X509Extensions {
+    private int calls=0;
+    private CompositeTrustManager clearDuringCheck;
+
+    @Override
+    public List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
+                                                    String authType,
+                                                    String host) {
+      calls++;
+
+      if (clearDuringCheck!=null) {
+        clearDuringCheck.clearVerdictCache();
+      }
+
+      return(Arrays.asList(chain));
+    }
+
+    @Override
+    public boolean isUserAddedCertificate(X509Certificate cert) {
+      return(false);
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain,
+                                   String authType)
+      throws CertificateException {
+      throw new CertificateException("not supported");
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain,
+                                   String authType) {
+      checkServerTrusted(chain, authType, null);
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return(new X509Certificate[0]);
+    }
+  }
+}
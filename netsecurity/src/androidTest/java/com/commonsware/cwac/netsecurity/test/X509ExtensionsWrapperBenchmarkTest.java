@@ -0,0 +1,149 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.netsecurity.X509ExtensionsWrapper;
+import com.commonsware.cwac.netsecurity.config.ApplicationConfig;
+import com.commonsware.cwac.netsecurity.config.RootTrustManager;
+import com.commonsware.cwac.netsecurity.config.XmlConfigSource;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Time taken per 3-parameter checkServerTrusted() call through
+ * X509ExtensionsWrapper, compared with calling the trust manager
+ * directly and with the plain Method.invoke() that the wrapper used
+ * to do on every call. See Benchmark for how these are measured.
+ */
+@RunWith(AndroidJUnit4.class)
+public class X509ExtensionsWrapperBenchmarkTest {
+  private static final String TAG="X509ExtensionsWrapper";
+  private static final String HOST="selfsigned.example.com";
+  private static final int CALLS=100000;
+  private static final int CHAIN_CALLS=2000;
+  private X509Certificate[] chain;
+  private String authType;
+
+  @Before
+  public void init() throws Exception {
+    InputStream in=InstrumentationRegistry.getContext().getResources()
+      .openRawResource(R.raw.selfsigned);
+
+    try {
+      chain=new X509Certificate[] {(X509Certificate)CertificateFactory
+        .getInstance("X.509").generateCertificate(in)};
+    }
+    finally {
+      in.close();
+    }
+
+    authType=chain[0].getPublicKey().getAlgorithm();
+  }
+
+  /**
+   * A trust manager that does no work, so the dispatch cost is all
+   * that gets measured.
+   */
+  @Test
+  public void testDispatch() throws Exception {
+    final AcceptingTrustManager tm=new AcceptingTrustManager();
+    final X509ExtensionsWrapper wrapper=new X509ExtensionsWrapper(tm);
+    final Method method=AcceptingTrustManager.class.getMethod(
+      "checkServerTrusted", X509Certificate[].class, String.class,
+      String.class);
+
+    Benchmark.measure(TAG, "direct", CALLS, new Benchmark.Operation() {
+      @Override
+      public boolean run(int i) {
+        return(tm.checkServerTrusted(chain, authType, HOST)!=null);
+      }
+    });
+    Benchmark.measure(TAG, "Method.invoke()", CALLS,
+      new Benchmark.Operation() {
+        @Override
+        public boolean run(int i) throws Exception {
+          return(method.invoke(tm, chain, authType, HOST)!=null);
+        }
+      });
+    Benchmark.measure(TAG, "wrapper, reflection", CALLS,
+      new Benchmark.Operation() {
+        @Override
+        public boolean run(int i) throws Exception {
+          return(wrapper.checkServerTrusted(chain, authType, HOST)!=null);
+        }
+      });
+  }
+
+  /**
+   * The RootTrustManager from withConfig(), which is what usually gets
+   * wrapped, validating a real chain.
+   */
+  @Test
+  public void testRootTrustManager() throws Exception {
+    final RootTrustManager tm=new RootTrustManager(new ApplicationConfig(
+      new XmlConfigSource(InstrumentationRegistry.getContext(),
+        R.xml.selfsigned, false)));
+    final X509ExtensionsWrapper wrapper=new X509ExtensionsWrapper(tm);
+
+    Benchmark.measure(TAG, "RootTrustManager, direct", CHAIN_CALLS,
+      new Benchmark.Operation() {
+        @Override
+        public boolean run(int i) throws Exception {
+          return(tm.checkServerTrusted(chain, authType, HOST)!=null);
+        }
+      });
+    Benchmark.measure(TAG, "RootTrustManager, wrapper", CHAIN_CALLS,
+      new Benchmark.Operation() {
+        @Override
+        public boolean run(int i) throws Exception {
+          return(wrapper.checkServerTrusted(chain, authType, HOST)!=null);
+        }
+      });
+  }
+
+  public static class AcceptingTrustManager implements X509TrustManager {
+    public List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
+                                                    String authType,
+                                                    String host) {
+      return(Arrays.asList(chain));
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain,
+                                   String authType)
+      throws CertificateException {
+      throw new CertificateException("not supported");
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain,
+                                   String authType) {
+      checkServerTrusted(chain, authType, null);
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return(new X509Certificate[0]);
+    }
+  }
+}
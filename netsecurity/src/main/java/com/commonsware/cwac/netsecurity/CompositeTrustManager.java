@@ -20,10 +20,14 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
@@ -34,10 +38,26 @@ import javax.net.ssl.X509TrustManager;
  */
 public class CompositeTrustManager implements X509Extensions {
   private static final ThreadLocal<String> host=new ThreadLocal<>();
+  private static final int REORDER_INTERVAL=32;
   private ArrayList<X509Extensions> managers=new ArrayList<>();
+  private final ArrayList<ChildStats> stats=new ArrayList<>();
+  private volatile ChildStats[] evaluationOrder=new ChildStats[0];
+  private final AtomicInteger evaluationsSinceReorder=new AtomicInteger();
+  private volatile boolean adaptiveOrdering=false;
   private boolean matchAll;
   private ArrayList<CertChainListener> certChainListeners=
     new ArrayList<>();
+  private volatile SSLSocketFactory socketFactory;
+  private volatile TrustVerdictCache verdictCache;
+  private final CopyOnWriteArrayList<TrustRevocationListener> revocationListeners=
+    new CopyOnWriteArrayList<>();
+  private final TrustRevocationListener childRevocationListener=
+    new TrustRevocationListener() {
+      @Override
+      public void onTrustRevoked() {
+        clearVerdictCache();
+      }
+    };
 
   /**
    * Factory method to wrap 1+ x509TrustManagers in a CompositeTrustManager
@@ -63,17 +83,19 @@ public class CompositeTrustManager implements X509Extensions {
 
   protected CompositeTrustManager(X509TrustManager[] mgrs,
                                   boolean matchAll) {
+    this.matchAll=matchAll;
+
     if (mgrs != null) {
       addAll(mgrs);
     }
-
-    setMatchAll(matchAll);
   }
 
   /**
    * Provide the hostname to use for subsequent certificate chain
-   * evaluations. This is not needed for API Level 24+ but is needed
-   * for older versions.
+   * evaluations on the current thread. This is not needed for sockets
+   * created by getSocketFactory(), as those are bound to their own
+   * hostname, but it is needed if you use this trust manager with some
+   * other SSLSocketFactory on older versions of Android.
    *
    * @param host
    */
@@ -120,12 +142,27 @@ public class CompositeTrustManager implements X509Extensions {
    * @param mgr the X509TrustManager to add
    */
   public void add(X509TrustManager mgr) {
+    if (mgr instanceof MemorizingTrustManager) {
+      ((MemorizingTrustManager)mgr)
+        .addTrustRevocationListener(childRevocationListener);
+    }
+    else if (mgr instanceof CompositeTrustManager) {
+      ((CompositeTrustManager)mgr)
+        .addTrustRevocationListener(childRevocationListener);
+    }
+
+    X509Extensions child;
+
     if (mgr instanceof X509Extensions) {
-      managers.add((X509Extensions)mgr);
+      child=(X509Extensions)mgr;
     }
     else {
-      managers.add(new X509ExtensionsWrapper(mgr));
+      child=new X509ExtensionsWrapper(mgr);
     }
+
+    managers.add(child);
+    stats.add(new ChildStats(mgr, child, stats.size()));
+    evaluationOrder=stats.toArray(new ChildStats[stats.size()]);
   }
 
   /**
@@ -162,6 +199,111 @@ public class CompositeTrustManager implements X509Extensions {
     this.matchAll=matchAll;
   }
 
+  /**
+   * Enables caching of successful hostname-aware checkServerTrusted()
+   * results, so that reconnecting to a server with the same certificate
+   * chain skips re-validating that chain. Cached results expire after
+   * the supplied time-to-live, or when a certificate in the chain
+   * expires, whichever comes first. The cache is cleared if a
+   * MemorizingTrustManager in this composite has memorized certificates
+   * cleared, or if clearVerdictCache() is called.
+   *
+   * @param maxEntries maximum number of verdicts to cache; zero or less
+   *                   disables the cache
+   * @param ttl time-to-live for cached verdicts, in milliseconds
+   */
+  public void setVerdictCache(int maxEntries, long ttl) {
+    if (maxEntries>0) {
+      verdictCache=new TrustVerdictCache(maxEntries, ttl);
+    }
+    else {
+      verdictCache=null;
+    }
+  }
+
+  /**
+   * @return true if setVerdictCache() has enabled the verdict cache,
+   * false otherwise
+   */
+  public boolean hasVerdictCache() {
+    return(verdictCache!=null);
+  }
+
+  /**
+   * Discards all cached verdicts, so the next handshake for each server
+   * runs the full set of checks. Call this if something outside of this
+   * library changes what should be trusted.
+   */
+  public void clearVerdictCache() {
+    TrustVerdictCache cache=verdictCache;
+
+    if (cache!=null) {
+      cache.clear();
+    }
+
+    for (TrustRevocationListener listener : revocationListeners) {
+      listener.onTrustRevoked();
+    }
+  }
+
+  void addTrustRevocationListener(TrustRevocationListener listener) {
+    revocationListeners.add(listener);
+  }
+
+  /**
+   * Opts into adaptive ordering of the child managers when OR logic is
+   * applied. Since evaluation stops at the first manager that accepts
+   * the certificate chain, the managers are periodically re-sorted so
+   * that those that are cheap and usually succeed get evaluated first,
+   * based on the statistics available from getChildStats(). Note that
+   * this means that the order in which you added the managers is no
+   * longer the order in which they are evaluated. This has no effect on
+   * AND logic, as all managers must be evaluated. This setting is also
+   * applied to any CompositeTrustManagers nested inside of this one.
+   *
+   * Managers whose success has side effects, such as a
+   * MemorizingTrustManager that memorizes on first use, are never
+   * moved, and no manager is moved ahead of them. Managers that have
+   * not been tried yet stay behind those with a record of success. The
+   * exception thrown when all managers fail does not depend on the
+   * order: a MemorizationException is preferred, otherwise the
+   * exception from the earliest-added manager is thrown.
+   *
+   * @param adaptiveOrdering true to reorder managers based on their
+   *                         observed success rate and latency, false
+   *                         to always use the order they were added in
+   */
+  public void setAdaptiveOrdering(boolean adaptiveOrdering) {
+    this.adaptiveOrdering=adaptiveOrdering;
+
+    if (!adaptiveOrdering) {
+      evaluationOrder=stats.toArray(new ChildStats[stats.size()]);
+    }
+
+    for (X509Extensions mgr : managers) {
+      if (mgr instanceof CompositeTrustManager) {
+        ((CompositeTrustManager)mgr).setAdaptiveOrdering(adaptiveOrdering);
+      }
+    }
+  }
+
+  /**
+   * @return true if setAdaptiveOrdering() enabled adaptive ordering,
+   * false otherwise
+   */
+  public boolean isAdaptiveOrdering() {
+    return(adaptiveOrdering);
+  }
+
+  /**
+   * @return statistics about the server certificate chain checks
+   * performed by each child manager, in the order in which the
+   * managers were added
+   */
+  public List<ChildStats> getChildStats() {
+    return(new ArrayList<>(stats));
+  }
+
   /**
    * @return the number of managers in this composite
    */
@@ -213,26 +355,37 @@ public class CompositeTrustManager implements X509Extensions {
     if (host==null) {
       passChainToListeners(chain);
 
-      CertificateException first=null;
+      CertificateException failure=null;
+      int failureIndex=0;
       boolean anyGoodResults=false;
 
-      for (X509Extensions mgr : managers) {
+      for (ChildStats child : getEvaluationOrder()) {
+        long start=System.nanoTime();
+
         try {
-          mgr.checkServerTrusted(chain, authType);
+          child.manager.checkServerTrusted(chain, authType);
+          child.record(true, System.nanoTime()-start);
           anyGoodResults=true;
+
+          if (!matchAll) {
+            break;
+          }
         }
         catch (CertificateException e) {
+          child.record(false, System.nanoTime()-start);
+
           if (matchAll) {
             throw e;
           }
-          else {
-            first=e;
+          else if (isPreferredFailure(e, child.index, failure, failureIndex)) {
+            failure=e;
+            failureIndex=child.index;
           }
         }
       }
 
-      if (!matchAll && !anyGoodResults && first!=null) {
-        throw first;
+      if (!matchAll && !anyGoodResults && failure!=null) {
+        throw failure;
       }
     }
     else {
@@ -250,27 +403,59 @@ public class CompositeTrustManager implements X509Extensions {
     throws CertificateException {
     passChainToListeners(certs, hostname);
 
-    CertificateException first=null;
+    TrustVerdictCache cache=verdictCache;
+    String key=null;
+    long generation=0;
+
+    if (cache!=null) {
+      generation=cache.getGeneration();
+      key=cache.keyFor(certs, authType, hostname);
+
+      if (key!=null) {
+        TrustVerdictCache.Verdict verdict=cache.get(key);
+
+        if (verdict!=null) {
+          return(verdict.trustedChain);
+        }
+      }
+    }
+
+    CertificateException failure=null;
+    int failureIndex=0;
     boolean anyGoodResults=false;
     List<X509Certificate> result=null;
 
-    for (X509Extensions mgr : managers) {
+    for (ChildStats child : getEvaluationOrder()) {
+      long start=System.nanoTime();
+
       try {
-        result=mgr.checkServerTrusted(certs, authType, hostname);
+        result=child.manager.checkServerTrusted(certs, authType, hostname);
+        child.record(true, System.nanoTime()-start);
         anyGoodResults=true;
+
+        if (!matchAll) {
+          break;
+        }
       }
       catch (CertificateException e) {
+        child.record(false, System.nanoTime()-start);
+
         if (matchAll) {
           throw e;
         }
-        else {
-          first=e;
+        else if (isPreferredFailure(e, child.index, failure, failureIndex)) {
+          failure=e;
+          failureIndex=child.index;
         }
       }
     }
 
-    if (!matchAll && !anyGoodResults && first!=null) {
-      throw first;
+    if (!matchAll && !anyGoodResults && failure!=null) {
+      throw failure;
+    }
+
+    if (key!=null) {
+      cache.put(key, generation, certs, result);
     }
 
     return(result);
@@ -328,17 +513,106 @@ public class CompositeTrustManager implements X509Extensions {
     throws NoSuchAlgorithmException, KeyManagementException {
     if (c instanceof HttpsURLConnection && size()>0) {
       ((HttpsURLConnection)c).setSSLSocketFactory(getSocketFactory());
-      setHost(c.getURL().getHost());
     }
 
     return(c);
   }
 
+  /**
+   * Returns an SSLSocketFactory that uses this trust manager. Sockets
+   * created by this factory for a hostname are bound to that hostname,
+   * so certificate chains are evaluated against the right domain
+   * configuration no matter what thread performs the TLS handshake.
+   *
+   * The factory is created once and then shared by all callers, so
+   * connections share one TLS session cache and can resume sessions
+   * rather than performing a full handshake each time.
+   *
+   * @return an SSLSocketFactory using this trust manager
+   * @throws NoSuchAlgorithmException
+   * @throws KeyManagementException
+   */
   public SSLSocketFactory getSocketFactory()
     throws NoSuchAlgorithmException, KeyManagementException {
-    SSLContext ssl = SSLContext.getInstance("TLS");
-    ssl.init(null, new X509TrustManager[] { this }, null);
-    return ssl.getSocketFactory();
+    SSLSocketFactory result=socketFactory;
+
+    if (result==null) {
+      synchronized(this) {
+        result=socketFactory;
+
+        if (result==null) {
+          result=new HostBindingSSLSocketFactory(this);
+          socketFactory=result;
+        }
+      }
+    }
+
+    return(result);
+  }
+
+  private ChildStats[] getEvaluationOrder() {
+    ChildStats[] result=evaluationOrder;
+
+    if (adaptiveOrdering && !matchAll && result.length>1 &&
+      evaluationsSinceReorder.incrementAndGet()>=REORDER_INTERVAL) {
+      evaluationsSinceReorder.set(0);
+      result=result.clone();
+
+      // managers with side effects stay where they were added, so
+      // only sort the runs of managers between them; the sort is
+      // stable, so ties keep their current order
+
+      int start=0;
+
+      for (int i=0;i<=result.length;i++) {
+        if (i==result.length || result[i].hasSideEffects()) {
+          Arrays.sort(result, start, i, ChildStats.BY_EXPECTED_COST);
+          start=i+1;
+        }
+      }
+
+      evaluationOrder=result;
+    }
+
+    return(result);
+  }
+
+  /**
+   * @return true if any manager in this composite has side effects
+   * when it succeeds, so it should not be reordered
+   */
+  boolean hasSideEffects() {
+    for (ChildStats child : stats) {
+      if (child.hasSideEffects()) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+
+  /**
+   * With OR logic, the exception to throw when every manager fails
+   * should not depend on the order in which they were evaluated. A
+   * MemorizationException wins, as callers rely on it to offer to
+   * memorize the chain; otherwise, the earliest-added manager wins.
+   */
+  private static boolean isPreferredFailure(CertificateException e,
+                                            int index,
+                                            CertificateException current,
+                                            int currentIndex) {
+    if (current==null) {
+      return(true);
+    }
+
+    boolean memo=e instanceof MemorizationException;
+    boolean currentMemo=current instanceof MemorizationException;
+
+    if (memo!=currentMemo) {
+      return(memo);
+    }
+
+    return(index<currentIndex);
   }
 
   private X509TrustManager[] buildArray() {
@@ -355,4 +629,108 @@ public class CompositeTrustManager implements X509Extensions {
       listener.onChain(chain, hostname);
     }
   }
+
+  /**
+   * Statistics about the server certificate chain checks performed by
+   * one child manager of a CompositeTrustManager.
+   */
+  public static class ChildStats {
+    private static final Comparator<ChildStats> BY_EXPECTED_COST=
+      new Comparator<ChildStats>() {
+        @Override
+        public int compare(ChildStats lhs, ChildStats rhs) {
+          return(Double.compare(lhs.getExpectedCost(),
+            rhs.getExpectedCost()));
+        }
+      };
+    private final X509TrustManager trustManager;
+    private final X509Extensions manager;
+    private final int index;
+    private final AtomicLong attempts=new AtomicLong();
+    private final AtomicLong successes=new AtomicLong();
+    private final AtomicLong totalNanos=new AtomicLong();
+
+    private ChildStats(X509TrustManager trustManager,
+                       X509Extensions manager, int index) {
+      this.trustManager=trustManager;
+      this.manager=manager;
+      this.index=index;
+    }
+
+    /**
+     * @return the trust manager that these statistics are for
+     */
+    public X509TrustManager getTrustManager() {
+      return(trustManager);
+    }
+
+    /**
+     * @return the number of times this manager checked a server
+     * certificate chain
+     */
+    public long getAttempts() {
+      return(attempts.get());
+    }
+
+    /**
+     * @return the number of times this manager accepted a server
+     * certificate chain
+     */
+    public long getSuccesses() {
+      return(successes.get());
+    }
+
+    /**
+     * @return the fraction of checks in which this manager accepted the
+     * server certificate chain, or 0 if there have been no checks
+     */
+    public double getSuccessRate() {
+      long count=attempts.get();
+
+      return(count==0 ? 0 : (double)successes.get()/count);
+    }
+
+    /**
+     * @return the mean time that this manager took to check a server
+     * certificate chain, in nanoseconds, or 0 if there have been no
+     * checks
+     */
+    public long getMeanLatencyNanos() {
+      long count=attempts.get();
+
+      return(count==0 ? 0 : totalNanos.get()/count);
+    }
+
+    private void record(boolean success, long nanos) {
+      attempts.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+
+      if (success) {
+        successes.incrementAndGet();
+      }
+    }
+
+    private boolean hasSideEffects() {
+      return(trustManager instanceof MemorizingTrustManager ||
+        (trustManager instanceof CompositeTrustManager &&
+          ((CompositeTrustManager)trustManager).hasSideEffects()));
+    }
+
+    /**
+     * For OR logic, evaluating managers in increasing order of latency
+     * divided by success rate minimizes the expected time to find one
+     * that succeeds. Managers that have not been tried yet, or have
+     * never succeeded, sort last, so a manager with a record of success
+     * is never pushed back by one that is merely unknown.
+     */
+    private double getExpectedCost() {
+      double rate=getSuccessRate();
+
+      if (rate==0) {
+        return(Double.MAX_VALUE);
+      }
+
+      return(getMeanLatencyNanos()/rate);
+    }
+  }
 }
@@ -16,7 +16,15 @@ package com.commonsware.cwac.netsecurity;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -29,6 +37,15 @@ import java.util.regex.Pattern;
  * accept everything else). The other static methods allow you to assemble
  * other scenarios. These methods are designed to be used as static imports,
  * akin to Hamcrest matchers.
+ *
+ * Globs given to whitelist() and blacklist(), or passed to anyOf() as
+ * is(String) rules, are combined into a single index, so checking a
+ * domain name against them costs about the same no matter how many
+ * globs there are. optimize() goes further, simplifying a whole tree of
+ * rules, and cached() remembers a rule's answer for each domain name.
+ *
+ * The rules supplied here do not allocate memory when checking a domain
+ * name, once they have been used a few times on a given thread.
  */
 abstract public class DomainMatchRule {
   abstract public boolean matches(String host);
@@ -63,7 +80,7 @@ abstract public class DomainMatchRule {
    * @return Rule implementing the OR logic
    */
   public static DomainMatchRule anyOf(DomainMatchRule... rules) {
-    return(new Composite(true, rules));
+    return(anyOf(Arrays.asList(rules)));
   }
 
   /**
@@ -74,7 +91,7 @@ abstract public class DomainMatchRule {
    * @return Rule implementing the OR logic
    */
   public static DomainMatchRule anyOf(List<DomainMatchRule> rules) {
-    return(new Composite(true, rules));
+    return(new Composite(true, mergeGlobs(rules)));
   }
 
   /**
@@ -137,17 +154,126 @@ abstract public class DomainMatchRule {
    * @return Rule implementing the blacklist
    */
   public static DomainMatchRule blacklist(String... globs) {
-    List<DomainMatchRule> rules=new ArrayList<>();
+    // same as allOf() of not(is(glob)) for each glob, but lets
+    // whitelist() combine the globs
+    return(not(whitelist(globs)));
+  }
 
-    for (String glob : globs) {
-      rules.add(not(is(glob)));
+  /**
+   * Remembers what another rule returns for each domain name, for up to
+   * maxEntries domain names, so checking a domain name that was checked
+   * before is a single lookup. Only use this with rules that always give
+   * the same answer for the same domain name, as the rules supplied here
+   * do. Once maxEntries domain names are remembered, some are forgotten
+   * to make room for new ones.
+   *
+   * @param rule Rule whose answers should be remembered
+   * @param maxEntries Number of domain names to remember
+   * @return Rule that gives the same answers as the original
+   */
+  public static DomainMatchRule cached(DomainMatchRule rule, int maxEntries) {
+    if (maxEntries<=0) {
+      throw new IllegalArgumentException("Please provide a sensible cache size");
+    }
+
+    return(new Cached(rule, maxEntries));
+  }
+
+  /**
+   * Simplifies a rule, giving one that matches the same domain names but
+   * takes less work to do so. Nested anyOf() rules are merged into one,
+   * as are nested allOf() rules. Double not() rules are removed, as are
+   * rules repeated within the same anyOf() or allOf(). Globs are combined
+   * into one index, even when spread across different levels of the
+   * original rule. Within an anyOf() or allOf(), cheap glob checks go
+   * before regular expressions and other rules.
+   *
+   * MemorizingTrustManager.Builder calls this for you in forDomains(). Your
+   * own DomainMatchRule subclasses are left alone, other than moving them
+   * later within an anyOf() or allOf(), so their matches() should not have
+   * side effects.
+   *
+   * @param rule Rule to simplify
+   * @return Rule that matches the same domain names as the original
+   */
+  public static DomainMatchRule optimize(DomainMatchRule rule) {
+    if (rule instanceof Not) {
+      DomainMatchRule inner=optimize(((Not)rule).rule);
+
+      if (inner instanceof Not) {
+        return(((Not)inner).rule);
+      }
+
+      return(new Not(inner));
+    }
+
+    if (rule instanceof Regex && GlobSet.accepts(((Regex)rule).glob)) {
+      return(new GlobSet(Collections.singletonList(((Regex)rule).glob)));
     }
 
-    return(allOf(rules));
+    if (rule instanceof Composite) {
+      return(((Composite)rule).optimize());
+    }
+
+    return(rule);
+  }
+
+  /**
+   * @return rough relative cost of checking a domain name against the
+   * rule, for optimize() to check the cheapest rules first
+   */
+  private static int cost(DomainMatchRule rule) {
+    if (rule instanceof GlobSet || rule instanceof Cached) {
+      return(1);
+    }
+
+    if (rule instanceof Not) {
+      return(cost(((Not)rule).rule));
+    }
+
+    if (rule instanceof Composite) {
+      int result=0;
+
+      for (DomainMatchRule child : ((Composite)rule).rules) {
+        result+=cost(child);
+      }
+
+      return(result);
+    }
+
+    // a Regex, or a rule from outside this class, which could be anything
+    return(10);
+  }
+
+  /**
+   * @return the rules, with any glob rules that GlobSet can handle
+   * replaced by one GlobSet, if there are at least two of them
+   */
+  private static List<DomainMatchRule> mergeGlobs(List<DomainMatchRule> rules) {
+    List<String> globs=new ArrayList<>();
+    List<DomainMatchRule> others=new ArrayList<>();
+
+    for (DomainMatchRule rule : rules) {
+      if (rule instanceof Regex && GlobSet.accepts(((Regex)rule).glob)) {
+        globs.add(((Regex)rule).glob);
+      }
+      else {
+        others.add(rule);
+      }
+    }
+
+    if (globs.size()<2) {
+      return(rules);
+    }
+
+    others.add(0, new GlobSet(globs));
+
+    return(others);
   }
 
   private static class Composite extends DomainMatchRule {
-    private final List<DomainMatchRule> rules;
+    // an array, so matches() does not need an Iterator
+    private final DomainMatchRule[] rules;
     private final boolean isOr;
 
     Composite(boolean isOr, DomainMatchRule... rules) {
@@ -156,7 +282,7 @@ abstract public class DomainMatchRule {
 
     Composite(boolean isOr, List<DomainMatchRule> rules) {
       this.isOr=isOr;
-      this.rules=rules;
+      this.rules=rules.toArray(new DomainMatchRule[rules.size()]);
     }
 
     @Override
@@ -174,6 +300,83 @@ abstract public class DomainMatchRule {
 
       return(!isOr);
     }
+
+    /**
+     * See DomainMatchRule.optimize(). In an allOf(), not() globs are
+     * combined, as not(a) AND not(b) is not(a OR b).
+     */
+    DomainMatchRule optimize() {
+      List<DomainMatchRule> flattened=new ArrayList<>();
+
+      for (DomainMatchRule rule : rules) {
+        DomainMatchRule optimized=DomainMatchRule.optimize(rule);
+
+        if (optimized instanceof Composite &&
+          ((Composite)optimized).isOr==isOr) {
+          // already optimized, so no further nesting in there
+          flattened.addAll(Arrays.asList(((Composite)optimized).rules));
+        }
+        else {
+          flattened.add(optimized);
+        }
+      }
+
+      Set<String> globs=new LinkedHashSet<>();
+      Set<DomainMatchRule> others=new LinkedHashSet<>();
+
+      for (DomainMatchRule rule : flattened) {
+        DomainMatchRule globRule=rule;
+
+        if (!isOr) {
+          globRule=(rule instanceof Not ? ((Not)rule).rule : null);
+        }
+
+        if (globRule instanceof GlobSet) {
+          globs.addAll(((GlobSet)globRule).globs);
+        }
+        else {
+          others.add(rule);
+        }
+      }
+
+      List<DomainMatchRule> result=new ArrayList<>();
+
+      if (!globs.isEmpty()) {
+        GlobSet merged=new GlobSet(globs);
+
+        result.add(isOr ? merged : new Not(merged));
+      }
+
+      result.addAll(others);
+
+      // a stable sort, so rules of equal cost keep their order
+      Collections.sort(result, new Comparator<DomainMatchRule>() {
+        @Override
+        public int compare(DomainMatchRule lhs, DomainMatchRule rhs) {
+          int lhsCost=cost(lhs);
+          int rhsCost=cost(rhs);
+
+          return(lhsCost<rhsCost ? -1 : (lhsCost==rhsCost ? 0 : 1));
+        }
+      });
+
+      if (result.size()==1) {
+        return(result.get(0));
+      }
+
+      return(new Composite(isOr, result));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return(o instanceof Composite && ((Composite)o).isOr==isOr &&
+        Arrays.equals(((Composite)o).rules, rules));
+    }
+
+    @Override
+    public int hashCode() {
+      return(Arrays.hashCode(rules)*2+(isOr ? 1 : 0));
+    }
   }
 
   private static class Not extends DomainMatchRule {
@@ -187,23 +390,352 @@ abstract public class DomainMatchRule {
     public boolean matches(String host) {
       return(!rule.matches(host));
     }
+
+    @Override
+    public boolean equals(Object o) {
+      return(o instanceof Not && ((Not)o).rule.equals(rule));
+    }
+
+    @Override
+    public int hashCode() {
+      return(~rule.hashCode());
+    }
   }
 
   private static class Regex extends DomainMatchRule {
     private final Pattern pattern;
+    // null if created from a Pattern
+    final String glob;
+    // Matchers are not thread-safe, but can be reset and reused
+    private final ThreadLocal<Matcher> matchers=new ThreadLocal<Matcher>() {
+      @Override
+      protected Matcher initialValue() {
+        return(pattern.matcher(""));
+      }
+    };
 
     Regex(String glob) {
-      this(Pattern.compile(glob.replaceAll("\\.", "\\\\.")
-        .replaceAll("\\*", "\\.\\*")));
+      this.pattern=Pattern.compile(glob.replaceAll("\\.", "\\\\.")
+        .replaceAll("\\*", "\\.\\*"));
+      this.glob=glob;
     }
 
     Regex(Pattern pattern) {
       this.pattern=pattern;
+      this.glob=null;
     }
 
     @Override
     public boolean matches(String host) {
-      return(pattern.matcher(host).matches());
+      return(matchers.get().reset(host).matches());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Regex)) {
+        return(false);
+      }
+
+      Regex other=(Regex)o;
+
+      return(other.pattern.pattern().equals(pattern.pattern()) &&
+        other.pattern.flags()==pattern.flags());
+    }
+
+    @Override
+    public int hashCode() {
+      return(pattern.pattern().hashCode());
+    }
+  }
+
+  /**
+   * Matches any of a set of globs, giving the same results as a Regex
+   * for each. Each glob is split at its last "*" into a head and a
+   * literal tail. The tails go into a trie of their characters, last
+   * character first, so a domain name is checked by walking it from
+   * the end, once, however many globs there are. Each node records
+   * whether a glob's tail ends there with no head (an exact match is
+   * needed), with a head that is just "*" (anything before the tail
+   * will do), or with some other head, which is matched against the
+   * rest of the domain name for just the globs with that tail.
+   */
+  private static class GlobSet extends DomainMatchRule {
+    // characters that mean something in a Regex made from a glob
+    private static final String METACHARACTERS="\\^$|?+()[]{}";
+    private final Node root=new Node("");
+    final Set<String> globs;
+
+    /**
+     * @return true if this glob means the same thing here as in a Regex
+     */
+    static boolean accepts(String glob) {
+      if (glob==null) {
+        return(false);
+      }
+
+      for (int i=0;i<glob.length();i++) {
+        char c=glob.charAt(i);
+
+        if (METACHARACTERS.indexOf(c)>=0 || isLineTerminator(c)) {
+          return(false);
+        }
+      }
+
+      return(true);
+    }
+
+    GlobSet(Collection<String> globs) {
+      this.globs=Collections.unmodifiableSet(new LinkedHashSet<>(globs));
+
+      for (String glob : this.globs) {
+        int star=glob.lastIndexOf('*');
+        Node node=add(glob.substring(star+1));
+
+        if (star<0) {
+          node.exact=true;
+        }
+        else {
+          String head=glob.substring(0, star+1);
+
+          if (isAllStars(head, 0)) {
+            node.anyPrefix=true;
+          }
+          else {
+            node.addHead(head);
+          }
+        }
+      }
+    }
+
+    @Override
+    public boolean matches(String host) {
+      // "*" in a Regex does not match these, and nothing else in a
+      // glob that we accept can
+      for (int i=0;i<host.length();i++) {
+        if (isLineTerminator(host.charAt(i))) {
+          return(false);
+        }
+      }
+
+      Node node=root;
+      int end=host.length();
+
+      while (true) {
+        if (node.anyPrefix || (end==0 && node.exact)) {
+          return(true);
+        }
+
+        for (String head : node.heads) {
+          if (headMatches(head, host, end)) {
+            return(true);
+          }
+        }
+
+        if (end==0) {
+          return(false);
+        }
+
+        node=node.getChild(host.charAt(end-1));
+
+        if (node==null) {
+          return(false);
+        }
+
+        int length=node.edge.length();
+
+        if (length>end || !host.regionMatches(end-length, node.edge, 0, length)) {
+          return(false);
+        }
+
+        end-=length;
+      }
+    }
+
+    /**
+     * @return the node for this tail, splitting or adding nodes as
+     * needed
+     */
+    private Node add(String tail) {
+      Node node=root;
+      int end=tail.length();
+
+      while (end>0) {
+        char key=tail.charAt(end-1);
+        Node child=node.getChild(key);
+
+        if (child==null) {
+          child=new Node(tail.substring(0, end));
+          node.putChild(key, child);
+
+          return(child);
+        }
+
+        String edge=child.edge;
+        int max=Math.min(end, edge.length());
+        int common=0;
+
+        while (common<max &&
+          tail.charAt(end-1-common)==edge.charAt(edge.length()-1-common)) {
+          common++;
+        }
+
+        if (common<edge.length()) {
+          Node middle=new Node(edge.substring(edge.length()-common));
+
+          child.edge=edge.substring(0, edge.length()-common);
+          middle.putChild(child.edge.charAt(child.edge.length()-1), child);
+          node.putChild(key, middle);
+          child=middle;
+        }
+
+        node=child;
+        end-=common;
+      }
+
+      return(node);
+    }
+
+    /**
+     * @return true if the head matches the first end characters of
+     * the host, backtracking to the latest "*" on a mismatch
+     */
+    private static boolean headMatches(String head, String host, int end) {
+      int h=0;
+      int i=0;
+      int star=-1;
+      int starMatch=0;
+
+      while (i<end) {
+        if (h<head.length() && head.charAt(h)=='*') {
+          star=h++;
+          starMatch=i;
+        }
+        else if (h<head.length() && head.charAt(h)==host.charAt(i)) {
+          h++;
+          i++;
+        }
+        else if (star>=0) {
+          h=star+1;
+          i=++starMatch;
+        }
+        else {
+          return(false);
+        }
+      }
+
+      return(isAllStars(head, h));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return(o instanceof GlobSet && ((GlobSet)o).globs.equals(globs));
+    }
+
+    @Override
+    public int hashCode() {
+      return(globs.hashCode());
+    }
+
+    private static boolean isAllStars(String s, int start) {
+      for (int i=start;i<s.length();i++) {
+        if (s.charAt(i)!='*') {
+          return(false);
+        }
+      }
+
+      return(true);
+    }
+
+    private static boolean isLineTerminator(char c) {
+      return(c=='\n' || c=='\r' || c=='\u0085' || c=='\u2028' ||
+        c=='\u2029');
+    }
+
+    private static class Node {
+      // characters leading here from the parent, in domain name order
+      String edge;
+      // children, keyed by the last character of their edge
+      private char[] keys=new char[0];
+      private Node[] children=new Node[0];
+      boolean exact;
+      boolean anyPrefix;
+      String[] heads=new String[0];
+
+      Node(String edge) {
+        this.edge=edge;
+      }
+
+      Node getChild(char key) {
+        for (int i=0;i<keys.length;i++) {
+          if (keys[i]==key) {
+            return(children[i]);
+          }
+        }
+
+        return(null);
+      }
+
+      void putChild(char key, Node child) {
+        for (int i=0;i<keys.length;i++) {
+          if (keys[i]==key) {
+            children[i]=child;
+
+            return;
+          }
+        }
+
+        keys=Arrays.copyOf(keys, keys.length+1);
+        children=Arrays.copyOf(children, children.length+1);
+        keys[keys.length-1]=key;
+        children[children.length-1]=child;
+      }
+
+      void addHead(String head) {
+        if (!Arrays.asList(heads).contains(head)) {
+          heads=Arrays.copyOf(heads, heads.length+1);
+          heads[heads.length-1]=head;
+        }
+      }
+    }
+  }
+
+  /**
+   * See cached(). The answers never change, so which ones are forgotten
+   * only affects how often we have to ask the rule again; we forget
+   * whichever comes first in the map, rather than tracking use.
+   */
+  private static class Cached extends DomainMatchRule {
+    private final DomainMatchRule rule;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, Boolean> results=
+      new ConcurrentHashMap<>();
+
+    Cached(DomainMatchRule rule, int maxEntries) {
+      this.rule=rule;
+      this.maxEntries=maxEntries;
+    }
+
+    @Override
+    public boolean matches(String host) {
+      Boolean result=results.get(host);
+
+      if (result==null) {
+        result=rule.matches(host);
+
+        while (results.size()>=maxEntries) {
+          Iterator<String> hosts=results.keySet().iterator();
+
+          if (!hosts.hasNext()) {
+            break;
+          }
+
+          results.remove(hosts.next());
+        }
+
+        results.put(host, result);
+      }
+
+      return(result);
     }
   }
 }
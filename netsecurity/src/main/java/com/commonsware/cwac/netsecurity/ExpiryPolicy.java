@@ -0,0 +1,67 @@
+/***
+  Copyright (c) 2014-2017 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The maxAge() and pruneExpired() settings from the Builder.
+ */
+class ExpiryPolicy {
+  private final long maxAgeMillis;
+  private final boolean pruneExpired;
+
+  ExpiryPolicy(long maxAgeMillis, boolean pruneExpired) {
+    this.maxAgeMillis=maxAgeMillis;
+    this.pruneExpired=pruneExpired;
+  }
+
+  /**
+   * @return the certificates to keep, which is the certs list itself
+   * if nothing has expired
+   */
+  List<X509Certificate> apply(MemorizationPersistence persistence,
+                              String host, List<X509Certificate> certs,
+                              long now) throws Exception {
+    if (certs.isEmpty()) {
+      return(certs);
+    }
+
+    if (maxAgeMillis>0) {
+      long savedAt=persistence.getSavedAt(host);
+
+      if (savedAt>0 && now-savedAt>maxAgeMillis) {
+        return(Collections.<X509Certificate>emptyList());
+      }
+    }
+
+    if (!pruneExpired) {
+      return(certs);
+    }
+
+    List<X509Certificate> kept=new ArrayList<>(certs.size());
+
+    for (X509Certificate cert : certs) {
+      if (cert.getNotAfter().getTime()>=now) {
+        kept.add(cert);
+      }
+    }
+
+    return(kept.size()==certs.size() ? certs : kept);
+  }
+}
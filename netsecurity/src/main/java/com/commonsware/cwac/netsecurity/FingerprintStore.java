@@ -0,0 +1,141 @@
+/***
+  Copyright (c) 2014-2017 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Store that accepts a chain if the SHA-256 fingerprint of its server
+ * certificate (or of that certificate's public key) is memorized.
+ * Only the first certificate in the chain is compared: it is the one
+ * whose key the server proved that it holds during the handshake,
+ * whereas the rest of the chain is not verified here and so could be
+ * anything.
+ */
+class FingerprintStore extends MemorizingStore {
+  private final boolean matchPublicKey;
+  private final MessageDigest digest;
+  private final List<X509Certificate> certs=new ArrayList<>();
+  private final HashSet<ByteBuffer> fingerprints=new HashSet<>();
+  private final HashSet<ByteBuffer> transientFingerprints=new HashSet<>();
+
+  // rough cost of the store, digest, and sets themselves
+  private static final int OVERHEAD=512;
+  // digest plus its ByteBuffer and set entry
+  private static final int FINGERPRINT_WEIGHT=96;
+
+  FingerprintStore(String host, MemorizationPersistence persistence,
+                   TransientFingerprints transients, boolean flushWrites,
+                   boolean matchPublicKey,
+                   List<X509Certificate> persistentCerts)
+    throws Exception {
+    super(host, persistence, transients, flushWrites);
+    this.matchPublicKey=matchPublicKey;
+    this.digest=MessageDigest.getInstance("SHA-256");
+
+    reset(persistentCerts);
+  }
+
+  @Override
+  CertificateException verify(X509Certificate[] chain, String authType) {
+    if (chain.length==0) {
+      return(new CertificateException("Empty certificate chain"));
+    }
+
+    try {
+      ByteBuffer fingerprint=fingerprint(chain[0]);
+
+      if (fingerprints.contains(fingerprint) ||
+        transientFingerprints.contains(fingerprint)) {
+        return(null);
+      }
+
+      return(new CertificateException("Fingerprint not memorized for "+host));
+    }
+    catch (CertificateException e) {
+      return(e);
+    }
+  }
+
+  @Override
+  boolean isEmpty() {
+    return(fingerprints.isEmpty() && transientFingerprints.isEmpty());
+  }
+
+  @Override
+  int weigh() throws Exception {
+    int result=OVERHEAD+
+      FINGERPRINT_WEIGHT*(fingerprints.size()+transientFingerprints.size());
+
+    for (X509Certificate cert : certs) {
+      result+=cert.getEncoded().length;
+    }
+
+    return(result);
+  }
+
+  @Override
+  void add(X509Certificate[] chain, boolean isTransient)
+    throws CertificateException {
+    for (X509Certificate cert : chain) {
+      if (isTransient) {
+        transientFingerprints.add(fingerprint(cert));
+      }
+      else if (fingerprints.add(fingerprint(cert)) || !certs.contains(cert)) {
+        certs.add(cert);
+      }
+    }
+  }
+
+  @Override
+  List<X509Certificate> getPersistentCertificates() {
+    return(new ArrayList<>(certs));
+  }
+
+  @Override
+  void init(List<X509Certificate> persistentCerts) throws Exception {
+    certs.clear();
+    fingerprints.clear();
+    transientFingerprints.clear();
+
+    for (X509Certificate cert : persistentCerts) {
+      certs.add(cert);
+      fingerprints.add(fingerprint(cert));
+    }
+  }
+
+  private ByteBuffer fingerprint(X509Certificate cert)
+    throws CertificateException {
+    return(fingerprint(digest, cert, matchPublicKey));
+  }
+
+  /**
+   * @return SHA-256 digest of the certificate, or of its public key
+   */
+  static ByteBuffer fingerprint(MessageDigest digest, X509Certificate cert,
+                                boolean matchPublicKey)
+    throws CertificateException {
+    byte[] encoded=
+      matchPublicKey ? cert.getPublicKey().getEncoded() : cert.getEncoded();
+
+    return(ByteBuffer.wrap(digest.digest(encoded)));
+  }
+}
@@ -0,0 +1,204 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import android.util.LruCache;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * SSLSocketFactory that binds each socket to the hostname that the socket
+ * is created for. The handshake for that socket will then use the
+ * hostname-aware checkServerTrusted() on the CompositeTrustManager,
+ * regardless of what thread winds up performing the handshake, so
+ * per-domain configuration works without setHost().
+ *
+ * Sockets created without a hostname (e.g., from an InetAddress) fall
+ * back to the CompositeTrustManager itself, and therefore to whatever
+ * was supplied to setHost() on the handshaking thread.
+ *
+ * Each hostname needs its own SSLContext, as older versions of Android
+ * do not tell the trust manager which socket it is checking. Only the
+ * most recently used hostnames keep theirs, so apps that talk to
+ * arbitrary hosts do not hold onto an SSLContext, and its session
+ * cache, for every one of them.
+ */
+class HostBindingSSLSocketFactory extends SSLSocketFactory {
+  static final int MAX_BOUND_HOSTS=32;
+  private final CompositeTrustManager trustManager;
+  private final SSLSocketFactory unbound;
+  private final LruCache<String, SSLSocketFactory> bound=
+    new LruCache<>(MAX_BOUND_HOSTS);
+
+  HostBindingSSLSocketFactory(CompositeTrustManager trustManager)
+    throws NoSuchAlgorithmException, KeyManagementException {
+    this.trustManager=trustManager;
+    this.unbound=buildFactory(trustManager);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String[] getDefaultCipherSuites() {
+    return(unbound.getDefaultCipherSuites());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String[] getSupportedCipherSuites() {
+    return(unbound.getSupportedCipherSuites());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Socket createSocket() throws IOException {
+    return(unbound.createSocket());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Socket createSocket(Socket s, String host, int port,
+                             boolean autoClose) throws IOException {
+    return(forHost(host).createSocket(s, host, port, autoClose));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    return(forHost(host).createSocket(host, port));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Socket createSocket(String host, int port, InetAddress localHost,
+                             int localPort) throws IOException {
+    return(forHost(host).createSocket(host, port, localHost, localPort));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Socket createSocket(InetAddress host, int port)
+    throws IOException {
+    return(unbound.createSocket(host, port));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Socket createSocket(InetAddress address, int port,
+                             InetAddress localAddress, int localPort)
+    throws IOException {
+    return(unbound.createSocket(address, port, localAddress, localPort));
+  }
+
+  private SSLSocketFactory forHost(String host) throws IOException {
+    if (host==null) {
+      return(unbound);
+    }
+
+    SSLSocketFactory result=bound.get(host);
+
+    if (result==null) {
+      try {
+        result=buildFactory(new HostBoundTrustManager(trustManager, host));
+      }
+      catch (GeneralSecurityException e) {
+        throw new IOException("Could not set up TLS for "+host, e);
+      }
+
+      // if another thread got here first, either factory will do
+      bound.put(host, result);
+    }
+
+    return(result);
+  }
+
+  private static SSLSocketFactory buildFactory(X509TrustManager tm)
+    throws NoSuchAlgorithmException, KeyManagementException {
+    SSLContext ssl=SSLContext.getInstance("TLS");
+
+    ssl.init(null, new X509TrustManager[] { tm }, null);
+
+    return(ssl.getSocketFactory());
+  }
+
+  /**
+   * Routes the hostname-unaware checkServerTrusted(), which is what
+   * the TLS stack calls, to the hostname-aware one, using the hostname
+   * that this trust manager was created for.
+   */
+  private static class HostBoundTrustManager implements X509Extensions {
+    private final X509Extensions delegate;
+    private final String host;
+
+    HostBoundTrustManager(X509Extensions delegate, String host) {
+      this.delegate=delegate;
+      this.host=host;
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain,
+                                   String authType)
+      throws CertificateException {
+      delegate.checkClientTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain,
+                                   String authType)
+      throws CertificateException {
+      delegate.checkServerTrusted(chain, authType, host);
+    }
+
+    @Override
+    public List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
+                                                    String authType,
+                                                    String host)
+      throws CertificateException {
+      return(delegate.checkServerTrusted(chain, authType, host));
+    }
+
+    @Override
+    public boolean isUserAddedCertificate(X509Certificate cert) {
+      return(delegate.isUserAddedCertificate(cert));
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return(delegate.getAcceptedIssuers());
+    }
+  }
+}
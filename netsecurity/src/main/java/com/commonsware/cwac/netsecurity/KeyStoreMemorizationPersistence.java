@@ -0,0 +1,208 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * MemorizationPersistence that keeps one KeyStore file per host in a
+ * directory, named after the host. This is the layout that
+ * MemorizingTrustManager used before LogMemorizationPersistence, which
+ * migrates these files automatically. Use this if you need to keep the
+ * files as KeyStores (e.g., to share them with other code).
+ */
+public class KeyStoreMemorizationPersistence implements MemorizationPersistence {
+  static final String TMP_SUFFIX=".tmp";
+  private final File dir;
+  private final char[] storePassword;
+  private final String storeType;
+
+  /**
+   * @param dir directory for the KeyStore files, used for nothing else
+   * @param storePassword passphrase for the KeyStore files
+   * @param storeType type of KeyStore files to use
+   */
+  public KeyStoreMemorizationPersistence(File dir, char[] storePassword,
+                                         String storeType) {
+    this.dir=dir;
+    this.storePassword=storePassword;
+    this.storeType=storeType;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  synchronized public List<String> getHosts() {
+    File[] files=dir.listFiles();
+    List<String> result=new ArrayList<>();
+
+    if (files!=null) {
+      Arrays.sort(files, new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs) {
+          long lhsModified=lhs.lastModified();
+          long rhsModified=rhs.lastModified();
+
+          return(lhsModified==rhsModified ? 0 : (lhsModified>rhsModified ? -1 : 1));
+        }
+      });
+
+      for (File file : files) {
+        if (file.isFile() && !file.getName().endsWith(TMP_SUFFIX)) {
+          result.add(file.getName());
+        }
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  synchronized public List<X509Certificate> load(String host)
+    throws IOException {
+    File store=new File(dir, host);
+
+    if (!store.exists()) {
+      return(Collections.emptyList());
+    }
+
+    return(readKeyStore(store, storePassword, storeType));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  synchronized public long getSavedAt(String host) {
+    return(new File(dir, host).lastModified());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  synchronized public void save(String host, List<X509Certificate> certs)
+    throws IOException {
+    try {
+      KeyStore keyStore=KeyStore.getInstance(storeType);
+
+      keyStore.load(null, storePassword);
+
+      for (X509Certificate cert : certs) {
+        keyStore.setCertificateEntry(cert.getSubjectDN().getName(), cert);
+      }
+
+      // write a new file and rename it over the old one, so a crash
+      // partway through leaves the old file intact
+
+      File tmp=new File(dir, host+TMP_SUFFIX);
+      FileOutputStream fos=new FileOutputStream(tmp);
+
+      try {
+        keyStore.store(fos, storePassword);
+        fos.flush();
+        fos.getFD().sync();
+      }
+      finally {
+        fos.close();
+      }
+
+      if (!tmp.renameTo(new File(dir, host))) {
+        tmp.delete();
+        throw new IOException("Could not save certificates for "+host);
+      }
+    }
+    catch (GeneralSecurityException e) {
+      throw new IOException("Could not save certificates for "+host, e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  synchronized public void remove(String host) {
+    new File(dir, host).delete();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void flush() {
+    // save() writes through
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long compact() {
+    // save() and remove() replace and delete whole files, so there is
+    // nothing left over
+    return(0);
+  }
+
+  /**
+   * @return the X.509 certificates in a KeyStore file
+   * @throws IOException if the file cannot be read as a KeyStore of
+   * this type with this password
+   */
+  static List<X509Certificate> readKeyStore(File store, char[] storePassword,
+                                            String storeType)
+    throws IOException {
+    try {
+      KeyStore keyStore=KeyStore.getInstance(storeType);
+      FileInputStream fis=new FileInputStream(store);
+
+      try {
+        keyStore.load(fis, storePassword);
+      }
+      finally {
+        fis.close();
+      }
+
+      List<X509Certificate> result=new ArrayList<>();
+
+      for (Enumeration<String> aliases=keyStore.aliases();
+           aliases.hasMoreElements();) {
+        Certificate cert=keyStore.getCertificate(aliases.nextElement());
+
+        if (cert instanceof X509Certificate) {
+          result.add((X509Certificate)cert);
+        }
+      }
+
+      return(result);
+    }
+    catch (GeneralSecurityException e) {
+      throw new IOException("Could not read "+store, e);
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/***
+  Copyright (c) 2014-2017 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Store that validates chains with TrustManagers built over KeyStores
+ * of the memorized certificates.
+ */
+class KeyStoreStore extends MemorizingStore {
+  private final String storeType;
+  private KeyStore keyStore;
+  private X509TrustManager storeTrustManager;
+  private KeyStore transientKeyStore;
+  private X509TrustManager transientTrustManager;
+
+  // rough cost of the KeyStores and TrustManagers themselves
+  private static final int OVERHEAD=2048;
+
+  KeyStoreStore(String host, MemorizationPersistence persistence,
+                TransientFingerprints transients, boolean flushWrites,
+                String storeType, List<X509Certificate> persistentCerts)
+    throws Exception {
+    super(host, persistence, transients, flushWrites);
+    this.storeType=storeType;
+
+    reset(persistentCerts);
+  }
+
+  @Override
+  CertificateException verify(X509Certificate[] chain, String authType) {
+    try {
+      storeTrustManager.checkServerTrusted(chain, authType);
+
+      return(null);
+    }
+    catch (CertificateException e) {
+      try {
+        transientTrustManager.checkServerTrusted(chain, authType);
+
+        return(null);
+      }
+      catch (CertificateException e2) {
+        return(e2);
+      }
+    }
+  }
+
+  @Override
+  boolean isEmpty() {
+    try {
+      return(keyStore.size()==0 && transientKeyStore.size()==0);
+    }
+    catch (KeyStoreException kse) {
+      // srsly?
+      return(false);
+    }
+  }
+
+  @Override
+  int weigh() throws Exception {
+    return(OVERHEAD+weigh(keyStore.aliases(), keyStore)+
+      weigh(transientKeyStore.aliases(), transientKeyStore));
+  }
+
+  @Override
+  void add(X509Certificate[] chain, boolean isTransient) throws Exception {
+    KeyStore target=isTransient ? transientKeyStore : keyStore;
+
+    for (X509Certificate cert : chain) {
+      String alias=cert.getSubjectDN().getName();
+
+      target.setCertificateEntry(alias, cert);
+    }
+
+    TrustManagerFactory tmf=TrustManagerFactory.getInstance("X509");
+
+    tmf.init(target);
+
+    if (isTransient) {
+      transientTrustManager=findX509TrustManager(tmf);
+    }
+    else {
+      storeTrustManager=findX509TrustManager(tmf);
+    }
+  }
+
+  @Override
+  List<X509Certificate> getPersistentCertificates()
+    throws KeyStoreException {
+    List<X509Certificate> result=new ArrayList<>();
+
+    for (Enumeration<String> aliases=keyStore.aliases();
+         aliases.hasMoreElements();) {
+      Certificate cert=keyStore.getCertificate(aliases.nextElement());
+
+      if (cert instanceof X509Certificate) {
+        result.add((X509Certificate)cert);
+      }
+    }
+
+    return(result);
+  }
+
+  @Override
+  void init(List<X509Certificate> persistentCerts) throws Exception {
+    transientKeyStore=KeyStore.getInstance(storeType);
+    transientKeyStore.load(null, null);
+
+    TrustManagerFactory tmf=TrustManagerFactory.getInstance("X509");
+
+    tmf.init(transientKeyStore);
+    transientTrustManager=findX509TrustManager(tmf);
+
+    keyStore=KeyStore.getInstance(storeType);
+    keyStore.load(null, null);
+
+    for (X509Certificate cert : persistentCerts) {
+      keyStore.setCertificateEntry(cert.getSubjectDN().getName(), cert);
+    }
+
+    tmf=TrustManagerFactory.getInstance("X509");
+    tmf.init(keyStore);
+    storeTrustManager=findX509TrustManager(tmf);
+  }
+
+  private X509TrustManager findX509TrustManager(TrustManagerFactory tmf) {
+    for (TrustManager t : tmf.getTrustManagers()) {
+      if (t instanceof X509TrustManager) {
+        return (X509TrustManager)t;
+      }
+    }
+
+    return(null);
+  }
+}
@@ -0,0 +1,748 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Default MemorizationPersistence, keeping all memorized certificates in
+ * a single append-only log file in a directory. Each save() or remove()
+ * appends one record, and an in-memory index points at the latest
+ * record for each host, so loading a host costs one read.
+ *
+ * Each record carries a CRC-32 checksum. When the log is opened, a
+ * record that is incomplete or fails its checksum (e.g., the process
+ * died partway through writing it) ends the log, and it and anything
+ * after it are discarded.
+ *
+ * Records that have been superseded are dropped by compaction, which
+ * rewrites the live records to a temporary file and renames it over
+ * the log. This happens automatically once superseded records take up
+ * more space than live ones, and can be requested via compact().
+ *
+ * Loads and other reads share a read lock, and read the log by position,
+ * so loads for different hosts run in parallel. save(), remove(), and
+ * compact() take the write lock.
+ *
+ * If the directory holds per-host KeyStore files from
+ * KeyStoreMemorizationPersistence (or older versions of this library),
+ * and a KeyStore password and type are supplied, those files are
+ * copied into the log the first time that it is used. The files are
+ * left in place, so an older version of the app still finds them, until
+ * deleteLegacyFiles() is called.
+ */
+public class LogMemorizationPersistence implements MemorizationPersistence {
+  static final String LOG_NAME="memorized.log";
+  static final String MIGRATED_NAME=LOG_NAME+".migrated";
+  private static final int MAGIC=0x4d544d4c;
+  private static final int VERSION=1;
+  private static final int HEADER_LENGTH=8;
+  private static final int RECORD_OVERHEAD=8;
+  private static final byte TYPE_SAVE=1;
+  private static final byte TYPE_REMOVE=2;
+  private static final long MIN_COMPACTION_WASTE=64*1024;
+  private final File dir;
+  private final File log;
+  private final char[] legacyPassword;
+  private final String legacyType;
+  private final ReadWriteLock lock=new ReentrantReadWriteLock();
+  private final HashMap<String, Entry> index=new HashMap<>();
+  private final ThreadLocal<CertificateFactory> certFactories=
+    new ThreadLocal<>();
+  private RandomAccessFile file;
+  private long liveBytes=0;
+
+  /**
+   * Constructor for a log that will not migrate KeyStore files.
+   *
+   * @param dir directory for the log, used for nothing else
+   */
+  public LogMemorizationPersistence(File dir) {
+    this(dir, null, null);
+  }
+
+  /**
+   * Constructor for a log that migrates any per-host KeyStore files
+   * that it finds in its directory.
+   *
+   * @param dir directory for the log, used for nothing else
+   * @param legacyPassword passphrase used for the KeyStore files
+   * @param legacyType type of the KeyStore files
+   */
+  public LogMemorizationPersistence(File dir, char[] legacyPassword,
+                                    String legacyType) {
+    this.dir=dir;
+    this.log=new File(dir, LOG_NAME);
+    this.legacyPassword=legacyPassword;
+    this.legacyType=legacyType;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<String> getHosts() throws IOException {
+    List<Map.Entry<String, Entry>> entries;
+
+    lockForReading();
+
+    try {
+      entries=new ArrayList<>(index.entrySet());
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+
+    Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+      @Override
+      public int compare(Map.Entry<String, Entry> lhs,
+                         Map.Entry<String, Entry> rhs) {
+        long lhsSaved=lhs.getValue().savedAt;
+        long rhsSaved=rhs.getValue().savedAt;
+
+        return(lhsSaved==rhsSaved ? 0 : (lhsSaved>rhsSaved ? -1 : 1));
+      }
+    });
+
+    List<String> result=new ArrayList<>(entries.size());
+
+    for (Map.Entry<String, Entry> entry : entries) {
+      result.add(entry.getKey());
+    }
+
+    return(result);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<X509Certificate> load(String host) throws IOException {
+    byte[] payload;
+
+    lockForReading();
+
+    try {
+      Entry entry=index.get(host);
+
+      if (entry==null) {
+        return(Collections.emptyList());
+      }
+
+      payload=new byte[entry.length-RECORD_OVERHEAD];
+      readFully(file.getChannel(), payload, entry.offset+RECORD_OVERHEAD);
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+
+    // decoding happens outside of the lock
+
+    DataInputStream in=new DataInputStream(new ByteArrayInputStream(payload));
+
+    in.readByte();
+    in.readLong();
+    in.readUTF();
+
+    int count=in.readInt();
+    List<X509Certificate> result=new ArrayList<>(count);
+
+    try {
+      for (int i=0;i<count;i++) {
+        byte[] der=new byte[in.readInt()];
+
+        in.readFully(der);
+        result.add((X509Certificate)getCertificateFactory()
+          .generateCertificate(new ByteArrayInputStream(der)));
+      }
+    }
+    catch (CertificateException e) {
+      throw new IOException("Could not decode certificates for "+host, e);
+    }
+
+    return(result);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getSavedAt(String host) throws IOException {
+    lockForReading();
+
+    try {
+      Entry entry=index.get(host);
+
+      return(entry==null ? 0 : entry.savedAt);
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void save(String host, List<X509Certificate> certs)
+    throws IOException {
+    if (certs.isEmpty()) {
+      remove(host);
+    }
+    else {
+      lock.writeLock().lock();
+
+      try {
+        ensureOpen();
+        append(host, certs, System.currentTimeMillis());
+        compactIfWasteful();
+      }
+      finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void remove(String host) throws IOException {
+    lock.writeLock().lock();
+
+    try {
+      ensureOpen();
+
+      if (index.containsKey(host)) {
+        ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+        DataOutputStream out=new DataOutputStream(bytes);
+
+        out.writeByte(TYPE_REMOVE);
+        out.writeLong(System.currentTimeMillis());
+        out.writeUTF(host);
+        out.flush();
+        appendRecord(bytes.toByteArray());
+        liveBytes-=index.remove(host).length;
+        compactIfWasteful();
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void flush() throws IOException {
+    lock.writeLock().lock();
+
+    try {
+      if (file!=null) {
+        file.getFD().sync();
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Rewrites the log with just the latest record for each host,
+   * dropping superseded and removed ones. The new log is written to a
+   * temporary file, synced, and renamed over the old one, so the log is
+   * intact even if the process dies partway through.
+   *
+   * @return number of bytes by which the log shrank
+   * @throws IOException
+   */
+  @Override
+  public long compact() throws IOException {
+    lock.writeLock().lock();
+
+    try {
+      ensureOpen();
+
+      return(compactLocked());
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Deletes the per-host KeyStore files that this log migrated, once
+   * you no longer need to be able to go back to a version of your app
+   * that reads them. Only files that can be read as KeyStores with the
+   * password and type given to the constructor are deleted.
+   *
+   * @return number of files deleted
+   * @throws IOException
+   */
+  public int deleteLegacyFiles() throws IOException {
+    lock.writeLock().lock();
+
+    try {
+      ensureOpen();
+
+      int result=0;
+
+      for (File legacy : findLegacyFiles().keySet()) {
+        if (legacy.delete()) {
+          result++;
+        }
+      }
+
+      return(result);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private long compactLocked() throws IOException {
+    long before=file.length();
+
+    File tmp=new File(dir, LOG_NAME+".tmp");
+    RandomAccessFile out=new RandomAccessFile(tmp, "rw");
+    HashMap<String, Entry> compacted=new HashMap<>();
+
+    try {
+      out.setLength(0);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+
+      for (Map.Entry<String, Entry> mapEntry : index.entrySet()) {
+        Entry entry=mapEntry.getValue();
+        byte[] record=new byte[entry.length];
+
+        readFully(file.getChannel(), record, entry.offset);
+        compacted.put(mapEntry.getKey(),
+          new Entry(out.getFilePointer(), entry.length, entry.savedAt));
+        out.write(record);
+      }
+
+      out.getFD().sync();
+    }
+    catch (IOException e) {
+      out.close();
+      tmp.delete();
+      throw e;
+    }
+
+    out.close();
+
+    long live=liveBytes;
+
+    // once the old log is closed, the index no longer describes an open
+    // file, so reset it; if anything below fails, ensureOpen() rebuilds
+    // it from whichever log is left
+    file.close();
+    file=null;
+    index.clear();
+    liveBytes=0;
+
+    if (!tmp.renameTo(log)) {
+      tmp.delete();
+      throw new IOException("Could not replace "+log);
+    }
+
+    RandomAccessFile raf=new RandomAccessFile(log, "rw");
+
+    raf.seek(raf.length());
+    file=raf;
+    index.putAll(compacted);
+    liveBytes=live;
+
+    return(before-file.length());
+  }
+
+  /**
+   * Closes the log file. It is reopened if this object is used again.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    lock.writeLock().lock();
+
+    try {
+      if (file!=null) {
+        file.close();
+        file=null;
+        index.clear();
+        liveBytes=0;
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Acquires the read lock, opening the log first if needed. The caller
+   * has to release the read lock.
+   */
+  private void lockForReading() throws IOException {
+    lock.readLock().lock();
+
+    if (file==null) {
+      lock.readLock().unlock();
+      lock.writeLock().lock();
+
+      try {
+        ensureOpen();
+        lock.readLock().lock();
+      }
+      finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Opens the log, if it is not open. Requires the write lock.
+   */
+  private void ensureOpen() throws IOException {
+    if (file!=null) {
+      return;
+    }
+
+    dir.mkdirs();
+
+    RandomAccessFile raf=new RandomAccessFile(log, "rw");
+
+    try {
+      if (raf.length()<HEADER_LENGTH) {
+        // new log, or one that died before its header was written
+        raf.setLength(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+      }
+      else if (raf.readInt()!=MAGIC || raf.readInt()!=VERSION) {
+        throw new IOException(log+" is not a memorization log");
+      }
+      else {
+        recover(raf);
+      }
+    }
+    catch (IOException e) {
+      raf.close();
+      index.clear();
+      liveBytes=0;
+      throw e;
+    }
+
+    file=raf;
+    migrate();
+  }
+
+  /**
+   * Rebuilds the index from the log, truncating the log at the first
+   * record that is incomplete or damaged.
+   */
+  private void recover(RandomAccessFile raf) throws IOException {
+    long end=raf.length();
+    long offset=HEADER_LENGTH;
+    DataInputStream in=
+      new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+    CRC32 crc=new CRC32();
+
+    try {
+      in.readFully(new byte[HEADER_LENGTH]);
+
+      while (offset+RECORD_OVERHEAD<=end) {
+        int length=in.readInt();
+        int checksum=in.readInt();
+
+        if (length<=0 || offset+RECORD_OVERHEAD+length>end) {
+          break;
+        }
+
+        byte[] payload=new byte[length];
+
+        in.readFully(payload);
+        crc.reset();
+        crc.update(payload);
+
+        if ((int)crc.getValue()!=checksum || !apply(payload, offset)) {
+          break;
+        }
+
+        offset+=RECORD_OVERHEAD+length;
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    if (offset<end) {
+      raf.setLength(offset);
+    }
+
+    raf.seek(offset);
+  }
+
+  private static void readFully(FileChannel channel, byte[] buffer,
+                                long position) throws IOException {
+    ByteBuffer bytes=ByteBuffer.wrap(buffer);
+
+    // positional reads leave the file pointer alone, so concurrent
+    // readers do not interfere with each other
+    while (bytes.hasRemaining()) {
+      if (channel.read(bytes, position+bytes.position())<0) {
+        throw new IOException("Unexpected end of log");
+      }
+    }
+  }
+
+  /**
+   * Updates the index for a record read from the log.
+   *
+   * @return false if the record makes no sense
+   */
+  private boolean apply(byte[] payload, long offset) {
+    DataInputStream in=new DataInputStream(new ByteArrayInputStream(payload));
+
+    try {
+      byte type=in.readByte();
+      long savedAt=in.readLong();
+      String host=in.readUTF();
+
+      if (type==TYPE_SAVE) {
+        index(host, new Entry(offset, RECORD_OVERHEAD+payload.length, savedAt));
+      }
+      else if (type==TYPE_REMOVE) {
+        Entry old=index.remove(host);
+
+        if (old!=null) {
+          liveBytes-=old.length;
+        }
+      }
+      else {
+        return(false);
+      }
+    }
+    catch (IOException e) {
+      return(false);
+    }
+
+    return(true);
+  }
+
+  private void index(String host, Entry entry) {
+    Entry old=index.put(host, entry);
+
+    liveBytes+=entry.length-(old==null ? 0 : old.length);
+  }
+
+  private void append(String host, List<X509Certificate> certs, long savedAt)
+    throws IOException {
+    ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+    DataOutputStream out=new DataOutputStream(bytes);
+
+    out.writeByte(TYPE_SAVE);
+    out.writeLong(savedAt);
+    out.writeUTF(host);
+    out.writeInt(certs.size());
+
+    try {
+      for (X509Certificate cert : certs) {
+        byte[] der=cert.getEncoded();
+
+        out.writeInt(der.length);
+        out.write(der);
+      }
+    }
+    catch (CertificateEncodingException e) {
+      throw new IOException("Could not encode certificates for "+host, e);
+    }
+
+    out.flush();
+
+    byte[] payload=bytes.toByteArray();
+    long offset=appendRecord(payload);
+
+    index(host, new Entry(offset, RECORD_OVERHEAD+payload.length, savedAt));
+  }
+
+  private long appendRecord(byte[] payload) throws IOException {
+    CRC32 crc=new CRC32();
+
+    crc.update(payload);
+
+    ByteArrayOutputStream bytes=
+      new ByteArrayOutputStream(RECORD_OVERHEAD+payload.length);
+    DataOutputStream out=new DataOutputStream(bytes);
+
+    out.writeInt(payload.length);
+    out.writeInt((int)crc.getValue());
+    out.write(payload);
+    out.flush();
+
+    long offset=file.length();
+
+    file.seek(offset);
+
+    try {
+      writeRecord(file, bytes.toByteArray());
+    }
+    catch (IOException e) {
+      // a torn record would make recover() drop everything after it,
+      // including later records that were reported as saved
+      try {
+        truncate(file, offset);
+      }
+      catch (IOException e2) {
+        // let ensureOpen() rebuild the index from whatever is on disk
+        try {
+          file.close();
+        }
+        catch (IOException e3) {
+          // already failing
+        }
+
+        file=null;
+        index.clear();
+        liveBytes=0;
+      }
+
+      throw e;
+    }
+
+    return(offset);
+  }
+
+  // package-private for testing by FailingLogMemorizationPersistence
+  void writeRecord(RandomAccessFile raf, byte[] record) throws IOException {
+    raf.write(record);
+  }
+
+  // package-private for testing by FailingLogMemorizationPersistence
+  void truncate(RandomAccessFile raf, long length) throws IOException {
+    raf.setLength(length);
+  }
+
+  private void compactIfWasteful() throws IOException {
+    long waste=file.length()-HEADER_LENGTH-liveBytes;
+
+    if (waste>MIN_COMPACTION_WASTE && waste>liveBytes) {
+      compactLocked();
+    }
+  }
+
+  /**
+   * Copies any KeyStore files into the log, once. A marker file records
+   * that this has been done, so that hosts removed from the log later
+   * are not brought back from the KeyStore files, which are kept. If the
+   * process dies partway through, the next open picks up where this
+   * left off.
+   */
+  private void migrate() throws IOException {
+    File marker=new File(dir, MIGRATED_NAME);
+
+    if (legacyType==null || marker.exists()) {
+      return;
+    }
+
+    for (Map.Entry<File, List<X509Certificate>> legacy :
+      findLegacyFiles().entrySet()) {
+      File candidate=legacy.getKey();
+      List<X509Certificate> certs=legacy.getValue();
+
+      if (!certs.isEmpty() && !index.containsKey(candidate.getName())) {
+        append(candidate.getName(), certs, candidate.lastModified());
+      }
+    }
+
+    file.getFD().sync();
+
+    if (!marker.createNewFile() && !marker.exists()) {
+      throw new IOException("Could not create "+marker);
+    }
+  }
+
+  /**
+   * @return the KeyStore files in the directory, with their certificates
+   */
+  private Map<File, List<X509Certificate>> findLegacyFiles() {
+    Map<File, List<X509Certificate>> result=new HashMap<>();
+    File[] files=dir.listFiles();
+
+    if (legacyType!=null && files!=null) {
+      for (File candidate : files) {
+        String name=candidate.getName();
+
+        if (candidate.isFile() && !name.startsWith(LOG_NAME) &&
+          !name.endsWith(KeyStoreMemorizationPersistence.TMP_SUFFIX)) {
+          try {
+            result.put(candidate,
+              KeyStoreMemorizationPersistence.readKeyStore(candidate,
+                legacyPassword, legacyType));
+          }
+          catch (IOException e) {
+            // not one of ours, so leave it alone
+          }
+        }
+      }
+    }
+
+    return(result);
+  }
+
+  private CertificateFactory getCertificateFactory()
+    throws CertificateException {
+    CertificateFactory result=certFactories.get();
+
+    if (result==null) {
+      result=CertificateFactory.getInstance("X.509");
+      certFactories.set(result);
+    }
+
+    return(result);
+  }
+
+  private static class Entry {
+    final long offset;
+    final int length;
+    final long savedAt;
+
+    Entry(long offset, int length, long savedAt) {
+      this.offset=offset;
+      this.length=length;
+      this.savedAt=savedAt;
+    }
+  }
+}
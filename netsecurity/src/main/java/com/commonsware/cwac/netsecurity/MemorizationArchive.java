@@ -0,0 +1,271 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Stream format for moving memorized certificates in and out of a
+ * MemorizingTrustManager in bulk, via exportTo() and importFrom(). Use
+ * Writer to create a stream (e.g., to provision devices with a set of
+ * certificates) and Reader to read one. Entries are read and written
+ * one at a time, so a stream can hold any number of hosts.
+ *
+ * The stream is a header, then for each host a marker byte, the host
+ * name, and its DER-encoded certificates, then an end marker.
+ */
+public class MemorizationArchive {
+  private static final int MAGIC=0x4d544d58;
+  private static final int VERSION=1;
+  private static final byte ENTRY=1;
+  private static final byte END=0;
+  // far larger than any real certificate, but small enough that a
+  // damaged length cannot exhaust the heap
+  static final int MAX_CERTIFICATE_LENGTH=64*1024;
+
+  /**
+   * The certificates memorized for one host.
+   */
+  public static class Entry {
+    private final String host;
+    private final List<X509Certificate> certs;
+
+    /**
+     * @param host the host
+     * @param certs the certificates memorized for that host
+     */
+    public Entry(String host, List<X509Certificate> certs) {
+      this.host=host;
+      this.certs=Collections.unmodifiableList(new ArrayList<>(certs));
+    }
+
+    /**
+     * @return the host
+     */
+    public String getHost() {
+      return(host);
+    }
+
+    /**
+     * @return the certificates memorized for the host
+     */
+    public List<X509Certificate> getCertificates() {
+      return(certs);
+    }
+  }
+
+  /**
+   * Writes a stream of entries. Call finish() when done, which ends
+   * the stream but does not close the underlying OutputStream.
+   */
+  public static class Writer {
+    private final DataOutputStream out;
+
+    /**
+     * @param out where the entries should go
+     * @throws IOException
+     */
+    public Writer(OutputStream out) throws IOException {
+      this.out=new DataOutputStream(new BufferedOutputStream(out));
+      this.out.writeInt(MAGIC);
+      this.out.writeInt(VERSION);
+    }
+
+    /**
+     * @param host the host
+     * @param certs the certificates memorized for that host
+     * @throws IOException
+     */
+    public void write(String host, List<X509Certificate> certs)
+      throws IOException {
+      out.writeByte(ENTRY);
+      out.writeUTF(host);
+      out.writeInt(certs.size());
+
+      try {
+        for (X509Certificate cert : certs) {
+          byte[] der=cert.getEncoded();
+
+          out.writeInt(der.length);
+          out.write(der);
+        }
+      }
+      catch (CertificateException e) {
+        throw new IOException("Could not encode certificates for "+host, e);
+      }
+    }
+
+    /**
+     * Ends the stream and flushes it.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+      out.writeByte(END);
+      out.flush();
+    }
+  }
+
+  /**
+   * Reads a stream of entries written by a Writer. This does not close
+   * the underlying InputStream.
+   */
+  public static class Reader {
+    private final DataInputStream in;
+    private final CertificateFactory certFactory;
+    private boolean done=false;
+
+    /**
+     * @param in where the entries come from
+     * @throws IOException if the stream does not start with the
+     * expected header
+     */
+    public Reader(InputStream in) throws IOException {
+      this.in=new DataInputStream(new BufferedInputStream(in));
+
+      if (this.in.readInt()!=MAGIC || this.in.readInt()!=VERSION) {
+        throw new IOException("Not a memorization archive");
+      }
+
+      try {
+        certFactory=CertificateFactory.getInstance("X.509");
+      }
+      catch (CertificateException e) {
+        throw new IOException("Could not read certificates", e);
+      }
+    }
+
+    /**
+     * @return the next entry, or null at the end of the stream
+     * @throws IOException if the stream is damaged or ends early
+     */
+    public Entry read() throws IOException {
+      if (done) {
+        return(null);
+      }
+
+      byte marker=in.readByte();
+
+      if (marker==END) {
+        done=true;
+
+        return(null);
+      }
+      else if (marker!=ENTRY) {
+        throw new IOException("Unexpected marker in memorization archive: "+marker);
+      }
+
+      String host=in.readUTF();
+      int count=in.readInt();
+
+      if (count<0) {
+        throw new IOException("Bad certificate count for "+host);
+      }
+
+      List<X509Certificate> certs=new ArrayList<>(Math.min(count, 16));
+
+      try {
+        for (int i=0;i<count;i++) {
+          int length=in.readInt();
+
+          if (length<0 || length>MAX_CERTIFICATE_LENGTH) {
+            throw new IOException("Bad certificate length for "+host);
+          }
+
+          byte[] der=new byte[length];
+
+          in.readFully(der);
+          certs.add((X509Certificate)certFactory
+            .generateCertificate(new ByteArrayInputStream(der)));
+        }
+      }
+      catch (CertificateException e) {
+        throw new IOException("Could not decode certificates for "+host, e);
+      }
+
+      return(new Entry(host, certs));
+    }
+  }
+
+  /**
+   * Adapts a Reader to an Iterator, for importFrom(). As an Iterator
+   * cannot throw an IOException, problems in reading are thrown as a
+   * ReadException wrapping it, for the caller to unwrap.
+   */
+  static class ReaderIterator implements Iterator<Entry> {
+    private final Reader reader;
+    private Entry next;
+    private boolean fetched=false;
+
+    ReaderIterator(Reader reader) {
+      this.reader=reader;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (!fetched) {
+        try {
+          next=reader.read();
+        }
+        catch (IOException e) {
+          throw new ReadException(e);
+        }
+
+        fetched=true;
+      }
+
+      return(next!=null);
+    }
+
+    @Override
+    public Entry next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      fetched=false;
+
+      return(next);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    static class ReadException extends RuntimeException {
+      ReadException(IOException cause) {
+        super(cause);
+      }
+
+      @Override
+      public synchronized IOException getCause() {
+        return((IOException)super.getCause());
+      }
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+/**
+ * A listener interface to use with addMemorizationListener() on
+ * MemorizingTrustManager, to find out when memorized certificates
+ * change. With shareStores() on the Builder, listeners hear about
+ * changes made through any MemorizingTrustManager sharing the same
+ * certificates, not just the one that they were added to. Listeners
+ * are called on the thread that
+ * made the change, which may be in the middle of an SSL handshake, so
+ * do not do anything slow here.
+ */
+public interface MemorizationListener {
+  /**
+   * Called after certificates are memorized for a host, by memorize(),
+   * memorizeForNow(), importFrom(), or trust on first use
+   *
+   * @param host host whose certificates were memorized
+   * @param persistent false for memorizeForNow(), true otherwise
+   */
+  void onMemorized(String host, boolean persistent);
+
+  /**
+   * Called after clear() or clearAll()
+   *
+   * @param host host whose certificates were cleared, or null for
+   *             clearAll()
+   * @param persistent true if persistent certificates were cleared,
+   *                   false if only memorizeForNow() ones were
+   */
+  void onCleared(String host, boolean persistent);
+}
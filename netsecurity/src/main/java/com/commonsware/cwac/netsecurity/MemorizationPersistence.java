@@ -0,0 +1,86 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+/**
+ * Where a MemorizingTrustManager keeps the certificates passed to
+ * memorize(), so that they survive process restarts. The default is
+ * LogMemorizationPersistence; KeyStoreMemorizationPersistence offers
+ * the original one-KeyStore-per-host layout. Use persistTo() on
+ * MemorizingTrustManager.Builder to supply your own.
+ *
+ * Implementations need to be thread-safe.
+ */
+public interface MemorizationPersistence {
+  /**
+   * @return the hosts that have memorized certificates, most recently
+   * saved first
+   * @throws IOException
+   */
+  List<String> getHosts() throws IOException;
+
+  /**
+   * @param host host whose certificates are needed
+   * @return the certificates memorized for this host, or an empty list
+   * if there are none
+   * @throws IOException
+   */
+  List<X509Certificate> load(String host) throws IOException;
+
+  /**
+   * @param host host whose certificates are of interest
+   * @return when the certificates for this host were last saved, in
+   * milliseconds since the epoch, or 0 if there are none or this is not
+   * known
+   * @throws IOException
+   */
+  long getSavedAt(String host) throws IOException;
+
+  /**
+   * Replaces the certificates memorized for this host. The change
+   * may not be durable until flush() is called.
+   *
+   * @param host host whose certificates are being memorized
+   * @param certs all of the certificates now memorized for this host
+   * @throws IOException
+   */
+  void save(String host, List<X509Certificate> certs) throws IOException;
+
+  /**
+   * Removes all certificates memorized for this host. The change
+   * may not be durable until flush() is called.
+   *
+   * @param host host whose certificates should be forgotten
+   * @throws IOException
+   */
+  void remove(String host) throws IOException;
+
+  /**
+   * Makes all earlier save() and remove() calls durable.
+   *
+   * @throws IOException
+   */
+  void flush() throws IOException;
+
+  /**
+   * Reclaims storage still used by certificates that were replaced or
+   * removed, if this implementation does not do that as it goes.
+   *
+   * @return number of bytes reclaimed
+   * @throws IOException
+   */
+  long compact() throws IOException;
+}
@@ -0,0 +1,255 @@
+/***
+  Copyright (c) 2014-2017 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * The memorized certificates for one host, as held in the store cache,
+ * and the checks of chains against them. KeyStoreStore and
+ * FingerprintStore differ in how they hold and check certificates.
+ */
+abstract class MemorizingStore {
+  final String host;
+  private final MemorizationPersistence persistence;
+  private final TransientFingerprints transients;
+  private final boolean flushWrites;
+  private int weight;
+  // true if memorizeForNow() certificates for this host were dropped
+  // from this store, or never loaded into it, so transients may know
+  // of ones that this store does not
+  private boolean transientsLost;
+  // size the store cache has counted for us, guarded by the cache
+  int chargedWeight;
+
+  MemorizingStore(String host, MemorizationPersistence persistence,
+                  TransientFingerprints transients, boolean flushWrites) {
+    this.host=host;
+    this.persistence=persistence;
+    this.transients=transients;
+    this.flushWrites=flushWrites;
+    this.transientsLost=transients.hasHost(host);
+  }
+
+  /**
+   * @return null if the chain is trusted, otherwise the reason why not
+   */
+  abstract CertificateException verify(X509Certificate[] chain,
+                                       String authType);
+
+  /**
+   * @return true if nothing is memorized for this host, either
+   * persistently or transiently
+   */
+  abstract boolean isEmpty();
+
+  /**
+   * @return approximate size of this store in memory, in bytes
+   */
+  abstract int weigh() throws Exception;
+
+  /**
+   * Adds the chain to the persistent (memorize()) or transient
+   * (memorizeForNow()) certificates.
+   */
+  abstract void add(X509Certificate[] chain, boolean isTransient)
+    throws Exception;
+
+  /**
+   * @return all persistent certificates, to be saved
+   */
+  abstract List<X509Certificate> getPersistentCertificates()
+    throws Exception;
+
+  /**
+   * Resets the transient certificates and replaces the persistent
+   * ones.
+   */
+  abstract void init(List<X509Certificate> persistentCerts)
+    throws Exception;
+
+  synchronized int getWeight() {
+    return(weight);
+  }
+
+  /**
+   * The noTOFU() setting is passed in, rather than being part of the
+   * store, as MemorizingTrustManagers sharing the store may differ.
+   *
+   * @return true if the chain was memorized, as nothing was memorized
+   * for this host before and noTOFU is false
+   */
+  synchronized boolean checkServerTrusted(X509Certificate[] chain,
+                                          String authType, boolean noTOFU)
+    throws CertificateException {
+    CertificateException failure=verify(chain, authType);
+
+    if (failure==null) {
+      return(false);
+    }
+
+    // this store may have been evicted and reloaded since
+    // memorizeForNow(), losing its transient certificates; if so, and
+    // the server certificate is one of them, put it back and check
+    // again, so the chain gets the same checks as it did before
+    if (transientsLost && chain.length>0 &&
+      transients.contains(host, chain[0])) {
+      try {
+        add(new X509Certificate[] {chain[0]}, true);
+        updateWeight();
+      }
+      catch (Exception e) {
+        throw new CertificateException("Problem while restoring", e);
+      }
+
+      failure=verify(chain, authType);
+
+      if (failure==null) {
+        return(false);
+      }
+    }
+
+    if (isEmpty() && !transients.hasHost(host)) {
+      if (!noTOFU) {
+        try {
+          memorize(chain);
+          return(true);
+        }
+        catch (Exception e4) {
+          throw new CertificateException("Problem while memorizing", e4);
+        }
+      }
+
+      throw new CertificateNotMemorizedException(chain, host);
+    }
+
+    throw new MemorizationMismatchException(chain, host, failure);
+  }
+
+  synchronized void memorize(X509Certificate[] chain)
+    throws Exception {
+    memorize(chain, flushWrites);
+  }
+
+  synchronized void memorize(X509Certificate[] chain, boolean flush)
+    throws Exception {
+    add(chain, false);
+    updateWeight();
+    persistence.save(host, getPersistentCertificates());
+
+    if (flush) {
+      persistence.flush();
+    }
+  }
+
+  synchronized void memorizeForNow(X509Certificate[] chain)
+    throws Exception {
+    add(chain, true);
+    updateWeight();
+    transients.add(host, chain);
+  }
+
+  synchronized void clear(boolean clearPersistent) throws Exception {
+    if (clearPersistent) {
+      persistence.remove(host);
+
+      if (flushWrites) {
+        persistence.flush();
+      }
+    }
+
+    transients.remove(host);
+    reset(persistence.load(host));
+    transientsLost=false;
+  }
+
+  /**
+   * Applies the expiry policy to the persistent certificates. Note
+   * that if any are removed, this store's transient certificates are
+   * reset as well, leaving just their fingerprints in transients.
+   *
+   * @return true if any certificates were removed
+   */
+  synchronized boolean prune(ExpiryPolicy expiry, long now,
+                             MemorizingTrustManager.SweepResult result)
+    throws Exception {
+    List<X509Certificate> certs=getPersistentCertificates();
+    List<X509Certificate> kept=expiry.apply(persistence, host, certs, now);
+
+    if (kept!=certs) {
+      replace(persistence, host, kept, false);
+      reset(kept);
+      transientsLost=transients.hasHost(host);
+      result.record(certs, kept);
+
+      return(true);
+    }
+
+    return(false);
+  }
+
+  void reset(List<X509Certificate> persistentCerts) throws Exception {
+    init(persistentCerts);
+    updateWeight();
+  }
+
+  private void updateWeight() {
+    try {
+      weight=weigh();
+    }
+    catch (Exception e) {
+      // leave the old estimate
+    }
+  }
+
+  static int weigh(Enumeration<String> aliases, KeyStore keyStore)
+    throws Exception {
+    int result=0;
+
+    while (aliases.hasMoreElements()) {
+      Certificate cert=keyStore.getCertificate(aliases.nextElement());
+
+      if (cert!=null) {
+        result+=cert.getEncoded().length;
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * Saves the certificates for this host, or removes the host if there
+   * are none.
+   */
+  static void replace(MemorizationPersistence persistence,
+                              String host, List<X509Certificate> certs,
+                              boolean flush) throws Exception {
+    if (certs.isEmpty()) {
+      persistence.remove(host);
+    }
+    else {
+      persistence.save(host, certs);
+    }
+
+    if (flush) {
+      persistence.flush();
+    }
+  }
+}
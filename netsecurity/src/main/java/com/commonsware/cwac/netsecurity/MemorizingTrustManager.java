@@ -14,19 +14,27 @@
 
 package com.commonsware.cwac.netsecurity;
 
-import android.util.LruCache;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.KeyStore;
-import java.security.KeyStoreException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implementation of a memorizing trust manager, inspired by
@@ -52,25 +60,33 @@ import javax.net.ssl.X509TrustManager;
  * Use MemorizingTrustManager.Builder to create instances of this.
  */
 public class MemorizingTrustManager implements X509Extensions {
-  private final File workingDir;
-  private final char[] storePassword;
-  private final String storeType;
+  private final MemorizationPersistence persistence;
   private final boolean noTOFU;
-  private final LruCache<String, MemorizingStore> stores;
+  private final StoreCache cache;
+  private final int preloadLimit;
+  private final TransientFingerprints transients;
+  private final ExpiryPolicy expiry;
+  private final SharedState shared;
   private final DomainMatchRule domainMatchRule;
   private final boolean onlySingleItemChains;
+  private final boolean writeBehind;
+  private final CopyOnWriteArrayList<TrustRevocationListener> revocationListeners=
+    new CopyOnWriteArrayList<>();
+  private final CopyOnWriteArrayList<MemorizationListener> memorizationListeners=
+    new CopyOnWriteArrayList<>();
 
-  private MemorizingTrustManager(File workingDir, char[] storePassword,
-                                 String storeType, boolean noTOFU,
-                                 int cacheSize, DomainMatchRule domainMatchRule,
-                                 boolean onlySingleItemChains) {
-    this.workingDir=workingDir;
-    this.storePassword=storePassword;
-    this.storeType=storeType;
-    this.noTOFU=noTOFU;
-    this.stores=new LruCache<>(cacheSize);
-    this.domainMatchRule=domainMatchRule;
-    this.onlySingleItemChains=onlySingleItemChains;
+  private MemorizingTrustManager(Builder builder, SharedState shared) {
+    this.shared=shared;
+    this.persistence=shared.persistence;
+    this.cache=shared.cache;
+    this.transients=shared.transients;
+    this.noTOFU=builder.noTOFU;
+    this.preloadLimit=
+      builder.cacheSizeBytes>0 ? Integer.MAX_VALUE : builder.cacheSize;
+    this.domainMatchRule=builder.domainMatchRule;
+    this.onlySingleItemChains=builder.onlySingleItemChains;
+    this.writeBehind=builder.writeBehindExecutor!=null;
+    this.expiry=new ExpiryPolicy(builder.maxAgeMillis, builder.pruneExpired);
   }
 
   /*
@@ -112,7 +128,20 @@ public class MemorizingTrustManager implements X509Extensions {
     if ((!onlySingleItemChains || chain.length==1) &&
       (domainMatchRule==null || domainMatchRule.matches(host))) {
       try {
-        getStoreForHost(host).checkServerTrusted(chain, authType);
+        MemorizingStore store=noTOFU ? cache.find(host) : cache.get(host);
+
+        if (store==null) {
+          throw new CertificateNotMemorizedException(chain, host);
+        }
+
+        if (store.checkServerTrusted(chain, authType, noTOFU)) {
+          // trust on first use
+          cache.memorizations.incrementAndGet();
+          cache.forgetUnmemorized(host);
+          fireMemorized(host, true);
+        }
+
+        cache.recharge(host, store);
       }
       catch (Exception e) {
         if (e instanceof CertificateNotMemorizedException ||
@@ -154,7 +183,13 @@ public class MemorizingTrustManager implements X509Extensions {
    */
   public void memorize(MemorizationException ex)
     throws Exception {
-    getStoreForHost(ex.host).memorize(ex.chain);
+    MemorizingStore store=cache.get(ex.host);
+
+    cache.memorizations.incrementAndGet();
+    store.memorize(ex.chain);
+    cache.forgetUnmemorized(ex.host);
+    cache.recharge(ex.host, store);
+    fireMemorized(ex.host, true);
   }
 
   /**
@@ -170,15 +205,22 @@ public class MemorizingTrustManager implements X509Extensions {
    * supplying the CertificateNotMemorizedException. Once
    * your process is terminated, this cached certificate is
    * lost, and you will get a CertificateNotMemorizedException
-   * again later on. Also, this class only caches a certain
-   * number of domains' worth of certificates, so if you are
-   * hitting a wide range of sites, the certificate may be lost.
+   * again later on. If the domain's certificates are pushed
+   * out of the in-memory cache, the fingerprint of this
+   * certificate is retained, so it is still trusted, though
+   * only when it is the server's own certificate.
    *
    * @param ex  exception with details of the certificate to be memoized
    */
-  synchronized public void memorizeForNow(MemorizationException ex)
+  public void memorizeForNow(MemorizationException ex)
     throws Exception {
-    getStoreForHost(ex.host).memorizeForNow(ex.chain);
+    MemorizingStore store=cache.get(ex.host);
+
+    cache.memorizations.incrementAndGet();
+    store.memorizeForNow(ex.chain);
+    cache.forgetUnmemorized(ex.host);
+    cache.recharge(ex.host, store);
+    fireMemorized(ex.host, false);
   }
 
   /**
@@ -199,7 +241,12 @@ public class MemorizingTrustManager implements X509Extensions {
    */
   public void clear(String host, boolean clearPersistent)
     throws Exception {
-    getStoreForHost(host).clear(clearPersistent);
+    MemorizingStore store=cache.get(host);
+
+    store.clear(clearPersistent);
+    cache.recharge(host, store);
+    fireTrustRevoked();
+    fireCleared(host, clearPersistent);
   }
 
   /**
@@ -216,26 +263,372 @@ public class MemorizingTrustManager implements X509Extensions {
    *                        clear memorizeForNow()
    * @throws Exception
    */
-  synchronized public void clearAll(boolean clearPersistent) throws Exception {
-    for (String host : stores.snapshot().keySet()) {
-      clear(host, clearPersistent);
+  public void clearAll(boolean clearPersistent) throws Exception {
+    Set<String> cached=cache.snapshot().keySet();
+
+    for (String host : cached) {
+      MemorizingStore store=cache.get(host);
+
+      store.clear(clearPersistent);
+      cache.recharge(host, store);
+    }
+
+    if (clearPersistent) {
+      // hosts that were never loaded, or were evicted, are only on disk
+      for (String host : persistence.getHosts()) {
+        if (!cached.contains(host)) {
+          cache.clearUncached(host);
+        }
+      }
+
+      if (!writeBehind) {
+        persistence.flush();
+      }
+    }
+
+    transients.clear();
+    fireTrustRevoked();
+    fireCleared(null, clearPersistent);
+  }
+
+  /**
+   * Adds a listener to be told when memorized certificates change,
+   * through this MemorizingTrustManager or, with shareStores(), any
+   * other one sharing its certificates.
+   *
+   * @param listener the listener to add
+   */
+  public void addMemorizationListener(MemorizationListener listener) {
+    memorizationListeners.add(listener);
+  }
+
+  /**
+   * Removes a listener added by addMemorizationListener().
+   *
+   * @param listener the listener to remove
+   */
+  public void removeMemorizationListener(MemorizationListener listener) {
+    memorizationListeners.remove(listener);
+  }
+
+  /**
+   * @return a snapshot of the statistics for the in-memory caches,
+   * which with shareStores() cover every MemorizingTrustManager
+   * sharing them
+   */
+  public CacheStats getCacheStats() {
+    return(cache.getStats());
+  }
+
+  /**
+   * Removes memorized certificates that have expired, per the maxAge()
+   * and pruneExpired() settings on the Builder, then compacts the
+   * persistent storage. This performs disk I/O and therefore should be
+   * done on a background thread; see sweepEvery() on the Builder to
+   * have this done periodically.
+   *
+   * Expired certificates are also dropped whenever a domain's
+   * certificates are loaded, so this is mostly about reclaiming space
+   * for domains that have not been contacted recently.
+   *
+   * @return what was removed and reclaimed
+   * @throws Exception if there is a problem in updating the certificates
+   */
+  public SweepResult sweep() throws Exception {
+    long start=SystemClock.elapsedRealtime();
+    long now=System.currentTimeMillis();
+    SweepResult result=new SweepResult();
+    Map<String, MemorizingStore> cached=cache.snapshot();
+    boolean removed=false;
+
+    try {
+      for (String host : persistence.getHosts()) {
+        MemorizingStore store=cached.get(host);
+
+        if (store==null) {
+          removed|=cache.sweepUncached(host, now, result);
+        }
+        else {
+          removed|=store.prune(expiry, now, result);
+        }
+      }
+    }
+    finally {
+      if (removed) {
+        fireTrustRevoked();
+      }
+    }
+
+    persistence.flush();
+    result.storageBytesReclaimed=persistence.compact();
+    result.elapsedMillis=SystemClock.elapsedRealtime()-start;
+
+    return(result);
+  }
+
+  /**
+   * Memorizes certificates for many hosts at once, as if memorize()
+   * had been called for each, adding to any certificates already
+   * memorized for those hosts. Changes are flushed to disk once every
+   * batchSize hosts and at the end, rather than once per host. This
+   * performs disk I/O and therefore should be done on a background
+   * thread.
+   *
+   * @param entries the hosts and their certificates
+   * @param batchSize number of hosts to import between flushes
+   * @return number of hosts imported
+   * @throws Exception if there is a problem in memorizing the certificates
+   */
+  public int importFrom(Iterator<MemorizationArchive.Entry> entries,
+                        int batchSize) throws Exception {
+    if (batchSize<=0) {
+      throw new IllegalArgumentException("Please provide a sensible batch size");
+    }
+
+    int count=0;
+
+    while (entries.hasNext()) {
+      MemorizationArchive.Entry entry=entries.next();
+
+      cache.importHost(entry.getHost(), entry.getCertificates());
+      fireMemorized(entry.getHost(), true);
+
+      if (++count % batchSize==0) {
+        persistence.flush();
+      }
+    }
+
+    persistence.flush();
+
+    return(count);
+  }
+
+  /**
+   * Memorizes certificates for many hosts at once, reading them from
+   * a stream in the format written by exportTo() or a
+   * MemorizationArchive.Writer. See importFrom(Iterator, int). This
+   * does not close the stream.
+   *
+   * @param in the stream of hosts and their certificates
+   * @param batchSize number of hosts to import between flushes
+   * @return number of hosts imported
+   * @throws Exception if there is a problem in reading the stream or
+   * memorizing the certificates
+   */
+  public int importFrom(InputStream in, int batchSize) throws Exception {
+    if (batchSize<=0) {
+      throw new IllegalArgumentException("Please provide a sensible batch size");
+    }
+
+    MemorizationArchive.ReaderIterator entries=
+      new MemorizationArchive.ReaderIterator(
+        new MemorizationArchive.Reader(in));
+
+    try {
+      return(importFrom(entries, batchSize));
+    }
+    catch (MemorizationArchive.ReaderIterator.ReadException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Writes all memorized certificates to a stream, in a format that
+   * importFrom() can read. Certificates from memorizeForNow() are not
+   * included. This performs disk I/O and therefore should be done on a
+   * background thread. This does not close the stream.
+   *
+   * @param out where the certificates should be written
+   * @return number of hosts exported
+   * @throws Exception if there is a problem in reading the certificates
+   * or writing the stream
+   */
+  public int exportTo(OutputStream out) throws Exception {
+    MemorizationArchive.Writer writer=new MemorizationArchive.Writer(out);
+    int count=0;
+
+    for (String host : persistence.getHosts()) {
+      List<X509Certificate> certs=persistence.load(host);
+
+      if (!certs.isEmpty()) {
+        writer.write(host, certs);
+        count++;
+      }
+    }
+
+    writer.finish();
+
+    return(count);
+  }
+
+  /**
+   * Makes all memorize() and clear() calls durable. This is only
+   * needed if you called writeBehind() on the Builder, as otherwise
+   * those calls are durable when they return. This performs disk I/O
+   * and therefore should be done on a background thread.
+   *
+   * @throws Exception if there is a problem in saving the certificates
+   */
+  public void flush() throws Exception {
+    persistence.flush();
+  }
+
+  /**
+   * Loads the memorized certificates for the most recently memorized
+   * hosts into the in-memory cache, so that the first request to each
+   * of those hosts does not have to. Loads are performed on the supplied
+   * Executor, one task per host, so they run in parallel if the Executor
+   * has more than one thread. This method returns immediately.
+   *
+   * If the cache is limited by domain count (cacheSize()), at most that
+   * many hosts are loaded, as more than that would just push earlier ones
+   * out of the cache. If it is limited by bytes (cacheSizeBytes()), hosts
+   * are loaded until maxHosts is reached or the cache is full.
+   *
+   * If the Executor rejects some of the loads (e.g., it has been shut
+   * down), those hosts are skipped, but still count towards the progress
+   * reported to the listener, which is always told when the preload is
+   * complete.
+   *
+   * @param executor where the loads should be performed
+   * @param maxHosts maximum number of hosts to load
+   * @param listener notified of progress, or null if you do not care
+   */
+  public void preload(final Executor executor, int maxHosts,
+                      final PreloadListener listener) {
+    final long start=SystemClock.elapsedRealtime();
+    final int limit=Math.min(maxHosts, preloadLimit);
+
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          List<String> hosts;
+
+          try {
+            hosts=persistence.getHosts();
+          }
+          catch (Exception e) {
+            Log.e("CWAC-NetSecurity", "Could not list memorized hosts", e);
+            hosts=Collections.emptyList();
+          }
+
+          if (hosts.size()>limit) {
+            hosts=hosts.subList(0, limit);
+          }
+
+          final PreloadProgress progress=
+            new PreloadProgress(hosts.size(), start, listener);
+
+          if (hosts.isEmpty() && listener!=null) {
+            listener.onPreloadComplete(0, 0,
+              SystemClock.elapsedRealtime()-start);
+          }
+
+          for (final String host : hosts) {
+            try {
+              executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                  boolean loaded=false;
+
+                  try {
+                    if (cache.hasRoom()) {
+                      cache.get(host);
+                      loaded=true;
+                    }
+                  }
+                  catch (Exception e) {
+                    Log.w("CWAC-NetSecurity", "Could not preload "+host, e);
+                  }
+
+                  progress.onHostDone(host, loaded);
+                }
+              });
+            }
+            catch (RejectedExecutionException e) {
+              // e.g., the Executor was shut down or its queue is full
+              Log.w("CWAC-NetSecurity", "Could not preload "+host, e);
+              progress.onHostDone(host, false);
+            }
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      Log.w("CWAC-NetSecurity", "Could not preload memorized hosts", e);
+
+      if (listener!=null) {
+        listener.onPreloadComplete(0, 0, SystemClock.elapsedRealtime()-start);
+      }
     }
   }
 
-  private MemorizingStore getStoreForHost(String host) throws Exception {
-    MemorizingStore store;
+  private void scheduleSweeps(ScheduledExecutorService executor,
+                              long periodMillis,
+                              final SweepListener listener) {
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        int tid=Process.myTid();
+        int priority=Process.getThreadPriority(tid);
 
-    synchronized(this) {
-      store=stores.get(host);
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        try {
+          SweepResult result=sweep();
 
-      if (store==null) {
-        store=new MemorizingStore(host, workingDir, storePassword, storeType,
-          noTOFU);
-        stores.put(host, store);
+          if (listener!=null) {
+            listener.onSweepComplete(result);
+          }
+        }
+        catch (Exception e) {
+          // keep going, as an exception would cancel further sweeps
+          Log.e("CWAC-NetSecurity", "Could not sweep memorized certificates", e);
+        }
+        finally {
+          Process.setThreadPriority(tid, priority);
+        }
       }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  void addTrustRevocationListener(TrustRevocationListener listener) {
+    revocationListeners.add(listener);
+  }
+
+  /**
+   * Tells every MemorizingTrustManager sharing our state, including
+   * this one, so verdicts cached on their behalf are dropped too.
+   */
+  private void fireTrustRevoked() {
+    shared.fireTrustRevoked();
+  }
+
+  /**
+   * Tells just this instance's listeners; see SharedState for telling
+   * everyone.
+   */
+  void dispatchTrustRevoked() {
+    for (TrustRevocationListener listener : revocationListeners) {
+      listener.onTrustRevoked();
     }
+  }
 
-    return(store);
+  private void fireMemorized(String host, boolean persistent) {
+    for (MemorizingTrustManager member : shared.getMembers()) {
+      for (MemorizationListener listener : member.memorizationListeners) {
+        listener.onMemorized(host, persistent);
+      }
+    }
+  }
+
+  private void fireCleared(String host, boolean persistent) {
+    for (MemorizingTrustManager member : shared.getMembers()) {
+      for (MemorizationListener listener : member.memorizationListeners) {
+        listener.onCleared(host, persistent);
+      }
+    }
   }
 
   /**
@@ -245,23 +638,43 @@ public class MemorizingTrustManager implements X509Extensions {
    * to get a MemorizingTrustManager.
    */
   public static class Builder {
-    private File workingDir=null;
-    private char[] storePassword;
-    private String storeType;
+    // the non-private fields are also read by SharedState and StoreCache
+    File workingDir=null;
+    char[] storePassword;
+    String storeType=KeyStore.getDefaultType();
+    private MemorizationPersistence persistence=null;
     private boolean noTOFU=false;
-    private int cacheSize=128;
+    int cacheSize=128;
+    int cacheSizeBytes=0;
+    int negativeCacheSize=256;
     private DomainMatchRule domainMatchRule;
     private boolean onlySingleItemChains=false;
+    boolean useFingerprints=false;
+    boolean matchPublicKey=false;
+    Executor writeBehindExecutor=null;
+    private Executor preloadExecutor=null;
+    private PreloadListener preloadListener=null;
+    long maxAgeMillis=0;
+    boolean pruneExpired=false;
+    private ScheduledExecutorService sweepExecutor=null;
+    private long sweepPeriodMillis;
+    private SweepListener sweepListener=null;
+    private boolean shareStores=false;
 
     /**
-     * Indicates where the keystores associated with memorize() should
+     * Indicates where the certificates associated with memorize() should
      * go. This should be an empty directory that you are not using for
      * any other purpose. Also, please put it on internal storage
      * (e.g., subdirectory off of getFilesDir() or getCacheDir()), for
      * security.
      *
+     * Certificates are kept in a LogMemorizationPersistence in this
+     * directory. Per-host keystore files left there by earlier versions
+     * of this library are migrated into it, using the supplied
+     * passphrase.
+     *
      * @param workingDir where we should store memorized certificates
-     * @param storePassword passphrase to use for the keystore files
+     * @param storePassword passphrase used for any existing keystore files
      * @return the builder, for further configuration
      */
     public Builder saveTo(File workingDir, char[] storePassword) {
@@ -269,15 +682,17 @@ public class MemorizingTrustManager implements X509Extensions {
     }
 
     /**
-     * Indicates where the keystores associated with memorize() should
+     * Indicates where the certificates associated with memorize() should
      * go. This should be an empty directory that you are not using for
      * any other purpose. Also, please put it on internal storage
      * (e.g., subdirectory off of getFilesDir() or getCacheDir()), for
      * security.
      *
+     * See saveTo(File, char[]) for details.
+     *
      * @param workingDir where we should store memorized certificates
-     * @param storePassword passphrase to use for the keystore files
-     * @param storeType specific type of keystore file to use
+     * @param storePassword passphrase used for any existing keystore files
+     * @param storeType type of any existing keystore files
      * @return the builder, for further configuration
      */
     public Builder saveTo(File workingDir, char[] storePassword,
@@ -285,6 +700,22 @@ public class MemorizingTrustManager implements X509Extensions {
       this.workingDir=workingDir;
       this.storePassword=storePassword;
       this.storeType=storeType;
+      this.persistence=null;
+
+      return(this);
+    }
+
+    /**
+     * Indicates where the certificates associated with memorize() should
+     * go, for when saveTo() is not what you want. For example, pass in a
+     * KeyStoreMemorizationPersistence to keep one keystore file per host.
+     *
+     * @param persistence where we should store memorized certificates
+     * @return the builder, for further configuration
+     */
+    public Builder persistTo(MemorizationPersistence persistence) {
+      this.persistence=persistence;
+      this.workingDir=null;
 
       return(this);
     }
@@ -307,9 +738,10 @@ public class MemorizingTrustManager implements X509Extensions {
 
     /**
      * Indicates the number of domains for which to cache certificates in
-     * memory. Domains ejected from the cache will lose any transient
-     * certificates (memorizeForNow()) but will retain and persistent
-     * certificates (memorize()). Value must be greater than zero (duh).
+     * memory. Domains ejected from the cache retain their persistent
+     * certificates (memorize()), which are reloaded when needed, and
+     * the fingerprints of their transient certificates
+     * (memorizeForNow()). Value must be greater than zero (duh).
      *
      * @param cacheSize number of domains to keep in cache (default: 128)
      * @return the builder, for further configuration
@@ -320,18 +752,63 @@ public class MemorizingTrustManager implements X509Extensions {
       }
 
       this.cacheSize=cacheSize;
+      this.cacheSizeBytes=0;
 
       return(this);
     }
 
     /**
-     * Limits memorization to domains that match the supplied rule
+     * Limits the in-memory cache of domains' certificates by their
+     * approximate size in bytes, rather than by number of domains, for
+     * when some domains have much larger chains than others. This
+     * replaces any earlier cacheSize() call. Domains ejected from the
+     * cache retain their persistent and transient certificates, as
+     * with cacheSize().
+     *
+     * @param cacheSizeBytes approximate number of bytes to use for cached
+     *                       certificates
+     * @return the builder, for further configuration
+     */
+    public Builder cacheSizeBytes(int cacheSizeBytes) {
+      if (cacheSizeBytes<=0) {
+        throw new IllegalArgumentException("Please provide a sensible cache size");
+      }
+
+      this.cacheSizeBytes=cacheSizeBytes;
+
+      return(this);
+    }
+
+    /**
+     * With noTOFU(), indicates the number of domains with no memorized
+     * certificates to remember, so that further requests to those
+     * domains fail without loading anything. Value must be greater than
+     * zero.
+     *
+     * @param negativeCacheSize number of domains to remember (default: 256)
+     * @return the builder, for further configuration
+     */
+    public Builder negativeCacheSize(int negativeCacheSize) {
+      if (negativeCacheSize<=0) {
+        throw new IllegalArgumentException("Please provide a sensible cache size");
+      }
+
+      this.negativeCacheSize=negativeCacheSize;
+
+      return(this);
+    }
+
+    /**
+     * Limits memorization to domains that match the supplied rule. The
+     * rule is simplified with DomainMatchRule.optimize() first, as it
+     * is checked on every handshake.
      *
      * @param domainMatchRule Rule for which domains to memorize
      * @return the builder, for further configuration
      */
     public Builder forDomains(DomainMatchRule domainMatchRule) {
-      this.domainMatchRule=domainMatchRule;
+      this.domainMatchRule=(domainMatchRule==null ? null :
+        DomainMatchRule.optimize(domainMatchRule));
 
       return(this);
     }
@@ -348,160 +825,385 @@ public class MemorizingTrustManager implements X509Extensions {
       return(this);
     }
 
+    /**
+     * By default, a certificate chain is checked by running a
+     * TrustManager over the memorized certificates for the host, which
+     * performs full PKIX validation and accepts the chain if it leads
+     * to any memorized certificate.
+     *
+     * If you call useFingerprints(), we instead keep the SHA-256
+     * fingerprints of the memorized certificates and accept the chain
+     * if the fingerprint of its first (server) certificate is one of
+     * them. This is much cheaper, both for checks and for memorizing,
+     * but it is an exact match: a new server certificate issued by a
+     * memorized CA certificate is not accepted, and no other checks
+     * (e.g., expiration) are made.
+     *
+     * If matchPublicKey is true, the fingerprints are of the
+     * certificates' public keys (SubjectPublicKeyInfo) rather than of
+     * the whole certificates, so a renewed certificate that keeps the
+     * same key is still accepted.
+     *
+     * @param matchPublicKey true to match public keys, false to match
+     *                       whole certificates
+     * @return the builder, for further configuration
+     */
+    public Builder useFingerprints(boolean matchPublicKey) {
+      this.useFingerprints=true;
+      this.matchPublicKey=matchPublicKey;
+
+      return(this);
+    }
+
+    /**
+     * By default, memorize() (including automatic trust-on-first-use
+     * memorization during a handshake) and clear() save the change to
+     * disk before returning.
+     *
+     * If you call writeBehind(), those changes take effect in memory
+     * right away, but are saved on the supplied Executor, with several
+     * changes to the same domain being saved together. Call flush() on
+     * the MemorizingTrustManager to ensure that all changes are saved,
+     * such as when your app moves to the background.
+     *
+     * @param executor where the changes should be saved
+     * @return the builder, for further configuration
+     */
+    public Builder writeBehind(Executor executor) {
+      this.writeBehindExecutor=executor;
+
+      return(this);
+    }
+
+    /**
+     * Calls preload() on the MemorizingTrustManager as part of build(),
+     * to load as many of the most recently memorized hosts as fit in
+     * the cache on the supplied Executor.
+     *
+     * @param executor where the loads should be performed
+     * @param listener notified of progress, or null if you do not care
+     * @return the builder, for further configuration
+     */
+    public Builder preloadOnBuild(Executor executor,
+                                  PreloadListener listener) {
+      this.preloadExecutor=executor;
+      this.preloadListener=listener;
+
+      return(this);
+    }
+
+    /**
+     * Indicates how long memorized certificates should be kept. A domain
+     * whose certificates were last memorized longer ago than this has
+     * them removed, as if clear() had been called, the next time that
+     * they are loaded or swept. By default, certificates are kept until
+     * cleared.
+     *
+     * @param maxAge how long to keep certificates
+     * @param unit the unit of maxAge
+     * @return the builder, for further configuration
+     */
+    public Builder maxAge(long maxAge, TimeUnit unit) {
+      if (maxAge<=0) {
+        throw new IllegalArgumentException("Please provide a sensible maximum age");
+      }
+
+      this.maxAgeMillis=unit.toMillis(maxAge);
+
+      return(this);
+    }
+
+    /**
+     * Indicates that memorized certificates should be removed once they
+     * expire (i.e., their notAfter date has passed), when they are next
+     * loaded or swept. By default, expired certificates are kept until
+     * cleared, though they will fail validation unless you are using
+     * useFingerprints().
+     *
+     * @return the builder, for further configuration
+     */
+    public Builder pruneExpired() {
+      this.pruneExpired=true;
+
+      return(this);
+    }
+
+    /**
+     * Has sweep() called periodically on the MemorizingTrustManager,
+     * on the supplied executor, starting one period after build(). The
+     * sweep runs at background thread priority. To stop sweeping, shut
+     * down the executor.
+     *
+     * @param executor where sweeps should be performed
+     * @param period time between the end of one sweep and the start of
+     *               the next
+     * @param unit the unit of period
+     * @param listener notified after each sweep, or null if you do not
+     *                 care
+     * @return the builder, for further configuration
+     */
+    public Builder sweepEvery(ScheduledExecutorService executor, long period,
+                              TimeUnit unit, SweepListener listener) {
+      if (period<=0) {
+        throw new IllegalArgumentException("Please provide a sensible sweep period");
+      }
+
+      this.sweepExecutor=executor;
+      this.sweepPeriodMillis=unit.toMillis(period);
+      this.sweepListener=listener;
+
+      return(this);
+    }
+
+    /**
+     * Has the MemorizingTrustManager share its certificates with any
+     * others in this process that also called shareStores() with the
+     * same saveTo() directory, for apps that need several instances
+     * (e.g., one per HTTP client). Those instances share one in-memory
+     * cache, so a host's certificates are only loaded once for all of
+     * them, and they see each other's memorize() and clear() calls right
+     * away. Listeners added with addMemorizationListener() are told of
+     * changes made through any of them.
+     *
+     * Sharing instances can differ in noTOFU(), forDomains(),
+     * onlySingleItemChains(), preloadOnBuild(), and sweepEvery(). Ones
+     * that differ in cache or matching settings get a cache of their
+     * own, though they still share the underlying files safely. All
+     * instances sharing a directory must use the same saveTo() passphrase
+     * and writeBehind() Executor, as they share one write-behind queue;
+     * build() throws an IllegalStateException otherwise. This has no
+     * effect with persistTo().
+     *
+     * @return the builder, for further configuration
+     */
+    public Builder shareStores() {
+      this.shareStores=true;
+
+      return(this);
+    }
+
     /**
      * Validates your configuration and builds the MemorizingTrustManager.
      *
      * This creates a new instance each time, so it is safe to hold onto
      * this Builder and create more than one MemorizingTrustManager. However,
-     * do not use more than one MemorizingTrustManager at a time, as
-     * multiple instances do not coordinate with one another, and so each
-     * instance will be oblivious to memorizations (or clear() calls) made
-     * on other instances.
+     * unless you call shareStores(), do not use more than one
+     * MemorizingTrustManager at a time, as multiple instances do not
+     * coordinate with one another, and so each instance will be oblivious
+     * to memorizations (or clear() calls) made on other instances.
      *
      * @return the MemorizingTrustManager, built to your exacting specifications
      */
     public MemorizingTrustManager build() {
-      if (workingDir==null) {
+      SharedState shared;
+
+      if (persistence!=null) {
+        shared=new SharedState(this,
+          SharedState.withWriteBehind(this, persistence));
+      }
+      else if (workingDir==null) {
         throw new IllegalStateException("You have not configured this builder!");
       }
+      else if (shareStores) {
+        shared=SharedState.forDirectory(this);
+      }
+      else {
+        workingDir.mkdirs();
+        shared=new SharedState(this,
+          SharedState.withWriteBehind(this,
+            new LogMemorizationPersistence(workingDir, storePassword,
+              storeType)));
+      }
+
+      MemorizingTrustManager result=new MemorizingTrustManager(this, shared);
+
+      shared.join(result);
+
+      if (preloadExecutor!=null) {
+        result.preload(preloadExecutor, Integer.MAX_VALUE, preloadListener);
+      }
 
-      workingDir.mkdirs();
+      if (sweepExecutor!=null) {
+        result.scheduleSweeps(sweepExecutor, sweepPeriodMillis, sweepListener);
+      }
 
-      return(new MemorizingTrustManager(workingDir, storePassword, storeType,
-        noTOFU, cacheSize, domainMatchRule, onlySingleItemChains));
+      return(result);
     }
   }
 
-  private static class MemorizingStore {
-    private final String host;
-    private final File store;
-    private final char[] storePassword;
-    private final String storeType;
-    private final boolean noTOFU;
-    private KeyStore keyStore;
-    private X509TrustManager storeTrustManager;
-    private KeyStore transientKeyStore;
-    private X509TrustManager transientTrustManager;
-
-    MemorizingStore(String host, File workingDir, char[] storePassword,
-                    String storeType, boolean noTOFU) throws Exception {
-      this.host=host;
-      store=new File(workingDir, host);
-      this.storePassword=storePassword;
-      this.storeType=storeType;
-      this.noTOFU=noTOFU;
+  /**
+   * Counts the hosts handled by preload(), including ones that could not
+   * be loaded or scheduled, so the listener always hears that it is done.
+   */
+  private static class PreloadProgress {
+    private final int total;
+    private final long start;
+    private final PreloadListener listener;
+    private final AtomicInteger completed=new AtomicInteger();
+    private final AtomicInteger loaded=new AtomicInteger();
 
-      init();
+    PreloadProgress(int total, long start, PreloadListener listener) {
+      this.total=total;
+      this.start=start;
+      this.listener=listener;
     }
 
-    synchronized void checkServerTrusted(X509Certificate[] chain,
-                                                String authType)
-      throws CertificateException {
-      try {
-        storeTrustManager.checkServerTrusted(chain, authType);
+    void onHostDone(String host, boolean wasLoaded) {
+      if (wasLoaded) {
+        loaded.incrementAndGet();
       }
-      catch (CertificateException e) {
-        try {
-          transientTrustManager.checkServerTrusted(chain, authType);
-        }
-        catch (CertificateException e2) {
-          try {
-            if (keyStore.size()==0 && transientKeyStore.size()==0) {
-              if (!noTOFU) {
-                try {
-                  memorize(chain);
-                  return;
-                }
-                catch (Exception e4) {
-                  throw new CertificateException("Problem while memorizing", e4);
-                }
-              }
 
-              throw new CertificateNotMemorizedException(chain, host);
-            }
-          }
-          catch (KeyStoreException kse) {
-            // srsly?
-          }
+      int count=completed.incrementAndGet();
 
-          throw new MemorizationMismatchException(chain, host, e2);
+      if (listener!=null) {
+        listener.onHostPreloaded(host, count, total);
+
+        if (count==total) {
+          listener.onPreloadComplete(loaded.get(), total,
+            SystemClock.elapsedRealtime()-start);
         }
       }
     }
+  }
 
-    synchronized void memorize(X509Certificate[] chain)
-      throws Exception {
-      for (X509Certificate cert : chain) {
-        String alias=cert.getSubjectDN().getName();
-
-        keyStore.setCertificateEntry(alias, cert);
-      }
+  /**
+   * Statistics for the in-memory caches of a MemorizingTrustManager,
+   * from getCacheStats().
+   */
+  public static class CacheStats {
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long negativeHitCount;
+    private final int size;
+    private final int maxSize;
+    private final int transientHostCount;
 
-      TrustManagerFactory tmf=TrustManagerFactory.getInstance("X509");
+    CacheStats(long hitCount, long missCount, long evictionCount,
+               long negativeHitCount, int size, int maxSize,
+               int transientHostCount) {
+      this.hitCount=hitCount;
+      this.missCount=missCount;
+      this.evictionCount=evictionCount;
+      this.negativeHitCount=negativeHitCount;
+      this.size=size;
+      this.maxSize=maxSize;
+      this.transientHostCount=transientHostCount;
+    }
 
-      tmf.init(keyStore);
-      storeTrustManager=findX509TrustManager(tmf);
+    /**
+     * @return number of times a domain's certificates were found in
+     * the cache
+     */
+    public long getHitCount() {
+      return(hitCount);
+    }
 
-      FileOutputStream fos=new FileOutputStream(store);
+    /**
+     * @return number of times a domain's certificates had to be loaded
+     */
+    public long getMissCount() {
+      return(missCount);
+    }
 
-      keyStore.store(fos, storePassword);
-      fos.flush();
-      fos.close();
+    /**
+     * @return number of domains pushed out of the cache to make room
+     */
+    public long getEvictionCount() {
+      return(evictionCount);
     }
 
-    synchronized void memorizeForNow(X509Certificate[] chain)
-      throws Exception {
-      for (X509Certificate cert : chain) {
-        String alias=cert.getSubjectDN().getName();
+    /**
+     * @return number of times a domain was found in the noTOFU()
+     * cache of domains with nothing memorized
+     */
+    public long getNegativeHitCount() {
+      return(negativeHitCount);
+    }
 
-        transientKeyStore.setCertificateEntry(alias, cert);
-      }
+    /**
+     * @return current size of the cache, in domains, or in bytes if
+     * cacheSizeBytes() was used
+     */
+    public int getSize() {
+      return(size);
+    }
 
-      TrustManagerFactory tmf=TrustManagerFactory.getInstance("X509");
+    /**
+     * @return maximum size of the cache, in the same units as getSize()
+     */
+    public int getMaxSize() {
+      return(maxSize);
+    }
 
-      tmf.init(transientKeyStore);
-      transientTrustManager=findX509TrustManager(tmf);
+    /**
+     * @return number of domains with memorizeForNow() certificates
+     */
+    public int getTransientHostCount() {
+      return(transientHostCount);
     }
+  }
 
-    synchronized void clear(boolean clearPersistent) throws Exception {
-      if (clearPersistent) {
-        store.delete();
-      }
+  /**
+   * What a call to sweep() removed and reclaimed.
+   */
+  public static class SweepResult {
+    private int hostsRemoved;
+    private int certificatesRemoved;
+    private long certificateBytesRemoved;
+    long storageBytesReclaimed;
+    long elapsedMillis;
 
-      init();
+    SweepResult() {
     }
 
-    private void init() throws Exception {
-      transientKeyStore=KeyStore.getInstance(storeType);
-      transientKeyStore.load(null, null);
-
-      TrustManagerFactory tmf=TrustManagerFactory.getInstance("X509");
+    void record(List<X509Certificate> certs, List<X509Certificate> kept)
+      throws CertificateException {
+      for (X509Certificate cert : certs) {
+        if (!kept.contains(cert)) {
+          certificatesRemoved++;
+          certificateBytesRemoved+=cert.getEncoded().length;
+        }
+      }
 
-      tmf.init(transientKeyStore);
-      transientTrustManager=findX509TrustManager(tmf);
+      if (kept.isEmpty()) {
+        hostsRemoved++;
+      }
+    }
 
-      keyStore=KeyStore.getInstance(storeType);
+    /**
+     * @return number of domains left with no memorized certificates
+     */
+    public int getHostsRemoved() {
+      return(hostsRemoved);
+    }
 
-      if (store.exists()) {
-        keyStore.load(new FileInputStream(store), storePassword);
-      }
-      else {
-        keyStore.load(null, storePassword);
-      }
+    /**
+     * @return number of memorized certificates removed
+     */
+    public int getCertificatesRemoved() {
+      return(certificatesRemoved);
+    }
 
-      tmf=TrustManagerFactory.getInstance("X509");
-      tmf.init(keyStore);
-      storeTrustManager=findX509TrustManager(tmf);
+    /**
+     * @return total encoded size of the removed certificates, in bytes
+     */
+    public long getCertificateBytesRemoved() {
+      return(certificateBytesRemoved);
     }
 
-    private X509TrustManager findX509TrustManager(TrustManagerFactory tmf) {
-      for (TrustManager t : tmf.getTrustManagers()) {
-        if (t instanceof X509TrustManager) {
-          return (X509TrustManager)t;
-        }
-      }
+    /**
+     * @return bytes of storage reclaimed by compacting the persistence
+     */
+    public long getStorageBytesReclaimed() {
+      return(storageBytesReclaimed);
+    }
 
-      return(null);
+    /**
+     * @return time taken by the sweep, in milliseconds
+     */
+    public long getElapsedMillis() {
+      return(elapsedMillis);
     }
   }
 }
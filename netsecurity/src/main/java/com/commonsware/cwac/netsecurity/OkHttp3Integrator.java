@@ -14,8 +14,6 @@ package com.commonsware.cwac.netsecurity;
 import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -28,11 +26,9 @@ public class OkHttp3Integrator {
     CompositeTrustManager trustManager=tmb.build();
 
     if (trustManager.size()>0) {
-      SSLContext ssl=SSLContext.getInstance("TLS");
-      X509Interceptor interceptor=new X509Interceptor(trustManager, tmb);
+      X509Interceptor interceptor=new X509Interceptor(tmb);
 
-      ssl.init(null, new TrustManager[]{trustManager}, null);
-      builder.sslSocketFactory(ssl.getSocketFactory(), trustManager);
+      builder.sslSocketFactory(trustManager.getSocketFactory(), trustManager);
       builder.addInterceptor(interceptor);
       builder.addNetworkInterceptor(interceptor);
     }
@@ -41,12 +37,9 @@ public class OkHttp3Integrator {
   }
 
   static private class X509Interceptor implements Interceptor {
-    private final CompositeTrustManager trustManager;
     private final TrustManagerBuilder builder;
 
-    private X509Interceptor(CompositeTrustManager trustManager,
-                            TrustManagerBuilder builder) {
-      this.trustManager=trustManager;
+    private X509Interceptor(TrustManagerBuilder builder) {
       this.builder=builder;
     }
 
@@ -60,11 +53,10 @@ public class OkHttp3Integrator {
         throw new CleartextAttemptException("Cleartext blocked for "+request.url());
       }
 
-      synchronized(this) {
-        trustManager.setHost(host);
+      // the hostname for the TLS handshake comes from the socket
+      // factory, so there is nothing else to do here
 
-        return(chain.proceed(request));
-      }
+      return(chain.proceed(request));
     }
   }
 
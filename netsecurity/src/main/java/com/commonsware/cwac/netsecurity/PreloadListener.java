@@ -0,0 +1,38 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+/**
+ * A listener interface to use with preload() on MemorizingTrustManager
+ * (or preloadOnBuild() on its Builder), to find out how the preload is
+ * going. Methods are called on the threads of the Executor doing the
+ * preload.
+ */
+public interface PreloadListener {
+  /**
+   * Called after each host has been loaded, or has failed to load
+   *
+   * @param host the host
+   * @param completed number of hosts finished so far, including this one
+   * @param total number of hosts being preloaded
+   */
+  void onHostPreloaded(String host, int completed, int total);
+
+  /**
+   * Called once all hosts are finished
+   *
+   * @param loaded number of hosts that were loaded successfully
+   * @param total number of hosts that were preloaded
+   * @param elapsedMillis time taken by the whole preload, in milliseconds
+   */
+  void onPreloadComplete(int loaded, int total, long elapsedMillis);
+}
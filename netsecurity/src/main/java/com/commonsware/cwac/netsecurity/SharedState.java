@@ -0,0 +1,230 @@
+/***
+  Copyright (c) 2014-2017 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import com.commonsware.cwac.netsecurity.MemorizingTrustManager.Builder;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * The persistence, store cache, and memorizeForNow() fingerprints
+ * behind a MemorizingTrustManager. Instances built with shareStores()
+ * for the same directory and settings share one of these, found in a
+ * process-wide registry keyed by the directory's canonical path. The
+ * registry holds them weakly, so a directory's state goes away along
+ * with the last MemorizingTrustManager using it. States for one
+ * directory with different cache settings still share one persistence,
+ * including any write-behind wrapper, so writes queued through one are
+ * seen by the others.
+ */
+class SharedState {
+  private static final HashMap<String, List<WeakReference<SharedState>>> REGISTRY=
+    new HashMap<>();
+  final MemorizationPersistence persistence;
+  final TransientFingerprints transients;
+  final StoreCache cache;
+  private final CopyOnWriteArrayList<WeakReference<MemorizingTrustManager>> members=
+    new CopyOnWriteArrayList<>();
+  // the Builder settings that shape the above, which sharers must match
+  private final char[] storePassword;
+  private final String storeType;
+  private final int cacheSize;
+  private final int cacheSizeBytes;
+  private final int negativeCacheSize;
+  private final boolean useFingerprints;
+  private final boolean matchPublicKey;
+  private final Executor writeBehindExecutor;
+  private final long maxAgeMillis;
+  private final boolean pruneExpired;
+
+  static SharedState forDirectory(Builder builder) {
+    builder.workingDir.mkdirs();
+
+    String key;
+
+    try {
+      key=builder.workingDir.getCanonicalPath();
+    }
+    catch (IOException e) {
+      key=builder.workingDir.getAbsolutePath();
+    }
+
+    synchronized(REGISTRY) {
+      prune();
+
+      List<WeakReference<SharedState>> states=REGISTRY.get(key);
+      MemorizationPersistence persistence=null;
+
+      if (states==null) {
+        states=new ArrayList<>();
+        REGISTRY.put(key, states);
+      }
+
+      for (WeakReference<SharedState> ref : states) {
+        SharedState state=ref.get();
+
+        if (state!=null) {
+          if (state.accepts(builder)) {
+            return(state);
+          }
+
+          if (!state.sharesPersistenceWith(builder)) {
+            throw new IllegalStateException(
+              "Please use the same passphrase and writeBehind() Executor "+
+                "for all shareStores() instances for "+builder.workingDir);
+          }
+
+          persistence=state.persistence;
+        }
+      }
+
+      if (persistence==null) {
+        persistence=withWriteBehind(builder,
+          new LogMemorizationPersistence(builder.workingDir,
+            builder.storePassword, builder.storeType));
+      }
+
+      SharedState result=new SharedState(builder, persistence);
+
+      states.add(new WeakReference<>(result));
+
+      return(result);
+    }
+  }
+
+  /**
+   * Removes collected states, and directories left with none, from
+   * the registry. Call while holding the REGISTRY lock.
+   */
+  private static void prune() {
+    for (Iterator<List<WeakReference<SharedState>>> i=
+         REGISTRY.values().iterator(); i.hasNext();) {
+      List<WeakReference<SharedState>> states=i.next();
+
+      for (Iterator<WeakReference<SharedState>> j=states.iterator();
+           j.hasNext();) {
+        if (j.next().get()==null) {
+          j.remove();
+        }
+      }
+
+      if (states.isEmpty()) {
+        i.remove();
+      }
+    }
+  }
+
+  static MemorizationPersistence withWriteBehind(Builder builder,
+                                                 MemorizationPersistence persistence) {
+    if (builder.writeBehindExecutor==null) {
+      return(persistence);
+    }
+
+    return(new WriteBehindMemorizationPersistence(persistence,
+      builder.writeBehindExecutor));
+  }
+
+  /**
+   * @param persistence the persistence to use, already wrapped by
+   *                    withWriteBehind() if needed
+   */
+  SharedState(Builder builder, MemorizationPersistence persistence) {
+    this.storePassword=
+      builder.storePassword==null ? null : builder.storePassword.clone();
+    this.storeType=builder.storeType;
+    this.cacheSize=builder.cacheSize;
+    this.cacheSizeBytes=builder.cacheSizeBytes;
+    this.negativeCacheSize=builder.negativeCacheSize;
+    this.useFingerprints=builder.useFingerprints;
+    this.matchPublicKey=builder.matchPublicKey;
+    this.writeBehindExecutor=builder.writeBehindExecutor;
+    this.maxAgeMillis=builder.maxAgeMillis;
+    this.pruneExpired=builder.pruneExpired;
+    this.persistence=persistence;
+    this.transients=
+      new TransientFingerprints(useFingerprints && matchPublicKey);
+    this.cache=new StoreCache(builder, persistence, transients,
+      new TrustRevocationListener() {
+        @Override
+        public void onTrustRevoked() {
+          fireTrustRevoked();
+        }
+      });
+  }
+
+  boolean accepts(Builder builder) {
+    return(sharesPersistenceWith(builder) &&
+      storeType.equals(builder.storeType) &&
+      cacheSize==builder.cacheSize &&
+      cacheSizeBytes==builder.cacheSizeBytes &&
+      negativeCacheSize==builder.negativeCacheSize &&
+      useFingerprints==builder.useFingerprints &&
+      matchPublicKey==builder.matchPublicKey &&
+      maxAgeMillis==builder.maxAgeMillis &&
+      pruneExpired==builder.pruneExpired);
+  }
+
+  /**
+   * @return true if the builder can use the same persistence as this
+   * state, even if it needs a separate cache
+   */
+  boolean sharesPersistenceWith(Builder builder) {
+    return(Arrays.equals(storePassword, builder.storePassword) &&
+      writeBehindExecutor==builder.writeBehindExecutor);
+  }
+
+  void join(MemorizingTrustManager member) {
+    members.add(new WeakReference<>(member));
+  }
+
+  /**
+   * @return the MemorizingTrustManagers using this state that are
+   * still around
+   */
+  List<MemorizingTrustManager> getMembers() {
+    List<MemorizingTrustManager> result=new ArrayList<>(members.size());
+
+    for (WeakReference<MemorizingTrustManager> ref : members) {
+      MemorizingTrustManager member=ref.get();
+
+      if (member==null) {
+        members.remove(ref);
+      }
+      else {
+        result.add(member);
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * Tells every member that trust was revoked, so verdicts cached on
+   * their behalf are dropped. Certificates removed through one member
+   * are gone for all of them.
+   */
+  void fireTrustRevoked() {
+    for (MemorizingTrustManager member : getMembers()) {
+      member.dispatchTrustRevoked();
+    }
+  }
+}
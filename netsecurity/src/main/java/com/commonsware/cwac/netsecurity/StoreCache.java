@@ -0,0 +1,434 @@
+/***
+  Copyright (c) 2014-2017 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import android.util.LruCache;
+import com.commonsware.cwac.netsecurity.MemorizingTrustManager.Builder;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The in-memory cache of MemorizingStores, one per host, and the loading
+ * of stores into it from the persistence. The cache itself is
+ * thread-safe, and loads happen outside of any shared lock, so a slow
+ * load only holds up threads that need that same host. Concurrent
+ * requests for a host that is being loaded wait for that one load,
+ * rather than each loading their own copy.
+ *
+ * With noTOFU(), hosts found to have nothing memorized are remembered
+ * in a separate cache, so checking them again does not need to go to
+ * the persistence at all.
+ */
+class StoreCache {
+  private final MemorizationPersistence persistence;
+  private final TransientFingerprints transients;
+  private final TrustRevocationListener revocations;
+  private final ExpiryPolicy expiry;
+  private final String storeType;
+  private final boolean useFingerprints;
+  private final boolean matchPublicKey;
+  private final boolean flushWrites;
+  private final boolean budgetBytes;
+  private final LruCache<String, MemorizingStore> stores;
+  private final LruCache<String, Boolean> unmemorized;
+  private final ConcurrentHashMap<String, FutureTask<MemorizingStore>> loads=
+    new ConcurrentHashMap<>();
+  final AtomicLong memorizations=new AtomicLong();
+  private final AtomicLong hits=new AtomicLong();
+  private final AtomicLong misses=new AtomicLong();
+  private final AtomicLong evictions=new AtomicLong();
+  private final AtomicLong negativeHits=new AtomicLong();
+
+  /**
+   * @param revocations told when a load drops expired certificates
+   */
+  StoreCache(Builder builder, MemorizationPersistence persistence,
+             TransientFingerprints transients,
+             TrustRevocationListener revocations) {
+    this.persistence=persistence;
+    this.transients=transients;
+    this.revocations=revocations;
+    this.expiry=new ExpiryPolicy(builder.maxAgeMillis, builder.pruneExpired);
+    this.storeType=builder.storeType;
+    this.useFingerprints=builder.useFingerprints;
+    this.matchPublicKey=builder.matchPublicKey;
+    this.flushWrites=builder.writeBehindExecutor==null;
+    this.budgetBytes=builder.cacheSizeBytes>0;
+    this.stores=new LruCache<String, MemorizingStore>(
+      budgetBytes ? builder.cacheSizeBytes : builder.cacheSize) {
+      @Override
+      protected int sizeOf(String key, MemorizingStore value) {
+        return(budgetBytes ? value.chargedWeight : 1);
+      }
+
+      @Override
+      protected void entryRemoved(boolean evicted, String key,
+                                  MemorizingStore oldValue,
+                                  MemorizingStore newValue) {
+        // memorizeForNow() certificates survive in transients, so
+        // nothing is revoked here
+
+        if (evicted) {
+          evictions.incrementAndGet();
+        }
+      }
+    };
+    this.unmemorized=new LruCache<>(builder.negativeCacheSize);
+  }
+
+  /**
+   * Returns the store for this host, loading it if needed.
+   */
+  MemorizingStore get(String host) throws Exception {
+    while (true) {
+      MemorizingStore store=load(host, false);
+
+      if (store!=null) {
+        return(store);
+      }
+
+      // we waited on a find() load, which found nothing; go around
+      // again, to load a store of our own
+    }
+  }
+
+  /**
+   * Like get(), except that it returns null if nothing is memorized for
+   * this host, without creating a store, for noTOFU().
+   */
+  MemorizingStore find(String host) throws Exception {
+    MemorizingStore store=stores.get(host);
+
+    if (store!=null) {
+      hits.incrementAndGet();
+
+      return(store);
+    }
+
+    if (unmemorized.get(host)!=null) {
+      negativeHits.incrementAndGet();
+
+      return(null);
+    }
+
+    return(load(host, true));
+  }
+
+  /**
+   * @return the cached stores, by host
+   */
+  Map<String, MemorizingStore> snapshot() {
+    return(stores.snapshot());
+  }
+
+  /**
+   * @return false if the cache is limited by bytes and is full
+   */
+  boolean hasRoom() {
+    return(!budgetBytes || stores.size()<stores.maxSize());
+  }
+
+  MemorizingTrustManager.CacheStats getStats() {
+    return(new MemorizingTrustManager.CacheStats(hits.get(), misses.get(),
+      evictions.get(), negativeHits.get(), stores.size(), stores.maxSize(),
+      transients.getHostCount()));
+  }
+
+  /**
+   * With cacheSizeBytes(), re-adds a store to the cache if its size has
+   * changed since it was added, so the cache's running total stays
+   * correct. The removal and re-add happen under the cache's lock, so
+   * nobody sees the host as missing in between.
+   */
+  void recharge(String host, MemorizingStore store) {
+    if (budgetBytes) {
+      int weight=store.getWeight();
+
+      if (weight!=store.chargedWeight) {
+        synchronized(stores) {
+          if (stores.get(host)==store) {
+            stores.remove(host);
+            store.chargedWeight=weight;
+            stores.put(host, store);
+          }
+        }
+      }
+    }
+  }
+
+  void forgetUnmemorized(String host) {
+    synchronized(unmemorized) {
+      unmemorized.remove(host);
+    }
+  }
+
+  /**
+   * Prunes a host that is not in the cache for sweep(), straight in the
+   * persistence. An ExclusiveTask stands in for a load of this host
+   * while we work, so nobody loads it until we are done.
+   *
+   * @return true if any certificates were removed
+   */
+  boolean sweepUncached(String host, long now,
+                        MemorizingTrustManager.SweepResult result)
+    throws Exception {
+    ExclusiveTask sweep=new ExclusiveTask();
+
+    if (loads.putIfAbsent(host, sweep)!=null) {
+      // being loaded, which prunes it anyway, and reports that itself
+      return(false);
+    }
+
+    try {
+      List<X509Certificate> certs=persistence.load(host);
+      List<X509Certificate> kept=expiry.apply(persistence, host, certs, now);
+
+      if (kept!=certs) {
+        MemorizingStore.replace(persistence, host, kept, false);
+        result.record(certs, kept);
+
+        return(true);
+      }
+
+      return(false);
+    }
+    finally {
+      sweep.run();
+      loads.remove(host, sweep);
+    }
+  }
+
+  /**
+   * Removes a host that is not in the cache from the persistence for
+   * clearAll(), without flushing. If it was loaded since clearAll()
+   * looked at the cache, it is cleared through its store instead.
+   */
+  void clearUncached(String host) throws Exception {
+    ExclusiveTask clear=new ExclusiveTask();
+    boolean cached=true;
+
+    if (loads.putIfAbsent(host, clear)==null) {
+      try {
+        cached=stores.get(host)!=null;
+
+        if (!cached) {
+          persistence.remove(host);
+        }
+      }
+      finally {
+        clear.run();
+        loads.remove(host, clear);
+      }
+    }
+
+    if (cached) {
+      MemorizingStore store=get(host);
+
+      store.clear(true);
+      recharge(host, store);
+    }
+  }
+
+  /**
+   * Adds certificates to a host for importFrom(), without flushing.
+   * Cached stores memorize them as usual; otherwise, we update the
+   * persistence directly, rather than loading a store just to do that.
+   */
+  void importHost(String host, List<X509Certificate> certs)
+    throws Exception {
+    memorizations.incrementAndGet();
+
+    while (true) {
+      MemorizingStore store=stores.get(host);
+
+      if (store!=null) {
+        store.memorize(certs.toArray(new X509Certificate[certs.size()]),
+          false);
+        recharge(host, store);
+        break;
+      }
+
+      ExclusiveTask task=new ExclusiveTask();
+      FutureTask<MemorizingStore> pending=loads.putIfAbsent(host, task);
+
+      if (pending!=null) {
+        // let the load finish, then memorize into what it loaded
+        try {
+          pending.get();
+        }
+        catch (ExecutionException e) {
+          // whoever started the load can deal with this
+        }
+
+        continue;
+      }
+
+      try {
+        List<X509Certificate> merged=new ArrayList<>(persistence.load(host));
+
+        for (X509Certificate cert : certs) {
+          if (!merged.contains(cert)) {
+            merged.add(cert);
+          }
+        }
+
+        persistence.save(host, merged);
+      }
+      finally {
+        task.run();
+        loads.remove(host, task);
+      }
+
+      break;
+    }
+
+    forgetUnmemorized(host);
+  }
+
+  private MemorizingStore load(final String host, final boolean allowMissing)
+    throws Exception {
+    MemorizingStore store=stores.get(host);
+
+    if (store!=null) {
+      hits.incrementAndGet();
+
+      return(store);
+    }
+
+    final long generation=memorizations.get();
+    FutureTask<MemorizingStore> load=new FutureTask<>(new Callable<MemorizingStore>() {
+      @Override
+      public MemorizingStore call() throws Exception {
+        List<X509Certificate> loaded=persistence.load(host);
+        List<X509Certificate> certs=expiry.apply(persistence, host, loaded,
+          System.currentTimeMillis());
+
+        if (certs!=loaded) {
+          MemorizingStore.replace(persistence, host, certs, flushWrites);
+          revocations.onTrustRevoked();
+        }
+
+        if (allowMissing && certs.isEmpty() && !transients.hasHost(host)) {
+          synchronized(unmemorized) {
+            // skip it if memorize() ran during the load, as it may have
+            // been for this host
+            if (memorizations.get()==generation) {
+              unmemorized.put(host, Boolean.TRUE);
+            }
+          }
+
+          return(null);
+        }
+
+        if (useFingerprints) {
+          return(new FingerprintStore(host, persistence, transients,
+            flushWrites, matchPublicKey, certs));
+        }
+
+        return(new KeyStoreStore(host, persistence, transients,
+          flushWrites, storeType, certs));
+      }
+    });
+    FutureTask<MemorizingStore> pending=loads.putIfAbsent(host, load);
+
+    if (pending==null) {
+      try {
+        // another load may have finished between the cache check and
+        // putIfAbsent()
+        store=stores.get(host);
+
+        if (store==null) {
+          misses.incrementAndGet();
+          load.run();
+          store=unwrap(load);
+
+          if (store!=null) {
+            int weight=store.getWeight();
+
+            synchronized(stores) {
+              store.chargedWeight=weight;
+              stores.put(host, store);
+            }
+          }
+        }
+        else {
+          hits.incrementAndGet();
+        }
+      }
+      finally {
+        // only after the put(), so other threads find the store in one
+        // place or the other
+        loads.remove(host, load);
+      }
+
+      return(store);
+    }
+
+    if (pending instanceof ExclusiveTask) {
+      pending.get();
+
+      return(load(host, allowMissing));
+    }
+
+    store=unwrap(pending);
+
+    if (store==null && !allowMissing) {
+      // do not spin waiting for the owner to clean up
+      loads.remove(host, pending);
+    }
+
+    return(store);
+  }
+
+  private static MemorizingStore unwrap(FutureTask<MemorizingStore> load)
+    throws Exception {
+    try {
+      return(load.get());
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception)e.getCause();
+      }
+
+      throw e;
+    }
+  }
+
+  /**
+   * Placeholder in the loads map while sweep(), clearAll(), or
+   * importFrom() works on a host that is not cached, directly in the
+   * persistence. Anyone wanting to load the host waits for it and then
+   * loads normally.
+   */
+  private static class ExclusiveTask extends FutureTask<MemorizingStore> {
+    private static final Runnable NOTHING=new Runnable() {
+      @Override
+      public void run() {
+        // just a latch
+      }
+    };
+
+    ExclusiveTask() {
+      super(NOTHING, null);
+    }
+  }
+}
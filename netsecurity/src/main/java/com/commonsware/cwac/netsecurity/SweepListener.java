@@ -0,0 +1,26 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+/**
+ * A listener interface to use with sweepEvery() on
+ * MemorizingTrustManager.Builder, to find out what each scheduled sweep
+ * accomplished. It is called on the thread that performed the sweep.
+ */
+public interface SweepListener {
+  /**
+   * Called after each scheduled sweep
+   *
+   * @param result what the sweep removed and reclaimed
+   */
+  void onSweepComplete(MemorizingTrustManager.SweepResult result);
+}
@@ -0,0 +1,99 @@
+/***
+  Copyright (c) 2014-2017 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fingerprints of the memorizeForNow() certificates for every host,
+ * kept no matter what happens to the store cache, so evicting a store
+ * does not forget the user's decision. Just the fingerprint of each
+ * chain's server certificate is kept. A reloaded store that finds a
+ * chain's server certificate here adds that certificate back to its
+ * own transient certificates and checks the chain again.
+ */
+class TransientFingerprints {
+  private final ConcurrentHashMap<String, Set<ByteBuffer>> hosts=
+    new ConcurrentHashMap<>();
+  private final boolean matchPublicKey;
+
+  TransientFingerprints(boolean matchPublicKey) {
+    this.matchPublicKey=matchPublicKey;
+  }
+
+  void add(String host, X509Certificate[] chain)
+    throws CertificateException {
+    Set<ByteBuffer> fingerprints=hosts.get(host);
+
+    if (fingerprints==null) {
+      Set<ByteBuffer> fresh=
+        Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
+
+      fingerprints=hosts.putIfAbsent(host, fresh);
+
+      if (fingerprints==null) {
+        fingerprints=fresh;
+      }
+    }
+
+    // only the server certificate, as that is all that contains()
+    // is asked about
+    if (chain.length>0) {
+      fingerprints.add(FingerprintStore.fingerprint(newDigest(), chain[0],
+        matchPublicKey));
+    }
+  }
+
+  boolean contains(String host, X509Certificate cert)
+    throws CertificateException {
+    Set<ByteBuffer> fingerprints=hosts.get(host);
+
+    return(fingerprints!=null &&
+      fingerprints.contains(FingerprintStore.fingerprint(newDigest(), cert,
+        matchPublicKey)));
+  }
+
+  boolean hasHost(String host) {
+    return(hosts.containsKey(host));
+  }
+
+  void remove(String host) {
+    hosts.remove(host);
+  }
+
+  void clear() {
+    hosts.clear();
+  }
+
+  int getHostCount() {
+    return(hosts.size());
+  }
+
+  private static MessageDigest newDigest() throws CertificateException {
+    try {
+      return(MessageDigest.getInstance("SHA-256"));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new CertificateException(e);
+    }
+  }
+}
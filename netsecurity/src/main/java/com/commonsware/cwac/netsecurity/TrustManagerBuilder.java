@@ -17,14 +17,12 @@ package com.commonsware.cwac.netsecurity;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
-import android.content.res.XmlResourceParser;
 import android.os.Build;
-import android.util.Log;
 import com.commonsware.cwac.netsecurity.config.ApplicationConfig;
+import com.commonsware.cwac.netsecurity.config.CompiledConfigCache;
 import com.commonsware.cwac.netsecurity.config.ConfigSource;
 import com.commonsware.cwac.netsecurity.config.ManifestConfigSource;
 import com.commonsware.cwac.netsecurity.config.XmlConfigSource;
-import org.xmlpull.v1.XmlPullParser;
 import java.net.HttpURLConnection;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
@@ -32,6 +30,7 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
@@ -61,12 +60,24 @@ public class TrustManagerBuilder {
   private static final String META_DATA_NAME="android.security.net.config";
   private CompositeTrustManager mgr=CompositeTrustManager.matchAll();
   private ApplicationConfig appConfig=null;
+  private int verdictCacheSize=0;
+  private long verdictCacheTtl=0;
+  private boolean adaptiveOrdering=false;
+  private boolean compiledConfigCache=false;
 
   /**
    * @return the CompositeTrustManager representing the particular
    *         rules you want to apply
    */
   public CompositeTrustManager build() {
+    if (verdictCacheSize>0 && !mgr.hasVerdictCache()) {
+      mgr.setVerdictCache(verdictCacheSize, verdictCacheTtl);
+    }
+
+    if (adaptiveOrdering && !mgr.isAdaptiveOrdering()) {
+      mgr.setAdaptiveOrdering(true);
+    }
+
     return(mgr);
   }
 
@@ -96,6 +107,17 @@ public class TrustManagerBuilder {
     return(c);
   }
 
+  /**
+   * @return the SSLSocketFactory from build(), which is created once
+   *         and reused, so that connections share a TLS session cache
+   * @throws NoSuchAlgorithmException
+   * @throws KeyManagementException
+   */
+  public SSLSocketFactory getSocketFactory()
+    throws NoSuchAlgorithmException, KeyManagementException {
+    return(build().getSocketFactory());
+  }
+
   /**
    * Use this to add arbitrary TrustManagers to
    * the mix. Only the X509TrustManager instances in the
@@ -208,9 +230,7 @@ public class TrustManagerBuilder {
    */
   public TrustManagerBuilder withConfig(Context ctxt,
                                         int resourceId) {
-    validateConfig(ctxt, resourceId, false);
-
-    return(withConfig(new XmlConfigSource(ctxt, resourceId, false)));
+    return(withConfig(ctxt, resourceId, false));
   }
 
   /**
@@ -226,10 +246,7 @@ public class TrustManagerBuilder {
   public TrustManagerBuilder withConfig(Context ctxt,
                                         int resourceId,
                                         boolean isDebugBuild) {
-    validateConfig(ctxt, resourceId, false);
-
-    return(withConfig(new XmlConfigSource(ctxt, resourceId,
-      isDebugBuild)));
+    return(withConfig(buildConfigSource(ctxt, resourceId, isDebugBuild)));
   }
 
   /**
@@ -254,18 +271,14 @@ public class TrustManagerBuilder {
       if (info.metaData==null) {
         throw new RuntimeException("Could not find manifest meta-data!");
       }
-      else {
-        int resourceId=info.metaData.getInt(META_DATA_NAME, -1);
-
-        if (resourceId==-1) {
-          throw new RuntimeException("Could not find android.security.net.config meta-data!");
-        }
-        else {
-          validateConfig(ctxt, resourceId, true);
-        }
+      else if (info.metaData.getInt(META_DATA_NAME, -1)==-1) {
+        throw new RuntimeException("Could not find android.security.net.config meta-data!");
       }
 
-      return(withConfig(new ManifestConfigSource(ctxt.getApplicationContext())));
+      Context app=ctxt.getApplicationContext();
+
+      return(withConfig(new ManifestConfigSource(app,
+        compiledConfigCache ? new CompiledConfigCache(app) : null)));
     }
 
     return(this);
@@ -277,6 +290,129 @@ public class TrustManagerBuilder {
     return(add(appConfig.getTrustManager()));
   }
 
+  /**
+   * Replaces the network security configuration set up by an earlier
+   * withConfig() or withManifestConfig() call with the one identified
+   * by the supplied XML resource ID. The trust manager from build()
+   * stays the same, so existing SSLSocketFactory instances, OkHttpClient
+   * instances, and connection pools can keep being used.
+   *
+   * The new configuration is parsed before it is installed, and
+   * handshakes that are in progress complete against the configuration
+   * that they started with. TLS sessions established earlier may still
+   * be resumed without another trust check.
+   *
+   * @param ctxt any Context will work
+   * @param resourceId an R.xml value pointing to the configuration
+   * @throws IllegalStateException if this builder has no configuration
+   * to replace
+   */
+  public void replaceConfig(Context ctxt, int resourceId) {
+    replaceConfig(ctxt, resourceId, false);
+  }
+
+  /**
+   * Replaces the network security configuration set up by an earlier
+   * withConfig() or withManifestConfig() call with the one identified
+   * by the supplied XML resource ID. See replaceConfig(Context, int)
+   * for details.
+   *
+   * @param ctxt any Context will work
+   * @param resourceId an R.xml value pointing to the configuration
+   * @param isDebugBuild true if this should be treated as a debug
+   *                     build, false otherwise
+   * @throws IllegalStateException if this builder has no configuration
+   * to replace
+   */
+  public void replaceConfig(Context ctxt, int resourceId,
+                            boolean isDebugBuild) {
+    if (appConfig==null) {
+      throw new IllegalStateException("Please call withConfig() or withManifestConfig() first");
+    }
+
+    replaceConfig(buildConfigSource(ctxt, resourceId, isDebugBuild));
+  }
+
+  private ConfigSource buildConfigSource(Context ctxt, int resourceId,
+                                        boolean isDebugBuild) {
+    return(new XmlConfigSource(ctxt, resourceId, isDebugBuild,
+      Build.VERSION_CODES.CUR_DEVELOPMENT, false,
+      compiledConfigCache ? new CompiledConfigCache(ctxt) : null));
+  }
+
+  void replaceConfig(ConfigSource config) {
+    if (appConfig==null) {
+      throw new IllegalStateException("Please call withConfig() or withManifestConfig() first");
+    }
+
+    appConfig.setConfigSource(config);
+    mgr.clearVerdictCache();
+  }
+
+  /**
+   * Keeps a compiled form of network security configurations in the
+   * app's cache directory, so that later process starts can load it
+   * instead of parsing the XML again. The compiled form is discarded
+   * when the XML changes. This affects later withConfig(),
+   * withManifestConfig(), and replaceConfig() calls, so call it
+   * before those.
+   *
+   * @return the builder for chained calls
+   */
+  public TrustManagerBuilder withCompiledConfigCache() {
+    this.compiledConfigCache=true;
+
+    return(this);
+  }
+
+  /**
+   * Caches successful certificate chain evaluations, so reconnecting
+   * to a server that presents the same certificate chain skips the
+   * full set of checks. See setVerdictCache() on CompositeTrustManager
+   * for details.
+   *
+   * @param maxEntries maximum number of verdicts to cache
+   * @param ttl time-to-live for cached verdicts, in milliseconds
+   * @return the builder for chained calls
+   */
+  public TrustManagerBuilder withVerdictCache(int maxEntries, long ttl) {
+    if (maxEntries<=0) {
+      throw new IllegalArgumentException("Please provide a sensible cache size");
+    }
+
+    this.verdictCacheSize=maxEntries;
+    this.verdictCacheTtl=ttl;
+
+    return(this);
+  }
+
+  /**
+   * Evaluate OR'd trust managers in an order based on how quickly and
+   * how often each accepts certificate chains, rather than in the order
+   * that they were added. See setAdaptiveOrdering() on
+   * CompositeTrustManager for details.
+   *
+   * @return the builder for chained calls
+   */
+  public TrustManagerBuilder withAdaptiveOrdering() {
+    this.adaptiveOrdering=true;
+
+    return(this);
+  }
+
+  /**
+   * Call this if the set of trusted certificates changes (e.g., the
+   * user installs a new CA certificate). This discards state derived
+   * from the old set, including any cached verdicts.
+   */
+  public void handleTrustStorageUpdate() {
+    if (appConfig!=null) {
+      appConfig.handleTrustStorageUpdate();
+    }
+
+    mgr.clearVerdictCache();
+  }
+
   /**
    * Add a listener to be handed all certificate chains. Use this
    * solely for diagnostic purposes (e.g., to understand what
@@ -316,45 +452,4 @@ public class TrustManagerBuilder {
 
     return(appConfig.isCleartextTrafficPermitted(hostname));
   }
-
-  private void validateConfig(Context ctxt, int resourceId,
-                              boolean isUserAllowed) {
-    XmlResourceParser xpp=ctxt.getResources().getXml(resourceId);
-    RuntimeException result=null;
-
-    try {
-      while (xpp.getEventType()!=XmlPullParser.END_DOCUMENT) {
-        if (xpp.getEventType()==XmlPullParser.START_TAG) {
-          if ("certificates".equals(xpp.getName())) {
-            for (int i=0; i<xpp.getAttributeCount(); i++) {
-              String name=xpp.getAttributeName(i);
-
-              if ("src".equals(name)) {
-                String src=xpp.getAttributeValue(i);
-
-                if ("user".equals(src)) {
-                  if (isUserAllowed) {
-                    Log.w("CWAC-NetSecurity", "requested <certificates src=\"user\">, treating as <certificates src=\"system\">");
-                  }
-                  else {
-                    result=new RuntimeException(
-                      "requested <certificates src=\"user\">, not supported");
-                  }
-                }
-              }
-            }
-          }
-        }
-
-        xpp.next();
-      }
-    }
-    catch (Exception e) {
-      throw new RuntimeException("Could not parse config XML", e);
-    }
-
-    if (result!=null) {
-      throw result;
-    }
-  }
 }
@@ -0,0 +1,21 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+/**
+ * Notified when a trust manager stops trusting something that it
+ * previously trusted (e.g., memorized certificates are cleared), so
+ * that cached verdicts can be discarded.
+ */
+interface TrustRevocationListener {
+  void onTrustRevoked();
+}
@@ -0,0 +1,140 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import android.util.LruCache;
+import com.commonsware.cwac.netsecurity.conscrypt.Hex;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+/**
+ * Bounded cache of successful checkServerTrusted() results, keyed by
+ * the SHA-256 hash of the encoded certificate chain, the hostname, and
+ * the authentication type. Entries expire after a time-to-live or when
+ * the earliest notAfter date in the chain passes, whichever comes first.
+ * Failures are never cached, so memorizing a certificate takes effect
+ * on the next handshake.
+ *
+ * clear() advances a generation counter, and put() drops verdicts from
+ * evaluations that started in an earlier generation, so a verdict
+ * reached before a revocation is not cached after it.
+ */
+class TrustVerdictCache {
+  private static final ThreadLocal<MessageDigest> DIGESTS=
+    new ThreadLocal<>();
+  private final LruCache<String, Verdict> verdicts;
+  private final int maxEntries;
+  private final long ttl;
+  private volatile long generation=0;
+
+  TrustVerdictCache(int maxEntries, long ttl) {
+    this.verdicts=new LruCache<>(maxEntries);
+    this.maxEntries=maxEntries;
+    this.ttl=ttl;
+  }
+
+  int getMaxEntries() {
+    return(maxEntries);
+  }
+
+  long getTtl() {
+    return(ttl);
+  }
+
+  /**
+   * @return the current generation, to be passed to put() once the
+   * chain has been evaluated
+   */
+  long getGeneration() {
+    return(generation);
+  }
+
+  /**
+   * @return the cache key for this chain, host, and authType, or null if
+   * the chain could not be hashed (in which case it is not cached)
+   */
+  String keyFor(X509Certificate[] chain, String authType, String host) {
+    try {
+      MessageDigest md=DIGESTS.get();
+
+      if (md==null) {
+        md=MessageDigest.getInstance("SHA-256");
+        DIGESTS.set(md);
+      }
+      else {
+        md.reset();
+      }
+
+      for (X509Certificate cert : chain) {
+        md.update(cert.getEncoded());
+      }
+
+      return(Hex.bytesToHexString(md.digest())+"|"+host+"|"+authType);
+    }
+    catch (NoSuchAlgorithmException|CertificateEncodingException e) {
+      return(null);
+    }
+  }
+
+  /**
+   * @return the cached verdict for this key, or null if there is none
+   * or it has expired
+   */
+  Verdict get(String key) {
+    Verdict result=verdicts.get(key);
+
+    if (result!=null && result.expiresAt<System.currentTimeMillis()) {
+      verdicts.remove(key);
+      result=null;
+    }
+
+    return(result);
+  }
+
+  /**
+   * Caches a successful verdict, unless clear() was called since
+   * getGeneration() returned startGeneration.
+   */
+  synchronized void put(String key, long startGeneration,
+                        X509Certificate[] chain,
+                        List<X509Certificate> trustedChain) {
+    if (startGeneration!=generation) {
+      return;
+    }
+
+    long expiresAt=System.currentTimeMillis()+ttl;
+
+    for (X509Certificate cert : chain) {
+      expiresAt=Math.min(expiresAt, cert.getNotAfter().getTime());
+    }
+
+    verdicts.put(key, new Verdict(trustedChain, expiresAt));
+  }
+
+  synchronized void clear() {
+    generation++;
+    verdicts.evictAll();
+  }
+
+  static class Verdict {
+    final List<X509Certificate> trustedChain;
+    final long expiresAt;
+
+    Verdict(List<X509Certificate> trustedChain, long expiresAt) {
+      this.trustedChain=trustedChain;
+      this.expiresAt=expiresAt;
+    }
+  }
+}
@@ -0,0 +1,242 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import android.util.Log;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * MemorizationPersistence that wraps another one and hands it writes on
+ * an Executor, so save() and remove() return without doing any disk
+ * I/O. Changes are held in memory, one per host, until they are
+ * written; several changes to the same host before the background write
+ * runs cost one write. load() and getHosts() include changes that are
+ * not yet written.
+ *
+ * Each background write ends with a flush() of the wrapped persistence.
+ * flush() on this class writes any pending changes on the calling
+ * thread, so call it before the process might be terminated if the
+ * latest changes need to survive. If a background write fails, the
+ * changes remain pending and are retried on the next write.
+ */
+public class WriteBehindMemorizationPersistence
+  implements MemorizationPersistence {
+  private final MemorizationPersistence persistence;
+  private final Executor executor;
+  // null value means the host was removed
+  private final LinkedHashMap<String, List<X509Certificate>> pending=
+    new LinkedHashMap<>();
+  private final Object writeLock=new Object();
+  private boolean scheduled=false;
+  private final Runnable writer=new Runnable() {
+    @Override
+    public void run() {
+      synchronized(WriteBehindMemorizationPersistence.this) {
+        scheduled=false;
+      }
+
+      try {
+        write();
+      }
+      catch (IOException e) {
+        Log.e("CWAC-NetSecurity", "Could not save memorized certificates", e);
+      }
+    }
+  };
+
+  /**
+   * @param persistence where the certificates are ultimately stored
+   * @param executor runs the background writes
+   */
+  public WriteBehindMemorizationPersistence(MemorizationPersistence persistence,
+                                            Executor executor) {
+    this.persistence=persistence;
+    this.executor=executor;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<String> getHosts() throws IOException {
+    // snapshot before reading the wrapped persistence, so a change that
+    // is written in between shows up in at least one of them
+    LinkedHashMap<String, List<X509Certificate>> changes;
+
+    synchronized(this) {
+      changes=new LinkedHashMap<>(pending);
+    }
+
+    List<String> result=new ArrayList<>();
+
+    for (Map.Entry<String, List<X509Certificate>> change : changes.entrySet()) {
+      if (change.getValue()!=null) {
+        result.add(change.getKey());
+      }
+    }
+
+    Collections.reverse(result);
+
+    for (String host : persistence.getHosts()) {
+      if (!changes.containsKey(host)) {
+        result.add(host);
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<X509Certificate> load(String host) throws IOException {
+    synchronized(this) {
+      if (pending.containsKey(host)) {
+        List<X509Certificate> certs=pending.get(host);
+
+        if (certs==null) {
+          return(Collections.emptyList());
+        }
+
+        return(new ArrayList<>(certs));
+      }
+    }
+
+    return(persistence.load(host));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getSavedAt(String host) throws IOException {
+    synchronized(this) {
+      if (pending.containsKey(host)) {
+        // not saved yet, but it will be shortly
+        return(pending.get(host)==null ? 0 : System.currentTimeMillis());
+      }
+    }
+
+    return(persistence.getSavedAt(host));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  synchronized public void save(String host, List<X509Certificate> certs) {
+    enqueue(host, new ArrayList<>(certs));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  synchronized public void remove(String host) {
+    enqueue(host, null);
+  }
+
+  /**
+   * Writes all pending changes to the wrapped persistence and flushes
+   * it, on the calling thread.
+   *
+   * @throws IOException
+   */
+  @Override
+  public void flush() throws IOException {
+    write();
+  }
+
+  /**
+   * Writes all pending changes, then compacts the wrapped persistence,
+   * on the calling thread.
+   *
+   * @return number of bytes reclaimed
+   * @throws IOException
+   */
+  @Override
+  public long compact() throws IOException {
+    synchronized(writeLock) {
+      write();
+
+      return(persistence.compact());
+    }
+  }
+
+  /**
+   * @return true if there are changes that have not yet been written
+   */
+  synchronized public boolean hasPendingWrites() {
+    return(!pending.isEmpty());
+  }
+
+  private void enqueue(String host, List<X509Certificate> certs) {
+    // re-insert, so pending stays in order of most recent change
+    pending.remove(host);
+    pending.put(host, certs);
+
+    if (!scheduled) {
+      scheduled=true;
+
+      try {
+        executor.execute(writer);
+      }
+      catch (RejectedExecutionException e) {
+        // leave it for the next write or flush()
+        scheduled=false;
+      }
+    }
+  }
+
+  private void write() throws IOException {
+    synchronized(writeLock) {
+      LinkedHashMap<String, List<X509Certificate>> changes;
+
+      synchronized(this) {
+        changes=new LinkedHashMap<>(pending);
+      }
+
+      for (Map.Entry<String, List<X509Certificate>> change : changes.entrySet()) {
+        if (change.getValue()==null) {
+          persistence.remove(change.getKey());
+        }
+        else {
+          persistence.save(change.getKey(), change.getValue());
+        }
+      }
+
+      persistence.flush();
+
+      // changes stay pending until written, so load() never sees an
+      // older value from the wrapped persistence; anything changed
+      // again in the meantime stays pending for the next write
+      synchronized(this) {
+        for (Map.Entry<String, List<X509Certificate>> change : changes.entrySet()) {
+          String host=change.getKey();
+
+          if (pending.containsKey(host) && pending.get(host)==change.getValue()) {
+            pending.remove(host);
+          }
+        }
+      }
+    }
+  }
+}
@@ -11,24 +11,45 @@
 
 package com.commonsware.cwac.netsecurity;
 
+import android.net.http.X509TrustManagerExtensions;
+import android.os.Build;
+import com.commonsware.cwac.netsecurity.config.NetworkSecurityTrustManager;
+import com.commonsware.cwac.netsecurity.config.RootTrustManager;
+import com.commonsware.cwac.netsecurity.conscrypt.TrustManagerImpl;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.net.ssl.X509TrustManager;
 
 /**
  * Wrapper for an X509TrustManager, to try to access the
- * X509Extensions methods via reflection, while also honoring
- * the X509TrustManager contract.
+ * X509Extensions methods, while also honoring the X509TrustManager
+ * contract.
+ *
+ * How those methods get called is worked out once, when the wrapper
+ * is created, and the lookups are cached per trust manager class.
+ * Trust managers from this library are called directly. The platform's
+ * own TrustManagerImpl is called via X509TrustManagerExtensions, which
+ * calls it directly. Anything else falls back to reflection.
  */
 public class X509ExtensionsWrapper implements X509Extensions {
   private static final String ERROR_CONTRACT=
     "Supplied X509TrustManager does not implement X509Extensions contract";
+  private static final Set<String> PLATFORM_TRUST_MANAGERS=
+    new HashSet<>(Arrays.asList(
+      "com.android.org.conscrypt.TrustManagerImpl",
+      "org.apache.harmony.xnet.provider.jsse.TrustManagerImpl"));
+  private static final ConcurrentHashMap<Class<?>, Methods> METHODS=
+    new ConcurrentHashMap<>();
   private final X509TrustManager tm;
-  private final Method checkServerTrustedMethod;
-  private Method isUserAddedCertificateMethod;
+  // package-private for testing by X509ExtensionsWrapperTests
+  final Dispatcher dispatcher;
 
   /**
    * Standard constructor. Fails if the X509TrustManager does not
@@ -39,58 +60,18 @@ public class X509ExtensionsWrapper implements X509Extensions {
    */
   public X509ExtensionsWrapper(X509TrustManager tm) throws IllegalArgumentException {
     this.tm=tm;
-
-    try {
-      checkServerTrustedMethod=
-        tm
-          .getClass()
-          .getMethod("checkServerTrusted",
-            X509Certificate[].class,
-            String.class,
-            String.class);
-    }
-    catch (NoSuchMethodException e) {
-      throw new IllegalArgumentException(ERROR_CONTRACT);
-    }
-
-    try {
-      isUserAddedCertificateMethod=
-        tm
-          .getClass()
-          .getMethod("isUserAddedCertificate", X509Certificate.class);
-    }
-    catch (NoSuchMethodException e) {
-      // ok, we'll fail gracefully for this one
-    }
+    this.dispatcher=buildDispatcher(tm);
   }
 
   /**
    * {@inheritDoc}
    */
-  @SuppressWarnings("unchecked")
   @Override
   public List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
                                                   String authType,
                                                   String host)
     throws CertificateException {
-    try {
-      return((List<X509Certificate>)checkServerTrustedMethod
-        .invoke(tm, chain, authType, host));
-    }
-    catch (IllegalAccessException e) {
-      throw new CertificateException(ERROR_CONTRACT, e);
-    }
-    catch (InvocationTargetException e) {
-      if (e.getCause() instanceof CertificateException) {
-        throw (CertificateException)e.getCause();
-      }
-      else if (e.getCause() instanceof RuntimeException) {
-        throw (RuntimeException)e.getCause();
-      }
-
-      throw new CertificateException("checkServerTrusted() failure",
-        e.getCause());
-    }
+    return(dispatcher.checkServerTrusted(chain, authType, host));
   }
 
   /**
@@ -98,25 +79,7 @@ public class X509ExtensionsWrapper implements X509Extensions {
    */
   @Override
   public boolean isUserAddedCertificate(X509Certificate cert) {
-    if (isUserAddedCertificateMethod==null) {
-      return(false);
-    }
-
-    try {
-      return((Boolean)isUserAddedCertificateMethod.invoke(tm, cert));
-    }
-    catch (IllegalAccessException e) {
-      throw new RuntimeException(ERROR_CONTRACT, e);
-    }
-    catch (InvocationTargetException e) {
-      if (e.getCause() instanceof RuntimeException) {
-        throw (RuntimeException)e.getCause();
-      }
-      else {
-        throw new RuntimeException("isUserAddedCertificat() failure",
-          e.getCause());
-      }
-    }
+    return(dispatcher.isUserAddedCertificate(cert));
   }
 
   /**
@@ -146,4 +109,244 @@ public class X509ExtensionsWrapper implements X509Extensions {
   public X509Certificate[] getAcceptedIssuers() {
     return(tm.getAcceptedIssuers());
   }
-}
\ No newline at end of file
+
+  private static Dispatcher buildDispatcher(X509TrustManager tm) {
+    if (tm instanceof RootTrustManager) {
+      return(new RootDispatcher((RootTrustManager)tm));
+    }
+    else if (tm instanceof NetworkSecurityTrustManager) {
+      return(new NetworkSecurityDispatcher((NetworkSecurityTrustManager)tm));
+    }
+    else if (tm instanceof TrustManagerImpl) {
+      return(new TrustManagerImplDispatcher((TrustManagerImpl)tm));
+    }
+
+    Methods methods=methodsFor(tm.getClass());
+
+    if (PLATFORM_TRUST_MANAGERS.contains(tm.getClass().getName())) {
+      try {
+        return(new PlatformDispatcher(tm, methods,
+          new X509TrustManagerExtensions(tm)));
+      }
+      catch (IllegalArgumentException e) {
+        // fall back to reflection
+      }
+    }
+
+    return(new ReflectionDispatcher(tm, methods));
+  }
+
+  // package-private for testing by X509ExtensionsWrapperTests
+  static Methods methodsFor(Class<?> cls) {
+    Methods result=METHODS.get(cls);
+
+    if (result==null) {
+      result=new Methods(cls);
+
+      Methods existing=METHODS.putIfAbsent(cls, result);
+
+      if (existing!=null) {
+        result=existing;
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * The reflective lookups for a trust manager class, done once
+   * per class.
+   */
+  static class Methods {
+    final Method checkServerTrusted;
+    final Method isUserAddedCertificate;
+
+    Methods(Class<?> cls) {
+      try {
+        checkServerTrusted=cls.getMethod("checkServerTrusted",
+          X509Certificate[].class, String.class, String.class);
+      }
+      catch (NoSuchMethodException e) {
+        throw new IllegalArgumentException(ERROR_CONTRACT);
+      }
+
+      makeAccessible(checkServerTrusted);
+
+      Method isUserAdded=null;
+
+      try {
+        isUserAdded=
+          cls.getMethod("isUserAddedCertificate", X509Certificate.class);
+        makeAccessible(isUserAdded);
+      }
+      catch (NoSuchMethodException e) {
+        // ok, we'll fail gracefully for this one
+      }
+
+      isUserAddedCertificate=isUserAdded;
+    }
+
+    private static void makeAccessible(Method method) {
+      try {
+        // skips the access check on each invoke()
+        method.setAccessible(true);
+      }
+      catch (SecurityException e) {
+        // invoke() will just be a bit slower
+      }
+    }
+  }
+
+  static abstract class Dispatcher {
+    abstract List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
+                                                      String authType,
+                                                      String host)
+      throws CertificateException;
+
+    abstract boolean isUserAddedCertificate(X509Certificate cert);
+  }
+
+  private static class RootDispatcher extends Dispatcher {
+    private final RootTrustManager tm;
+
+    RootDispatcher(RootTrustManager tm) {
+      this.tm=tm;
+    }
+
+    @Override
+    List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
+                                             String authType, String host)
+      throws CertificateException {
+      return(tm.checkServerTrusted(chain, authType, host));
+    }
+
+    @Override
+    boolean isUserAddedCertificate(X509Certificate cert) {
+      return(false);
+    }
+  }
+
+  private static class NetworkSecurityDispatcher extends Dispatcher {
+    private final NetworkSecurityTrustManager tm;
+
+    NetworkSecurityDispatcher(NetworkSecurityTrustManager tm) {
+      this.tm=tm;
+    }
+
+    @Override
+    List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
+                                             String authType, String host)
+      throws CertificateException {
+      return(tm.checkServerTrusted(chain, authType, host));
+    }
+
+    @Override
+    boolean isUserAddedCertificate(X509Certificate cert) {
+      return(false);
+    }
+  }
+
+  private static class TrustManagerImplDispatcher extends Dispatcher {
+    private final TrustManagerImpl tm;
+
+    TrustManagerImplDispatcher(TrustManagerImpl tm) {
+      this.tm=tm;
+    }
+
+    @Override
+    List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
+                                             String authType, String host)
+      throws CertificateException {
+      return(tm.checkServerTrusted(chain, authType, host));
+    }
+
+    @Override
+    boolean isUserAddedCertificate(X509Certificate cert) {
+      return(false);
+    }
+  }
+
+  private static class PlatformDispatcher extends ReflectionDispatcher {
+    private final X509TrustManagerExtensions extensions;
+
+    PlatformDispatcher(X509TrustManager tm, Methods methods,
+                       X509TrustManagerExtensions extensions) {
+      super(tm, methods);
+      this.extensions=extensions;
+    }
+
+    @Override
+    List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
+                                             String authType, String host)
+      throws CertificateException {
+      return(extensions.checkServerTrusted(chain, authType, host));
+    }
+
+    @Override
+    boolean isUserAddedCertificate(X509Certificate cert) {
+      if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.LOLLIPOP) {
+        return(extensions.isUserAddedCertificate(cert));
+      }
+
+      return(super.isUserAddedCertificate(cert));
+    }
+  }
+
+  private static class ReflectionDispatcher extends Dispatcher {
+    private final X509TrustManager tm;
+    private final Methods methods;
+
+    ReflectionDispatcher(X509TrustManager tm, Methods methods) {
+      this.tm=tm;
+      this.methods=methods;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
+                                             String authType, String host)
+      throws CertificateException {
+      try {
+        return((List<X509Certificate>)methods.checkServerTrusted
+          .invoke(tm, chain, authType, host));
+      }
+      catch (IllegalAccessException e) {
+        throw new CertificateException(ERROR_CONTRACT, e);
+      }
+      catch (InvocationTargetException e) {
+        if (e.getCause() instanceof CertificateException) {
+          throw (CertificateException)e.getCause();
+        }
+        else if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException)e.getCause();
+        }
+
+        throw new CertificateException("checkServerTrusted() failure",
+          e.getCause());
+      }
+    }
+
+    @Override
+    boolean isUserAddedCertificate(X509Certificate cert) {
+      if (methods.isUserAddedCertificate==null) {
+        return(false);
+      }
+
+      try {
+        return((Boolean)methods.isUserAddedCertificate.invoke(tm, cert));
+      }
+      catch (IllegalAccessException e) {
+        throw new RuntimeException(ERROR_CONTRACT, e);
+      }
+      catch (InvocationTargetException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException)e.getCause();
+        }
+        else {
+          throw new RuntimeException("isUserAddedCertificat() failure",
+            e.getCause());
+        }
+      }
+    }
+  }
+}
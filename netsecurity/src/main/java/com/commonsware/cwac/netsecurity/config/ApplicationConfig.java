@@ -34,25 +34,48 @@ public final class ApplicationConfig {
     private static ApplicationConfig sInstance;
     private static Object sLock = new Object();
 
-    private Set<Pair<Domain, NetworkSecurityConfig>> mConfigs;
-    private NetworkSecurityConfig mDefaultConfig;
-    private X509TrustManager mTrustManager;
+    /**
+     * Fully built configuration, published once initialization is done and replaced as a whole
+     * by {@link #setConfigSource(ConfigSource)}. Reads after initialization only need this
+     * volatile read, never {@link #mLock}.
+     */
+    private volatile Snapshot mSnapshot;
 
     private ConfigSource mConfigSource;
-    private boolean mInitialized;
+    private final X509TrustManager mTrustManager;
     private final Object mLock = new Object();
 
     public ApplicationConfig(ConfigSource configSource) {
         mConfigSource = configSource;
-        mInitialized = false;
+        mTrustManager = new RootTrustManager(this);
+    }
+
+    /**
+     * Replaces this configuration with the one provided by {@code configSource}.
+     *
+     * <p>The new configuration is fully built before it is installed, without blocking lookups
+     * against the current one, and then replaces it atomically. Trust checks that are already
+     * running complete against the configuration that they started with. The trust manager
+     * returned by {@link #getTrustManager()} stays the same, and uses the new configuration
+     * for subsequent checks.</p>
+     *
+     * <p>TLS sessions established before the swap may still be resumed without another trust
+     * check.</p>
+     */
+    public void setConfigSource(ConfigSource configSource) {
+        Snapshot snapshot = new Snapshot(configSource.getPerDomainConfigs(),
+                configSource.getDefaultConfig());
+        synchronized (mLock) {
+            mConfigSource = null;
+            mSnapshot = snapshot;
+        }
     }
 
     /**
      * @hide
      */
     public boolean hasPerDomainConfigs() {
-        ensureInitialized();
-        return mConfigs != null && !mConfigs.isEmpty();
+        return ensureInitialized().hasPerDomainConfigs;
     }
 
     /**
@@ -62,54 +85,22 @@ public final class ApplicationConfig {
      *
      * {@code NetworkSecurityConfig} objects returned by this method can be safely cached for
      * {@code hostname}. Subsequent calls with the same hostname will always return the same
-     * {@code NetworkSecurityConfig}.
+     * {@code NetworkSecurityConfig}, until the configuration is replaced by
+     * {@link #setConfigSource(ConfigSource)}.
      *
      * @return {@link NetworkSecurityConfig} to be used to determine
      * the network security configuration for connections to {@code hostname}.
      */
     public NetworkSecurityConfig getConfigForHostname(String hostname) {
-        ensureInitialized();
-        if (hostname == null || hostname.isEmpty() || mConfigs == null) {
-            return mDefaultConfig;
-        }
-        if (hostname.charAt(0) ==  '.') {
-            throw new IllegalArgumentException("hostname must not begin with a .");
-        }
-        // Domains are case insensitive.
-        hostname = hostname.toLowerCase(Locale.US);
-        // Normalize hostname by removing trailing . if present, all Domain hostnames are
-        // absolute.
-        if (hostname.charAt(hostname.length() - 1) == '.') {
-            hostname = hostname.substring(0, hostname.length() - 1);
-        }
-        // Find the Domain -> NetworkSecurityConfig entry with the most specific matching
-        // Domain entry for hostname.
-        // TODO: Use a smarter data structure for the lookup.
-        Pair<Domain, NetworkSecurityConfig> bestMatch = null;
-        for (Pair<Domain, NetworkSecurityConfig> entry : mConfigs) {
-            Domain domain = entry.first;
-            NetworkSecurityConfig config = entry.second;
-            // Check for an exact match.
-            if (domain.hostname.equals(hostname)) {
-                return config;
-            }
-            // Otherwise check if the Domain includes sub-domains and that the hostname is a
-            // sub-domain of the Domain.
-            if (domain.subdomainsIncluded
-                    && hostname.endsWith(domain.hostname)
-                    && hostname.charAt(hostname.length() - domain.hostname.length() - 1) == '.') {
-                if (bestMatch == null) {
-                    bestMatch = entry;
-                } else if (domain.hostname.length() > bestMatch.first.hostname.length()) {
-                    bestMatch = entry;
-                }
-            }
-        }
-        if (bestMatch != null) {
-            return bestMatch.second;
-        }
-        // If no match was found use the default configuration.
-        return mDefaultConfig;
+        return ensureInitialized().getConfigForHostname(hostname);
+    }
+
+    /**
+     * Returns the current configuration, for callers that need several lookups to be answered
+     * by the same configuration even if it is replaced in the meantime.
+     */
+    Snapshot getSnapshot() {
+        return ensureInitialized();
     }
 
     /**
@@ -117,6 +108,7 @@ public final class ApplicationConfig {
      * certificate pinning based on this configuration.
      */
     public X509TrustManager getTrustManager() {
+        // Initializes the configuration, so that configuration errors are reported here.
         ensureInitialized();
         return mTrustManager;
     }
@@ -127,16 +119,7 @@ public final class ApplicationConfig {
      * {@link #isCleartextTrafficPermitted(String)}.
      */
     public boolean isCleartextTrafficPermitted() {
-        ensureInitialized();
-        if (mConfigs != null) {
-            for (Pair<Domain, NetworkSecurityConfig> entry : mConfigs) {
-                if (!entry.second.isCleartextTrafficPermitted()) {
-                    return false;
-                }
-            }
-        }
-
-        return mDefaultConfig.isCleartextTrafficPermitted();
+        return ensureInitialized().cleartextTrafficPermitted;
     }
 
     /**
@@ -148,12 +131,12 @@ public final class ApplicationConfig {
     }
 
     public void handleTrustStorageUpdate() {
-        ensureInitialized();
-        mDefaultConfig.handleTrustStorageUpdate();
-        if (mConfigs != null) {
+        Snapshot snapshot = ensureInitialized();
+        snapshot.defaultConfig.handleTrustStorageUpdate();
+        if (snapshot.configs != null) {
             Set<NetworkSecurityConfig> updatedConfigs =
-                    new HashSet<NetworkSecurityConfig>(mConfigs.size());
-            for (Pair<Domain, NetworkSecurityConfig> entry : mConfigs) {
+                    new HashSet<NetworkSecurityConfig>(snapshot.configs.size());
+            for (Pair<Domain, NetworkSecurityConfig> entry : snapshot.configs) {
                 if (updatedConfigs.add(entry.second)) {
                     entry.second.handleTrustStorageUpdate();
                 }
@@ -161,16 +144,87 @@ public final class ApplicationConfig {
         }
     }
 
-    private void ensureInitialized() {
+    private Snapshot ensureInitialized() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
         synchronized(mLock) {
-            if (mInitialized) {
-                return;
+            if (mSnapshot == null) {
+                mSnapshot = new Snapshot(mConfigSource.getPerDomainConfigs(),
+                        mConfigSource.getDefaultConfig());
+                mConfigSource = null;
             }
-            mConfigs = mConfigSource.getPerDomainConfigs();
-            mDefaultConfig = mConfigSource.getDefaultConfig();
-            mConfigSource = null;
-            mTrustManager = new RootTrustManager(this);
-            mInitialized = true;
+            return mSnapshot;
+        }
+    }
+
+    private static DomainIndex<NetworkSecurityConfig> buildConfigIndex(
+            Set<Pair<Domain, NetworkSecurityConfig>> configs) {
+        DomainIndex<NetworkSecurityConfig> index = new DomainIndex<>();
+        if (configs != null) {
+            for (Pair<Domain, NetworkSecurityConfig> entry : configs) {
+                index.put(entry.first, entry.second);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Immutable view of the configuration. Everything that reads need is worked out when the
+     * snapshot is built, and it is only shared once built, through {@link #mSnapshot}.
+     */
+    static final class Snapshot {
+        final Set<Pair<Domain, NetworkSecurityConfig>> configs;
+        final DomainIndex<NetworkSecurityConfig> configIndex;
+        final NetworkSecurityConfig defaultConfig;
+        final boolean hasPerDomainConfigs;
+        final boolean cleartextTrafficPermitted;
+
+        Snapshot(Set<Pair<Domain, NetworkSecurityConfig>> configs,
+                NetworkSecurityConfig defaultConfig) {
+            this.configs = configs;
+            this.configIndex = buildConfigIndex(configs);
+            this.defaultConfig = defaultConfig;
+            this.hasPerDomainConfigs = configs != null && !configs.isEmpty();
+            this.cleartextTrafficPermitted = isCleartextTrafficPermitted(configs, defaultConfig);
+        }
+
+        NetworkSecurityConfig getConfigForHostname(String hostname) {
+            if (hostname == null || hostname.isEmpty() || !hasPerDomainConfigs) {
+                return defaultConfig;
+            }
+            if (hostname.charAt(0) ==  '.') {
+                throw new IllegalArgumentException("hostname must not begin with a .");
+            }
+            // Domains are case insensitive.
+            hostname = hostname.toLowerCase(Locale.US);
+            // Normalize hostname by removing trailing . if present, all Domain hostnames are
+            // absolute.
+            if (hostname.charAt(hostname.length() - 1) == '.') {
+                hostname = hostname.substring(0, hostname.length() - 1);
+            }
+            // Find the NetworkSecurityConfig of the most specific matching Domain entry for
+            // hostname.
+            NetworkSecurityConfig config = configIndex.get(hostname);
+            if (config != null) {
+                return config;
+            }
+            // If no match was found use the default configuration.
+            return defaultConfig;
+        }
+
+        private static boolean isCleartextTrafficPermitted(
+                Set<Pair<Domain, NetworkSecurityConfig>> configs,
+                NetworkSecurityConfig defaultConfig) {
+            if (configs != null) {
+                for (Pair<Domain, NetworkSecurityConfig> entry : configs) {
+                    if (!entry.second.isCleartextTrafficPermitted()) {
+                        return false;
+                    }
+                }
+            }
+            return defaultConfig.isCleartextTrafficPermitted();
         }
     }
 
@@ -34,6 +34,10 @@ public final class CertificatesEntryRef {
         return mOverridesPins;
     }
 
+    CertificateSource getSource() {
+        return mSource;
+    }
+
     public Set<TrustAnchor> getTrustAnchors() {
         // TODO: cache this [but handle mutable sources]
         Set<TrustAnchor> anchors = new HashSet<>();
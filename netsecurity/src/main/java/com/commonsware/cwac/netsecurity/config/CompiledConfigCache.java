@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2017 CommonsWare, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.config;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+import android.util.Pair;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of configurations parsed by {@link XmlConfigSource}, stored in a compact binary form in
+ * the app's cache directory, so that later process starts can skip parsing the XML.
+ *
+ * <p>Each entry is keyed by a SHA-256 hash of the XML resource contents (and of the
+ * {@code _debug} resource, if used), the resource ID, the parsing options, and the version of
+ * this format. If any of those change, the entry is ignored and replaced after the XML is
+ * parsed again. Entries are memory-mapped when read. Certificates referenced by the config are
+ * stored as resource IDs and loaded lazily, as with the XML path.</p>
+ *
+ * @hide
+ */
+public final class CompiledConfigCache {
+    private static final String LOG_TAG = "NetworkSecurityConfig";
+    private static final String DIR_NAME = "cwac-netsecurity";
+    private static final int MAGIC = 0x4e534343;
+    // Bump whenever the layout written by encode() changes.
+    private static final int FORMAT_VERSION = 1;
+    private static final int KEY_LENGTH = 32;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte SOURCE_SYSTEM = 0;
+    private static final byte SOURCE_RESOURCE = 1;
+
+    private final File mDir;
+
+    public CompiledConfigCache(Context context) {
+        this(new File(context.getCacheDir(), DIR_NAME));
+    }
+
+    public CompiledConfigCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Computes the key for a configuration, hashing the contents of its resources.
+     *
+     * @param debugResourceId the {@code _debug} resource that will be consulted, or 0 if none
+     */
+    byte[] computeKey(Resources resources, int resourceId, int debugResourceId,
+            boolean debugBuild, boolean userCertificatesAllowed, int targetSdkVersion)
+            throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(resourceId);
+        out.writeInt(debugResourceId);
+        out.writeBoolean(debugBuild);
+        out.writeBoolean(userCertificatesAllowed);
+        out.writeInt(targetSdkVersion);
+        out.flush();
+        md.update(header.toByteArray());
+        digestResource(md, resources, resourceId);
+        if (debugResourceId != 0) {
+            digestResource(md, resources, debugResourceId);
+        }
+        return md.digest();
+    }
+
+    /**
+     * Returns the cached configuration for {@code resourceId} if it was stored with
+     * {@code key}, or {@code null} otherwise.
+     */
+    Entry load(int resourceId, byte[] key, Context context) {
+        File file = getFile(resourceId);
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Entry entry = decode(buffer, key, context);
+            if (entry == null) {
+                Log.d(LOG_TAG, "Compiled config " + file.getName() + " is out of date");
+            }
+            return entry;
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Discarding unreadable compiled config " + file.getName(), e);
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stores a configuration under {@code key}, replacing any earlier entry for
+     * {@code resourceId}. Failures are logged, as the XML is always available as a fallback.
+     */
+    void store(int resourceId, byte[] key, Set<Pair<Domain, NetworkSecurityConfig>> domainMap,
+            NetworkSecurityConfig defaultConfig) {
+        byte[] encoded;
+        try {
+            encoded = encode(key, domainMap, defaultConfig);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not compile config", e);
+            return;
+        }
+        if (encoded == null) {
+            // Uses certificate sources that cannot be stored, just keep using the XML.
+            return;
+        }
+        File file = getFile(resourceId);
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            if (!mDir.exists() && !mDir.mkdirs()) {
+                throw new IOException("Could not create " + mDir);
+            }
+            out = new FileOutputStream(tmp);
+            out.write(encoded);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not store compiled config " + file.getName(), e);
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private File getFile(int resourceId) {
+        return new File(mDir, "config-" + Integer.toHexString(resourceId) + ".bin");
+    }
+
+    private static byte[] encode(byte[] key, Set<Pair<Domain, NetworkSecurityConfig>> domainMap,
+            NetworkSecurityConfig defaultConfig) throws IOException {
+        // Configs are written once each and referenced by index, so that domains sharing a
+        // config still share it once loaded.
+        Map<NetworkSecurityConfig, Integer> indices = new IdentityHashMap<>();
+        List<NetworkSecurityConfig> configs = new ArrayList<>();
+        indices.put(defaultConfig, 0);
+        configs.add(defaultConfig);
+        if (domainMap != null) {
+            for (Pair<Domain, NetworkSecurityConfig> entry : domainMap) {
+                if (!indices.containsKey(entry.second)) {
+                    indices.put(entry.second, configs.size());
+                    configs.add(entry.second);
+                }
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.write(key);
+        out.writeInt(configs.size());
+        for (NetworkSecurityConfig config : configs) {
+            out.writeBoolean(config.isCleartextTrafficPermitted());
+            out.writeBoolean(config.isHstsEnforced());
+            PinSet pins = config.getPins();
+            out.writeLong(pins.expirationTime);
+            out.writeInt(pins.pins.size());
+            for (Pin pin : pins.pins) {
+                writeString(out, pin.digestAlgorithm);
+                out.writeInt(pin.digest.length);
+                out.write(pin.digest);
+            }
+            List<CertificatesEntryRef> refs = config.getCertificatesEntryRefs();
+            out.writeInt(refs.size());
+            for (CertificatesEntryRef ref : refs) {
+                CertificateSource source = ref.getSource();
+                if (source instanceof SystemCertificateSource) {
+                    out.writeByte(SOURCE_SYSTEM);
+                } else if (source instanceof ResourceCertificateSource) {
+                    out.writeByte(SOURCE_RESOURCE);
+                    out.writeInt(((ResourceCertificateSource) source).getResourceId());
+                } else {
+                    return null;
+                }
+                out.writeBoolean(ref.overridesPins());
+            }
+        }
+        int domainCount = domainMap == null ? 0 : domainMap.size();
+        out.writeBoolean(domainMap != null);
+        out.writeInt(domainCount);
+        if (domainMap != null) {
+            for (Pair<Domain, NetworkSecurityConfig> entry : domainMap) {
+                writeString(out, entry.first.hostname);
+                out.writeBoolean(entry.first.subdomainsIncluded);
+                out.writeInt(indices.get(entry.second));
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Entry decode(ByteBuffer in, byte[] key, Context context) {
+        if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+            return null;
+        }
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            if (in.get() != key[i]) {
+                return null;
+            }
+        }
+        Map<Integer, ResourceCertificateSource> resourceSources = new HashMap<>();
+        int configCount = checkCount(in.getInt(), in);
+        NetworkSecurityConfig[] configs = new NetworkSecurityConfig[configCount];
+        for (int i = 0; i < configCount; i++) {
+            NetworkSecurityConfig.Builder builder = new NetworkSecurityConfig.Builder()
+                    .setCleartextTrafficPermitted(in.get() != 0)
+                    .setHstsEnforced(in.get() != 0);
+            long expirationTime = in.getLong();
+            int pinCount = checkCount(in.getInt(), in);
+            Set<Pin> pins = new HashSet<>();
+            for (int j = 0; j < pinCount; j++) {
+                String digestAlgorithm = readString(in);
+                byte[] digest = new byte[checkCount(in.getInt(), in)];
+                in.get(digest);
+                pins.add(new Pin(digestAlgorithm, digest));
+            }
+            builder.setPinSet(new PinSet(pins, expirationTime));
+            int refCount = checkCount(in.getInt(), in);
+            List<CertificatesEntryRef> refs = new ArrayList<>(refCount);
+            for (int j = 0; j < refCount; j++) {
+                CertificateSource source;
+                byte type = in.get();
+                if (type == SOURCE_SYSTEM) {
+                    source = SystemCertificateSource.getInstance();
+                } else if (type == SOURCE_RESOURCE) {
+                    int sourceId = in.getInt();
+                    ResourceCertificateSource resourceSource = resourceSources.get(sourceId);
+                    if (resourceSource == null) {
+                        resourceSource = new ResourceCertificateSource(sourceId, context);
+                        resourceSources.put(sourceId, resourceSource);
+                    }
+                    source = resourceSource;
+                } else {
+                    throw new IllegalArgumentException("Unknown certificate source " + type);
+                }
+                refs.add(new CertificatesEntryRef(source, in.get() != 0));
+            }
+            builder.addCertificatesEntryRefs(refs);
+            configs[i] = builder.build();
+        }
+        boolean hasDomainMap = in.get() != 0;
+        int domainCount = checkCount(in.getInt(), in);
+        Set<Pair<Domain, NetworkSecurityConfig>> domainMap = null;
+        if (hasDomainMap) {
+            domainMap = new HashSet<>();
+            for (int i = 0; i < domainCount; i++) {
+                Domain domain = new Domain(readString(in), in.get() != 0);
+                domainMap.add(new Pair<>(domain, configs[in.getInt()]));
+            }
+        }
+        if (in.hasRemaining()) {
+            throw new IllegalArgumentException("Trailing data");
+        }
+        return new Entry(domainMap, configs[0]);
+    }
+
+    private static void digestResource(MessageDigest md, Resources resources, int resourceId)
+            throws IOException {
+        InputStream in = resources.openRawResource(resourceId);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                md.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[checkCount(in.getInt(), in)];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Rejects counts that cannot be right, so that a damaged file fails fast instead of
+     * allocating a huge array.
+     */
+    private static int checkCount(int count, ByteBuffer in) {
+        if (count < 0 || count > in.remaining()) {
+            throw new IllegalArgumentException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    static final class Entry {
+        final Set<Pair<Domain, NetworkSecurityConfig>> domainMap;
+        final NetworkSecurityConfig defaultConfig;
+
+        Entry(Set<Pair<Domain, NetworkSecurityConfig>> domainMap,
+                NetworkSecurityConfig defaultConfig) {
+            this.domainMap = domainMap;
+            this.defaultConfig = defaultConfig;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 CommonsWare, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.config;
+
+/**
+ * Index from {@link Domain} to a value, used to find the most specific {@code Domain} matching
+ * a hostname.
+ *
+ * <p>Domains are stored in a trie keyed by their labels, last label first. A lookup walks the
+ * labels of the hostname from right to left, so it costs O(labels in the hostname) regardless
+ * of the number of domains, and it does not allocate.</p>
+ *
+ * <p>The results are the same as a scan of all domains: an exact match on the hostname wins,
+ * otherwise the longest domain that includes subdomains and of which the hostname is a
+ * sub-domain wins, otherwise there is no match.</p>
+ *
+ * @hide
+ */
+public final class DomainIndex<T> {
+    private final Node<T> mRoot = new Node<>();
+    private int mSize;
+
+    /**
+     * Adds a domain to the index. If the index already has a value for the same hostname, the
+     * first one added is kept, for both exact and sub-domain matches.
+     */
+    public void put(Domain domain, T value) {
+        String hostname = domain.hostname;
+        Node<T> node = mRoot;
+        int end = hostname.length();
+        while (true) {
+            int start = hostname.lastIndexOf('.', end - 1) + 1;
+            node = node.getOrAddChild(hostname.substring(start, end));
+            if (start == 0) {
+                break;
+            }
+            end = start - 1;
+        }
+        if (node.exactValue == null) {
+            node.exactValue = value;
+        }
+        if (domain.subdomainsIncluded && node.subdomainValue == null) {
+            node.subdomainValue = value;
+        }
+        mSize++;
+    }
+
+    /**
+     * @return the number of domains added to this index
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the value for the most specific domain matching {@code hostname}, or {@code null}
+     * if no domain matches.
+     *
+     * @param hostname lower case hostname without a trailing {@code .}
+     */
+    public T get(String hostname) {
+        Node<T> node = mRoot;
+        T bestMatch = null;
+        int end = hostname.length();
+        while (true) {
+            int start = hostname.lastIndexOf('.', end - 1) + 1;
+            node = node.getChild(hostname, start, end);
+            if (node == null) {
+                return bestMatch;
+            }
+            if (start == 0) {
+                // All labels consumed, this node is for the hostname itself.
+                return node.exactValue != null ? node.exactValue : bestMatch;
+            }
+            // Labels remain, so the hostname is a sub-domain of this node's domain. Deeper
+            // nodes are longer domains, so they replace any earlier match.
+            if (node.subdomainValue != null) {
+                bestMatch = node.subdomainValue;
+            }
+            end = start - 1;
+        }
+    }
+
+    /**
+     * Trie node, with children stored in an open-addressing hash table keyed by label. Lookups
+     * hash and compare a region of the hostname in place, so no substring is needed.
+     */
+    private static final class Node<T> {
+        private static final int INITIAL_CAPACITY = 4;
+
+        private String[] mLabels;
+        private Node<T>[] mChildren;
+        private int mChildCount;
+
+        T exactValue;
+        T subdomainValue;
+
+        Node<T> getChild(String hostname, int start, int end) {
+            if (mLabels == null) {
+                return null;
+            }
+            int mask = mLabels.length - 1;
+            int length = end - start;
+            for (int i = hash(hostname, start, end) & mask; ; i = (i + 1) & mask) {
+                String label = mLabels[i];
+                if (label == null) {
+                    return null;
+                }
+                if (label.length() == length && hostname.regionMatches(start, label, 0, length)) {
+                    return mChildren[i];
+                }
+            }
+        }
+
+        Node<T> getOrAddChild(String label) {
+            Node<T> child = getChild(label, 0, label.length());
+            if (child != null) {
+                return child;
+            }
+            if (mLabels == null) {
+                allocate(INITIAL_CAPACITY);
+            } else if ((mChildCount + 1) * 2 > mLabels.length) {
+                String[] oldLabels = mLabels;
+                Node<T>[] oldChildren = mChildren;
+                allocate(mLabels.length * 2);
+                for (int i = 0; i < oldLabels.length; i++) {
+                    if (oldLabels[i] != null) {
+                        insert(oldLabels[i], oldChildren[i]);
+                    }
+                }
+            }
+            child = new Node<>();
+            insert(label, child);
+            mChildCount++;
+            return child;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void allocate(int capacity) {
+            mLabels = new String[capacity];
+            mChildren = (Node<T>[]) new Node[capacity];
+        }
+
+        private void insert(String label, Node<T> child) {
+            int mask = mLabels.length - 1;
+            int i = hash(label, 0, label.length()) & mask;
+            while (mLabels[i] != null) {
+                i = (i + 1) & mask;
+            }
+            mLabels[i] = label;
+            mChildren[i] = child;
+        }
+
+        private static int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + s.charAt(i);
+            }
+            // Spread the bits, as the table index only uses the low ones.
+            return h ^ (h >>> 16);
+        }
+    }
+}
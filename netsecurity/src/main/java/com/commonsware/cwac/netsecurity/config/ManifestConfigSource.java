@@ -34,12 +34,22 @@ public class ManifestConfigSource implements ConfigSource {
     private final Context mContext;
     private final int mApplicationInfoFlags;
     private final int mTargetSdkVersion;
+    private final CompiledConfigCache mCompiledConfigCache;
     // private final int mConfigResourceId;
 
     private ConfigSource mConfigSource;
 
     public ManifestConfigSource(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * @param compiledConfigCache passed along to the {@link XmlConfigSource} for the manifest
+     * configuration, may be {@code null}
+     */
+    public ManifestConfigSource(Context context, CompiledConfigCache compiledConfigCache) {
         mContext = context;
+        mCompiledConfigCache = compiledConfigCache;
         // Cache values because ApplicationInfo is mutable and apps do modify it :(
         ApplicationInfo info = context.getApplicationInfo();
         mApplicationInfoFlags = info.flags;
@@ -86,8 +96,10 @@ public class ManifestConfigSource implements ConfigSource {
                             + mContext.getResources().getResourceEntryName(configResourceId)
                             + " debugBuild: " + debugBuild);
                 }
+                // MLM src="user" is tolerated here, as the same resource is used by the
+                // platform on N+, where it is supported
                 source = new XmlConfigSource(mContext, configResourceId, debugBuild,
-                        mTargetSdkVersion);
+                        mTargetSdkVersion, true, mCompiledConfigCache);
             } else {
                 if (DBG) {
                     Log.d(LOG_TAG, "No Network Security Config specified, using platform default");
@@ -110,6 +110,10 @@ public final class NetworkSecurityConfig {
         return mPins;
     }
 
+    List<CertificatesEntryRef> getCertificatesEntryRefs() {
+        return mCertificatesEntryRefs;
+    }
+
     public NetworkSecurityTrustManager getTrustManager() {
         synchronized(mTrustManagerLock) {
             if (mTrustManager == null) {
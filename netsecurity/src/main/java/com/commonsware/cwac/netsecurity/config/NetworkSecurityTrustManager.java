@@ -25,10 +25,7 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
-import java.security.MessageDigest;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import javax.net.ssl.SSLEngine;
@@ -40,6 +37,9 @@ import com.commonsware.cwac.netsecurity.luni.X509ExtendedTrustManager;
  * @hide
  */
 public class NetworkSecurityTrustManager extends X509ExtendedTrustManager {
+    // Shared by all instances, as the same certificates appear under every config.
+    private static final SpkiDigestCache sSpkiDigests = new SpkiDigestCache();
+
     // TODO: Replace this with a general X509TrustManager and use duck-typing.
     private final TrustManagerImpl mDelegate;
     private final NetworkSecurityConfig mNetworkSecurityConfig;
@@ -123,30 +123,30 @@ public class NetworkSecurityTrustManager extends X509ExtendedTrustManager {
                 || !isPinningEnforced(chain)) {
             return;
         }
-        Set<String> pinAlgorithms = pinSet.getPinAlgorithms();
-        Map<String, MessageDigest> digestMap = new HashMap<>(
-                pinAlgorithms.size());
+        if (!matchesPins(pinSet, chain)) {
+            // TODO: Throw a subclass of CertificateException which indicates a pinning failure.
+            throw new CertificateException("Pin verification failed");
+        }
+    }
+
+    /**
+     * Returns whether the SubjectPublicKeyInfo of any certificate in {@code chain} matches one
+     * of the pins, checking from the trust anchor end of the chain. Digests come from a
+     * process-wide {@link SpkiDigestCache}.
+     *
+     * @hide
+     */
+    public static boolean matchesPins(PinSet pinSet, List<X509Certificate> chain) {
+        String[] pinAlgorithms = pinSet.getPinAlgorithms();
         for (int i = chain.size() - 1; i >= 0 ; i--) {
             X509Certificate cert = chain.get(i);
-            byte[] encodedSPKI = cert.getPublicKey().getEncoded();
             for (String algorithm : pinAlgorithms) {
-                MessageDigest md = digestMap.get(algorithm);
-                if (md == null) {
-                    try {
-                        md = MessageDigest.getInstance(algorithm);
-                    } catch (GeneralSecurityException e) {
-                        throw new RuntimeException(e);
-                    }
-                    digestMap.put(algorithm, md);
-                }
-                if (pinSet.pins.contains(new Pin(algorithm, md.digest(encodedSPKI)))) {
-                    return;
+                if (pinSet.contains(algorithm, sSpkiDigests.get(cert, algorithm))) {
+                    return true;
                 }
             }
         }
-
-        // TODO: Throw a subclass of CertificateException which indicates a pinning failure.
-        throw new CertificateException("Pin verification failed");
+        return false;
     }
 
     private boolean isPinningEnforced(List<X509Certificate> chain) throws CertificateException {
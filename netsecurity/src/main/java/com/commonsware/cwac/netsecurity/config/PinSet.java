@@ -17,6 +17,7 @@
 package com.commonsware.cwac.netsecurity.config;
 
 import android.util.ArraySet;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -28,20 +29,40 @@ public final class PinSet {
     public final long expirationTime;
     public final Set<Pin> pins;
 
+    // Pin sets are small, so contains() scans these rather than hashing, and arrays do not
+    // need an Iterator for each pass.
+    private final Pin[] mPins;
+    private final String[] mAlgorithms;
+
     public PinSet(Set<Pin> pins, long expirationTime) {
         if (pins == null) {
             throw new NullPointerException("pins must not be null");
         }
         this.pins = pins;
         this.expirationTime = expirationTime;
-    }
-
-    Set<String> getPinAlgorithms() {
-        // TODO: Cache this.
+        mPins = pins.toArray(new Pin[pins.size()]);
         Set<String> algorithms = new HashSet<>();
-        for (Pin pin : pins) {
+        for (Pin pin : mPins) {
             algorithms.add(pin.digestAlgorithm);
         }
-        return algorithms;
+        mAlgorithms = algorithms.toArray(new String[algorithms.size()]);
+    }
+
+    String[] getPinAlgorithms() {
+        return mAlgorithms;
+    }
+
+    /**
+     * Returns whether this set has a pin with the given algorithm and digest, without
+     * allocating a {@link Pin} to look it up.
+     */
+    public boolean contains(String digestAlgorithm, byte[] digest) {
+        for (Pin pin : mPins) {
+            if (Arrays.equals(pin.digest, digest)
+                    && pin.digestAlgorithm.equals(digestAlgorithm)) {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -49,6 +49,10 @@ public class ResourceCertificateSource implements CertificateSource {
         mContext = context;
     }
 
+    int getResourceId() {
+        return mResourceId;
+    }
+
     private void ensureInitialized() {
         synchronized (mLock) {
             if (mCertificates != null) {
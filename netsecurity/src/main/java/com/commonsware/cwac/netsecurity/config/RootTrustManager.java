@@ -137,12 +137,14 @@ public class RootTrustManager extends X509ExtendedTrustManager {
     @Override
     public void checkServerTrusted(X509Certificate[] certs, String authType)
             throws CertificateException {
-        if (mConfig.hasPerDomainConfigs()) {
+        // Use one snapshot throughout, in case the configuration is replaced mid-check.
+        ApplicationConfig.Snapshot snapshot = mConfig.getSnapshot();
+        if (snapshot.hasPerDomainConfigs) {
             throw new CertificateException(
                     "Domain specific configurations require that hostname aware"
                     + " checkServerTrusted(X509Certificate[], String, String) is used");
         }
-        NetworkSecurityConfig config = mConfig.getConfigForHostname("");
+        NetworkSecurityConfig config = snapshot.getConfigForHostname("");
         config.getTrustManager().checkServerTrusted(certs, authType);
     }
 
@@ -153,11 +155,13 @@ public class RootTrustManager extends X509ExtendedTrustManager {
      */
     public List<X509Certificate> checkServerTrusted(X509Certificate[] certs, String authType,
             String hostname) throws CertificateException {
-        if (hostname == null && mConfig.hasPerDomainConfigs()) {
+        // Use one snapshot throughout, in case the configuration is replaced mid-check.
+        ApplicationConfig.Snapshot snapshot = mConfig.getSnapshot();
+        if (hostname == null && snapshot.hasPerDomainConfigs) {
             throw new CertificateException(
                     "Domain specific configurations require that the hostname be provided");
         }
-        NetworkSecurityConfig config = mConfig.getConfigForHostname(hostname);
+        NetworkSecurityConfig config = snapshot.getConfigForHostname(hostname);
         return config.getTrustManager().checkServerTrusted(certs, authType, hostname);
     }
 
@@ -177,7 +181,8 @@ public class RootTrustManager extends X509ExtendedTrustManager {
      * <p>This is required by android.net.http.X509TrustManagerExtensions.
      */
     public boolean isSameTrustConfiguration(String hostname1, String hostname2) {
-        return mConfig.getConfigForHostname(hostname1)
-                .equals(mConfig.getConfigForHostname(hostname2));
+        ApplicationConfig.Snapshot snapshot = mConfig.getSnapshot();
+        return snapshot.getConfigForHostname(hostname1)
+                .equals(snapshot.getConfigForHostname(hostname2));
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 CommonsWare, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.config;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Cache of digests of certificates' public keys (SubjectPublicKeyInfo), as compared against
+ * {@link Pin}s. The same intermediate and root certificates show up in almost every chain, so
+ * this saves encoding and hashing their keys again on every handshake.
+ *
+ * <p>Certificates are held weakly, so caching one does not keep it in memory. The cache is
+ * split into stripes, each a {@link WeakHashMap} with its own lock, so concurrent handshakes
+ * rarely wait on each other, and {@link MessageDigest}s are kept per thread. Digests are
+ * computed outside of any lock.</p>
+ *
+ * @hide
+ */
+public final class SpkiDigestCache {
+    private static final int STRIPES = 16;
+
+    private final Map<X509Certificate, Digests>[] mStripes;
+    private final ThreadLocal<Map<String, MessageDigest>> mMessageDigests =
+            new ThreadLocal<Map<String, MessageDigest>>() {
+                @Override
+                protected Map<String, MessageDigest> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    @SuppressWarnings("unchecked")
+    public SpkiDigestCache() {
+        mStripes = (Map<X509Certificate, Digests>[]) new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            mStripes[i] = new WeakHashMap<>();
+        }
+    }
+
+    /**
+     * Returns the digest of {@code cert}'s SubjectPublicKeyInfo using {@code algorithm}. The
+     * array is shared with other callers, so it must not be modified.
+     *
+     * @throws RuntimeException if {@code algorithm} is not supported
+     */
+    public byte[] get(X509Certificate cert, String algorithm) {
+        Map<X509Certificate, Digests> stripe =
+                mStripes[(cert.hashCode() & Integer.MAX_VALUE) % STRIPES];
+        Digests digests;
+        synchronized (stripe) {
+            digests = stripe.get(cert);
+        }
+        if (digests != null) {
+            byte[] digest = digests.get(algorithm);
+            if (digest != null) {
+                return digest;
+            }
+        }
+        byte[] digest = getMessageDigest(algorithm).digest(cert.getPublicKey().getEncoded());
+        synchronized (stripe) {
+            // Another thread may have added digests for other algorithms in the meantime.
+            digests = stripe.get(cert);
+            stripe.put(cert, digests == null
+                    ? new Digests(algorithm, digest) : digests.with(algorithm, digest));
+        }
+        return digest;
+    }
+
+    private MessageDigest getMessageDigest(String algorithm) {
+        Map<String, MessageDigest> messageDigests = mMessageDigests.get();
+        MessageDigest md = messageDigests.get(algorithm);
+        if (md == null) {
+            try {
+                md = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            messageDigests.put(algorithm, md);
+        }
+        return md;
+    }
+
+    /**
+     * Immutable digests of one certificate's SubjectPublicKeyInfo, by algorithm. There is
+     * usually just the one algorithm, so these are kept in arrays rather than a map.
+     */
+    private static final class Digests {
+        private final String[] mAlgorithms;
+        private final byte[][] mDigests;
+
+        Digests(String algorithm, byte[] digest) {
+            this(new String[] {algorithm}, new byte[][] {digest});
+        }
+
+        private Digests(String[] algorithms, byte[][] digests) {
+            mAlgorithms = algorithms;
+            mDigests = digests;
+        }
+
+        byte[] get(String algorithm) {
+            for (int i = 0; i < mAlgorithms.length; i++) {
+                if (mAlgorithms[i].equals(algorithm)) {
+                    return mDigests[i];
+                }
+            }
+            return null;
+        }
+
+        Digests with(String algorithm, byte[] digest) {
+            if (get(algorithm) != null) {
+                return this;
+            }
+            String[] algorithms = Arrays.copyOf(mAlgorithms, mAlgorithms.length + 1);
+            byte[][] digests = Arrays.copyOf(mDigests, mDigests.length + 1);
+            algorithms[mAlgorithms.length] = algorithm;
+            digests[mDigests.length] = digest;
+            return new Digests(algorithms, digests);
+        }
+    }
+}
@@ -6,6 +6,7 @@ import android.content.res.XmlResourceParser;
 import android.os.Build;
 import android.util.ArraySet;
 import android.util.Base64;
+import android.util.Log;
 import android.util.Pair;
 // import com.android.internal.annotations.VisibleForTesting;
 // import com.android.internal.util.XmlUtils;
@@ -34,16 +35,21 @@ public class XmlConfigSource implements ConfigSource {
     private static final int CONFIG_BASE = 0;
     private static final int CONFIG_DOMAIN = 1;
     private static final int CONFIG_DEBUG = 2;
+    private static final String LOG_TAG = "NetworkSecurityConfig";
 
     private final Object mLock = new Object();
     private final int mResourceId;
     private final boolean mDebugBuild;
     private final int mTargetSdkVersion;
+    private final boolean mUserCertificatesAllowed;
+    private final CompiledConfigCache mCompiledConfigCache;
 
     private boolean mInitialized;
     private NetworkSecurityConfig mDefaultConfig;
     private Set<Pair<Domain, NetworkSecurityConfig>> mDomainMap;
     private Context mContext;
+    private boolean mParsingDebugResource;
+    private LoadTimings mLoadTimings;
 
     // @VisibleForTesting
     public XmlConfigSource(Context context, int resourceId) {
@@ -57,10 +63,32 @@ public class XmlConfigSource implements ConfigSource {
 
     public XmlConfigSource(Context context, int resourceId, boolean debugBuild,
             int targetSdkVersion) {
+        this(context, resourceId, debugBuild, targetSdkVersion, false);
+    }
+
+    /**
+     * @param userCertificatesAllowed {@code true} if {@code <certificates src="user">} should be
+     * treated as {@code src="system"} with a warning, {@code false} if it should fail parsing.
+     * User certificates are not supported by this backport either way.
+     */
+    public XmlConfigSource(Context context, int resourceId, boolean debugBuild,
+            int targetSdkVersion, boolean userCertificatesAllowed) {
+        this(context, resourceId, debugBuild, targetSdkVersion, userCertificatesAllowed, null);
+    }
+
+    /**
+     * @param compiledConfigCache where to keep a compiled form of this configuration, to skip
+     * parsing the XML on later loads, or {@code null} to always parse the XML
+     */
+    public XmlConfigSource(Context context, int resourceId, boolean debugBuild,
+            int targetSdkVersion, boolean userCertificatesAllowed,
+            CompiledConfigCache compiledConfigCache) {
+        mCompiledConfigCache = compiledConfigCache;
         mResourceId = resourceId;
         mContext = context;
         mDebugBuild = debugBuild;
         mTargetSdkVersion = targetSdkVersion;
+        mUserCertificatesAllowed = userCertificatesAllowed;
     }
 
     public Set<Pair<Domain, NetworkSecurityConfig>> getPerDomainConfigs() {
@@ -73,6 +101,16 @@ public class XmlConfigSource implements ConfigSource {
         return mDefaultConfig;
     }
 
+    /**
+     * Returns how long each stage of loading this configuration took, or {@code null} if it has
+     * not been loaded yet.
+     */
+    public LoadTimings getLoadTimings() {
+        synchronized (mLock) {
+            return mLoadTimings;
+        }
+    }
+
     private static final String getConfigString(int configType) {
         switch (configType) {
             case CONFIG_BASE:
@@ -95,8 +133,37 @@ public class XmlConfigSource implements ConfigSource {
             XmlResourceParser parser=null;
 
             try {
-                parser = mContext.getResources().getXml(mResourceId);
-                parseNetworkSecurityConfig(parser);
+                long start = System.nanoTime();
+                byte[] cacheKey = null;
+                CompiledConfigCache.Entry compiled = null;
+                if (mCompiledConfigCache != null) {
+                    try {
+                        cacheKey = mCompiledConfigCache.computeKey(mContext.getResources(),
+                                mResourceId, mDebugBuild ? getDebugResourceId() : 0,
+                                mDebugBuild, mUserCertificatesAllowed, mTargetSdkVersion);
+                        compiled = mCompiledConfigCache.load(mResourceId, cacheKey, mContext);
+                    } catch (IOException e) {
+                        // The XML is always there to fall back on.
+                        Log.w(LOG_TAG, "Could not check for a compiled config", e);
+                    }
+                }
+                if (compiled != null) {
+                    mDefaultConfig = compiled.defaultConfig;
+                    mDomainMap = compiled.domainMap;
+                    mLoadTimings = new LoadTimings(System.nanoTime() - start, 0, 0, true);
+                } else {
+                    parser = mContext.getResources().getXml(mResourceId);
+                    parseNetworkSecurityConfig(parser, start);
+                    if (cacheKey != null) {
+                        mCompiledConfigCache.store(mResourceId, cacheKey, mDomainMap,
+                                mDefaultConfig);
+                    }
+                }
+                if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+                    Log.d(LOG_TAG, "Loaded "
+                            + mContext.getResources().getResourceEntryName(mResourceId)
+                            + ": " + mLoadTimings);
+                }
                 mContext = null;
                 mInitialized = true;
             } catch (Resources.NotFoundException | XmlPullParserException | IOException
@@ -204,10 +271,20 @@ public class XmlConfigSource implements ConfigSource {
         if (sourceId != -1) {
             // TODO: Cache ResourceCertificateSources by sourceId
             source = new ResourceCertificateSource(sourceId, mContext);
-        } else if ("system".equals(sourceString) || "user".equals(sourceString)) {
-            // MLM treat user as system
+        } else if ("system".equals(sourceString)) {
+            source = SystemCertificateSource.getInstance();
+        } else if ("user".equals(sourceString)) {
+            // MLM user certificates are not supported, so treat user as system where that is
+            // allowed (and always for the _debug resource, as before)
+            if (!mParsingDebugResource) {
+                if (!mUserCertificatesAllowed) {
+                    throw new ParserException(parser,
+                            "requested <certificates src=\"user\">, not supported");
+                }
+                Log.w("CWAC-NetSecurity", "requested <certificates src=\"user\">,"
+                        + " treating as <certificates src=\"system\">");
+            }
             source = SystemCertificateSource.getInstance();
-//        } else if ("user".equals(sourceString)) {
 //            source = UserCertificateSource.getInstance();
         } else {
             throw new ParserException(parser, "Unknown certificates src. "
@@ -321,7 +398,7 @@ public class XmlConfigSource implements ConfigSource {
         builder.addCertificatesEntryRefs(debugConfigBuilder.getCertificatesEntryRefs());
     }
 
-    private void parseNetworkSecurityConfig(XmlResourceParser parser)
+    private void parseNetworkSecurityConfig(XmlResourceParser parser, long start)
             throws IOException, XmlPullParserException, ParserException {
         Set<String> seenDomains = new HashSet<>();
         List<Pair<NetworkSecurityConfig.Builder, Set<Domain>>> builders = new ArrayList<>();
@@ -358,11 +435,13 @@ public class XmlConfigSource implements ConfigSource {
                 XmlUtils.skipCurrentTag(parser);
             }
         }
+        long mainParsed = System.nanoTime();
         // If debug is true and there was no debug-overrides in the file check for an extra
         // _debug resource.
         if (mDebugBuild && debugConfigBuilder == null) {
             debugConfigBuilder = parseDebugOverridesResource();
         }
+        long debugParsed = System.nanoTime();
 
         // Use the platform default as the parent of the base config for any values not provided
         // there. If there is no base config use the platform default.
@@ -398,14 +477,21 @@ public class XmlConfigSource implements ConfigSource {
         }
         mDefaultConfig = baseConfigBuilder.build();
         mDomainMap = configs;
+        mLoadTimings = new LoadTimings(mainParsed - start, debugParsed - mainParsed,
+                System.nanoTime() - debugParsed, false);
     }
 
-    private NetworkSecurityConfig.Builder parseDebugOverridesResource()
-            throws IOException, XmlPullParserException, ParserException {
+    private int getDebugResourceId() {
         Resources resources = mContext.getResources();
         String packageName = resources.getResourcePackageName(mResourceId);
         String entryName = resources.getResourceEntryName(mResourceId);
-        int resId = resources.getIdentifier(entryName + "_debug", "xml", packageName);
+        return resources.getIdentifier(entryName + "_debug", "xml", packageName);
+    }
+
+    private NetworkSecurityConfig.Builder parseDebugOverridesResource()
+            throws IOException, XmlPullParserException, ParserException {
+        Resources resources = mContext.getResources();
+        int resId = getDebugResourceId();
         // No debug-overrides resource was found, nothing to parse.
         if (resId == 0) {
             return null;
@@ -415,6 +501,7 @@ public class XmlConfigSource implements ConfigSource {
         XmlResourceParser parser=null;
 
         try {
+            mParsingDebugResource = true;
             parser = resources.getXml(resId);
 
             XmlUtils.beginDocument(parser, "network-security-config");
@@ -438,12 +525,49 @@ public class XmlConfigSource implements ConfigSource {
             }
         }
         finally {
+            mParsingDebugResource = false;
             if (parser!=null) parser.close();
         }
 
         return debugConfigBuilder;
     }
 
+    /**
+     * Time spent in each stage of loading the configuration, in nanoseconds.
+     */
+    public static final class LoadTimings {
+        /**
+         * Parsing the main XML resource, including opening it, or loading the compiled form of
+         * the configuration if {@link #compiledCacheHit}.
+         */
+        public final long mainParseNanos;
+        /** Looking up and parsing the {@code _debug} resource, if any. */
+        public final long debugParseNanos;
+        /** Building the {@link NetworkSecurityConfig}s from the parsed entries. */
+        public final long buildNanos;
+        /** Whether the configuration came from the {@link CompiledConfigCache}. */
+        public final boolean compiledCacheHit;
+
+        LoadTimings(long mainParseNanos, long debugParseNanos, long buildNanos,
+                boolean compiledCacheHit) {
+            this.mainParseNanos = mainParseNanos;
+            this.debugParseNanos = debugParseNanos;
+            this.buildNanos = buildNanos;
+            this.compiledCacheHit = compiledCacheHit;
+        }
+
+        @Override
+        public String toString() {
+            if (compiledCacheHit) {
+                return String.format(Locale.US, "compiled config load %.2f ms",
+                        mainParseNanos / 1e6);
+            }
+            return String.format(Locale.US, "main parse %.2f ms, debug parse %.2f ms,"
+                    + " build %.2f ms", mainParseNanos / 1e6, debugParseNanos / 1e6,
+                    buildNanos / 1e6);
+        }
+    }
+
     public static class ParserException extends Exception {
 
         public ParserException(XmlPullParser parser, String message, Throwable cause) {
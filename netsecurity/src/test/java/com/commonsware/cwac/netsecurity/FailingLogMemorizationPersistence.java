@@ -0,0 +1,66 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * LogMemorizationPersistence that can be told to tear its next record,
+ * writing half of it before failing, as a full disk might.
+ */
+public class FailingLogMemorizationPersistence
+  extends LogMemorizationPersistence {
+  private boolean failNextWrite=false;
+  private boolean failTruncate=false;
+
+  public FailingLogMemorizationPersistence(File dir) {
+    super(dir);
+  }
+
+  /**
+   * Tears the next record that gets written.
+   *
+   * @param failTruncate true to also fail the rollback of that record
+   */
+  public void failNextWrite(boolean failTruncate) {
+    this.failNextWrite=true;
+    this.failTruncate=failTruncate;
+  }
+
+  @Override
+  void writeRecord(RandomAccessFile raf, byte[] record) throws IOException {
+    if (failNextWrite) {
+      failNextWrite=false;
+      raf.write(record, 0, record.length/2);
+
+      throw new IOException("No space left on device");
+    }
+
+    super.writeRecord(raf, record);
+  }
+
+  @Override
+  void truncate(RandomAccessFile raf, long length) throws IOException {
+    if (failTruncate) {
+      failTruncate=false;
+
+      throw new IOException("Read-only file system");
+    }
+
+    super.truncate(raf, length);
+  }
+}
@@ -0,0 +1,187 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity;
+
+import org.junit.Test;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.X509TrustManager;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the reflection fallback in X509ExtensionsWrapper, which is
+ * what non-library, non-platform trust managers get. This lives in the
+ * library's package so it can see which dispatcher was picked. The
+ * other dispatchers need Android, so X509ExtensionsWrapperTest in
+ * androidTest covers them.
+ */
+public class X509ExtensionsWrapperTests {
+  private static final X509Certificate[] CHAIN=new X509Certificate[0];
+
+  @Test
+  public void _reflection() throws Exception {
+    ExtendedTrustManager tm=new ExtendedTrustManager();
+    X509ExtensionsWrapper wrapper=new X509ExtensionsWrapper(tm);
+
+    assertEquals("ReflectionDispatcher",
+      wrapper.dispatcher.getClass().getSimpleName());
+    assertSame(ExtendedTrustManager.RESULT,
+      wrapper.checkServerTrusted(CHAIN, "RSA", "foo.com"));
+    assertEquals("foo.com", tm.host);
+    assertTrue(wrapper.isUserAddedCertificate(null));
+  }
+
+  @Test
+  public void _reflectionOnNonPublicClass() throws Exception {
+    X509ExtensionsWrapper wrapper=
+      new X509ExtensionsWrapper(new HiddenTrustManager());
+
+    assertSame(ExtendedTrustManager.RESULT,
+      wrapper.checkServerTrusted(CHAIN, "RSA", "foo.com"));
+  }
+
+  @Test
+  public void _reflectionExceptions() throws Exception {
+    ExtendedTrustManager tm=new ExtendedTrustManager();
+    X509ExtensionsWrapper wrapper=new X509ExtensionsWrapper(tm);
+
+    tm.toThrow=new CertificateException("rejected");
+
+    try {
+      wrapper.checkServerTrusted(CHAIN, "RSA", "foo.com");
+      fail("expected CertificateException");
+    }
+    catch (CertificateException e) {
+      assertSame(tm.toThrow, e);
+    }
+
+    tm.toThrow=new IllegalStateException("broken");
+
+    try {
+      wrapper.checkServerTrusted(CHAIN, "RSA", "foo.com");
+      fail("expected IllegalStateException");
+    }
+    catch (IllegalStateException e) {
+      assertSame(tm.toThrow, e);
+    }
+  }
+
+  @Test
+  public void _missingIsUserAddedCertificate() throws Exception {
+    X509ExtensionsWrapper wrapper=
+      new X509ExtensionsWrapper(new MinimalTrustManager());
+
+    assertSame(ExtendedTrustManager.RESULT,
+      wrapper.checkServerTrusted(CHAIN, "RSA", "foo.com"));
+    assertFalse(wrapper.isUserAddedCertificate(null));
+  }
+
+  @Test
+  public void _missingCheckServerTrusted() {
+    try {
+      new X509ExtensionsWrapper(new PlainTrustManager());
+      fail("expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void _methodsCached() {
+    X509ExtensionsWrapper.Methods methods=
+      X509ExtensionsWrapper.methodsFor(ExtendedTrustManager.class);
+
+    new X509ExtensionsWrapper(new ExtendedTrustManager());
+    new X509ExtensionsWrapper(new ExtendedTrustManager());
+
+    assertSame(methods,
+      X509ExtensionsWrapper.methodsFor(ExtendedTrustManager.class));
+    assertNotSame(methods,
+      X509ExtensionsWrapper.methodsFor(MinimalTrustManager.class));
+  }
+
+  public static class PlainTrustManager implements X509TrustManager {
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain,
+                                   String authType)
+      throws CertificateException {
+      throw new CertificateException("not supported");
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain,
+                                   String authType)
+      throws CertificateException {
+      throw new CertificateException("not supported");
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return(new X509Certificate[0]);
+    }
+  }
+
+  public static class MinimalTrustManager extends PlainTrustManager {
+    public List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
+                                                    String authType,
+                                                    String host)
+      throws CertificateException {
+      return(ExtendedTrustManager.RESULT);
+    }
+  }
+
+  public static class ExtendedTrustManager extends PlainTrustManager {
+    static final List<X509Certificate> RESULT=
+      Arrays.asList(new X509Certificate[0]);
+    private String host;
+    private Exception toThrow;
+
+    public List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
+                                                    String authType,
+                                                    String host)
+      throws CertificateException {
+      this.host=host;
+
+      if (toThrow instanceof CertificateException) {
+        throw (CertificateException)toThrow;
+      }
+      else if (toThrow instanceof RuntimeException) {
+        throw (RuntimeException)toThrow;
+      }
+
+      return(RESULT);
+    }
+
+    public boolean isUserAddedCertificate(X509Certificate cert) {
+      return(true);
+    }
+  }
+
+  private static class HiddenTrustManager extends PlainTrustManager {
+    public List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
+                                                    String authType,
+                                                    String host) {
+      return(ExtendedTrustManager.RESULT);
+    }
+  }
+}
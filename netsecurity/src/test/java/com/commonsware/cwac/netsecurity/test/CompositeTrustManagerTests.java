@@ -0,0 +1,178 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import com.commonsware.cwac.netsecurity.CompositeTrustManager;
+import com.commonsware.cwac.netsecurity.X509Extensions;
+import org.junit.Test;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class CompositeTrustManagerTests {
+  private static final X509Certificate[] CHAIN=new X509Certificate[0];
+
+  @Test
+  public void _orStopsAtFirstSuccess() throws Exception {
+    FakeTrustManager accept=new FakeTrustManager(true);
+    FakeTrustManager other=new FakeTrustManager(true);
+    CompositeTrustManager composite=
+      CompositeTrustManager.matchAny(accept, other);
+
+    composite.checkServerTrusted(CHAIN, "RSA", "foo.com");
+
+    assertEquals(1, accept.calls);
+    assertEquals(0, other.calls);
+    assertEquals(1, composite.getChildStats().get(0).getSuccesses());
+    assertEquals(0, composite.getChildStats().get(1).getAttempts());
+  }
+
+  @Test
+  public void _orFallsThroughFailures() throws Exception {
+    FakeTrustManager reject=new FakeTrustManager(false);
+    FakeTrustManager accept=new FakeTrustManager(true);
+    CompositeTrustManager composite=
+      CompositeTrustManager.matchAny(reject, accept);
+
+    composite.checkServerTrusted(CHAIN, "RSA", "foo.com");
+
+    assertEquals(1, reject.calls);
+    assertEquals(1, accept.calls);
+    assertEquals(0, composite.getChildStats().get(0).getSuccesses());
+    assertEquals(1, composite.getChildStats().get(1).getSuccesses());
+  }
+
+  @Test
+  public void _orFailsIfAllFail() throws Exception {
+    CompositeTrustManager composite=
+      CompositeTrustManager.matchAny(new FakeTrustManager(false),
+        new FakeTrustManager(false));
+
+    try {
+      composite.checkServerTrusted(CHAIN, "RSA", "foo.com");
+      fail("expected CertificateException");
+    }
+    catch (CertificateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void _orThrowsEarliestFailure() throws Exception {
+    CompositeTrustManager composite=
+      CompositeTrustManager.matchAny(new FakeTrustManager(false, "first"),
+        new FakeTrustManager(false, "second"));
+
+    composite.setAdaptiveOrdering(true);
+
+    for (int i=0;i<100;i++) {
+      try {
+        composite.checkServerTrusted(CHAIN, "RSA", "foo.com");
+        fail("expected CertificateException");
+      }
+      catch (CertificateException e) {
+        assertEquals("first", e.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void _andEvaluatesAll() throws Exception {
+    FakeTrustManager first=new FakeTrustManager(true);
+    FakeTrustManager second=new FakeTrustManager(true);
+    CompositeTrustManager composite=
+      CompositeTrustManager.matchAll(first, second);
+
+    composite.checkServerTrusted(CHAIN, "RSA", "foo.com");
+
+    assertEquals(1, first.calls);
+    assertEquals(1, second.calls);
+  }
+
+  @Test
+  public void _adaptiveOrdering() throws Exception {
+    FakeTrustManager reject=new FakeTrustManager(false);
+    FakeTrustManager accept=new FakeTrustManager(true);
+    CompositeTrustManager composite=
+      CompositeTrustManager.matchAny(reject, accept);
+
+    composite.setAdaptiveOrdering(true);
+
+    for (int i=0;i<100;i++) {
+      composite.checkServerTrusted(CHAIN, "RSA", "foo.com");
+    }
+
+    assertSame(reject, composite.getChildStats().get(0).getTrustManager());
+    assertEquals(100, accept.calls);
+    assertEquals(true, reject.calls<100);
+  }
+
+  private static class FakeTrustManager implements X509Extensions {
+    private final boolean accept;
+    private final String message;
+    private int calls=0;
+
+    FakeTrustManager(boolean accept) {
+      this(accept, "rejected");
+    }
+
+    FakeTrustManager(boolean accept, String message) {
+      this.accept=accept;
+      this.message=message;
+    }
+
+    @Override
+    public List<X509Certificate> checkServerTrusted(X509Certificate[] chain,
+                                                    String authType,
+                                                    String host)
+      throws CertificateException {
+      calls++;
+
+      if (!accept) {
+        throw new CertificateException(message);
+      }
+
+      return(Arrays.asList(chain));
+    }
+
+    @Override
+    public boolean isUserAddedCertificate(X509Certificate cert) {
+      return(false);
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain,
+                                   String authType)
+      throws CertificateException {
+      throw new CertificateException("not supported");
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain,
+                                   String authType)
+      throws CertificateException {
+      checkServerTrusted(chain, authType, null);
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return(new X509Certificate[0]);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import com.commonsware.cwac.netsecurity.config.Domain;
+import com.commonsware.cwac.netsecurity.config.DomainIndex;
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DomainIndexTests {
+  private static final String[] LABELS=
+    {"com", "org", "foo", "bar", "www", "a", "b", "", "example"};
+
+  @Test
+  public void _exactAndSubdomains() {
+    DomainIndex<String> index=new DomainIndex<>();
+
+    index.put(new Domain("foo.com", false), "foo");
+    index.put(new Domain("bar.com", true), "bar");
+    index.put(new Domain("www.bar.com", false), "www.bar");
+    index.put(new Domain("a.b.bar.com", true), "a.b.bar");
+
+    assertEquals("foo", index.get("foo.com"));
+    assertNull(index.get("www.foo.com"));
+    assertNull(index.get("com"));
+    assertEquals("bar", index.get("bar.com"));
+    assertEquals("bar", index.get("x.bar.com"));
+    assertEquals("www.bar", index.get("www.bar.com"));
+    assertEquals("bar", index.get("x.www.bar.com"));
+    assertEquals("bar", index.get("b.bar.com"));
+    assertEquals("a.b.bar", index.get("a.b.bar.com"));
+    assertEquals("a.b.bar", index.get("x.a.b.bar.com"));
+    assertNull(index.get("xbar.com"));
+    assertEquals(4, index.size());
+  }
+
+  @Test
+  public void _firstSeenWins() {
+    DomainIndex<String> index=new DomainIndex<>();
+
+    index.put(new Domain("foo.com", false), "first");
+    index.put(new Domain("foo.com", true), "second");
+
+    assertEquals("first", index.get("foo.com"));
+    assertEquals("second", index.get("www.foo.com"));
+  }
+
+  @Test
+  public void _matchesLinearScan() {
+    Random random=new Random(1337);
+
+    for (int round=0;round<50;round++) {
+      DomainIndex<Integer> index=new DomainIndex<>();
+      List<Domain> domains=new ArrayList<>();
+      int count=1+random.nextInt(200);
+
+      for (int i=0;i<count;i++) {
+        Domain domain=new Domain(randomHostname(random), random.nextBoolean());
+
+        domains.add(domain);
+        index.put(domain, i);
+      }
+
+      for (int i=0;i<500;i++) {
+        String hostname=randomHostname(random);
+
+        assertEquals(hostname, linearScan(domains, hostname),
+          index.get(hostname));
+      }
+    }
+  }
+
+  private static String randomHostname(Random random) {
+    StringBuilder result=new StringBuilder();
+    int labels=1+random.nextInt(4);
+
+    for (int i=0;i<labels;i++) {
+      if (i>0) {
+        result.append('.');
+      }
+
+      result.append(LABELS[random.nextInt(LABELS.length)]);
+    }
+
+    return(result.toString());
+  }
+
+  /**
+   * The lookup that ApplicationConfig used before DomainIndex,
+   * returning the position of the matching domain.
+   */
+  private static Integer linearScan(List<Domain> domains, String hostname) {
+    Integer bestMatch=null;
+
+    for (int i=0;i<domains.size();i++) {
+      Domain domain=domains.get(i);
+
+      if (domain.hostname.equals(hostname)) {
+        return(i);
+      }
+
+      if (domain.subdomainsIncluded
+        && hostname.endsWith(domain.hostname)
+        && hostname.length()>domain.hostname.length()
+        && hostname.charAt(hostname.length()-domain.hostname.length()-1)=='.') {
+        if (bestMatch==null
+          || domain.hostname.length()>domains.get(bestMatch).hostname.length()) {
+          bestMatch=i;
+        }
+      }
+    }
+
+    return(bestMatch);
+  }
+}
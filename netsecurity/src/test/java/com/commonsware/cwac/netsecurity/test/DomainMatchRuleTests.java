@@ -14,14 +14,22 @@
 
 package com.commonsware.cwac.netsecurity.test;
 
+import com.commonsware.cwac.netsecurity.DomainMatchRule;
 import org.junit.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import static com.commonsware.cwac.netsecurity.DomainMatchRule.allOf;
 import static com.commonsware.cwac.netsecurity.DomainMatchRule.anyOf;
 import static com.commonsware.cwac.netsecurity.DomainMatchRule.blacklist;
+import static com.commonsware.cwac.netsecurity.DomainMatchRule.cached;
 import static com.commonsware.cwac.netsecurity.DomainMatchRule.is;
 import static com.commonsware.cwac.netsecurity.DomainMatchRule.not;
+import static com.commonsware.cwac.netsecurity.DomainMatchRule.optimize;
 import static com.commonsware.cwac.netsecurity.DomainMatchRule.whitelist;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -104,4 +112,215 @@ public class DomainMatchRuleTests {
     assertTrue(blacklist("goo.com", "*.foo.com", "bar.com").matches("foo.com"));
     assertFalse(blacklist("goo.com", "*.foo.com", "bar.com").matches("www.foo.com"));
   }
+
+  @Test
+  public void _manyGlobs() {
+    DomainMatchRule rule=whitelist("foo.com", "*.foo.com", "api*.bar.com",
+      "*.cdn.*.net", "www.*", "*baz.org", "*", "");
+
+    assertTrue(rule.matches("foo.com"));
+    assertTrue(rule.matches("www.foo.com"));
+    assertTrue(rule.matches(".foo.com"));
+    assertTrue(rule.matches("api.bar.com"));
+    assertTrue(rule.matches("api2.eu.bar.com"));
+    assertTrue(rule.matches("x.cdn.y.net"));
+    assertTrue(rule.matches("www."));
+    assertTrue(rule.matches("baz.org"));
+    assertTrue(rule.matches(""));
+
+    rule=whitelist("foo.com", "*.foo.com", "api*.bar.com", "*.cdn.*.net",
+      "www.*", "*baz.org");
+
+    assertFalse(rule.matches("Foo.com"));
+    assertFalse(rule.matches("xfoo.com"));
+    assertFalse(rule.matches("bar.com"));
+    assertFalse(rule.matches("xapi.bar.com"));
+    assertFalse(rule.matches("cdn.y.net"));
+    assertFalse(rule.matches("ww.foo"));
+    assertFalse(rule.matches("baz.org.uk"));
+    assertFalse(rule.matches(""));
+    assertFalse(rule.matches("www.foo.com\n"));
+    assertFalse(rule.matches("www\n.foo.com"));
+
+    assertFalse(blacklist("foo.com", "*.foo.com").matches("www.foo.com"));
+    assertTrue(blacklist("foo.com", "*.foo.com").matches("bar.com"));
+  }
+
+  @Test
+  public void _regexGlobs() {
+    // not plain globs, so these keep their regular-expression meaning
+    DomainMatchRule rule=whitelist("fo?.com", "bar.com", "[a-c]+.org");
+
+    assertTrue(rule.matches("f.com"));
+    assertTrue(rule.matches("bar.com"));
+    assertTrue(rule.matches("abc.org"));
+    assertFalse(rule.matches("fooo.com"));
+    assertFalse(blacklist("fo?.com", "bar.com").matches("f.com"));
+    assertTrue(anyOf(is("foo.com"), is("bar.com"),
+      is(Pattern.compile("[a-z]+\\.net"))).matches("baz.net"));
+  }
+
+  @Test
+  public void _sameAsRegex() {
+    Random random=new Random(1337);
+    int matched=0;
+
+    for (int set=0;set<100;set++) {
+      List<String> globs=new ArrayList<>();
+      List<Pattern> patterns=new ArrayList<>();
+
+      while (globs.size()<20) {
+        String glob=randomString(random, "aab..*", 1+random.nextInt(8));
+
+        // "*" alone would match everything, hiding any mistakes
+        if (!glob.replace("*", "").isEmpty()) {
+          globs.add(glob);
+          patterns.add(Pattern.compile(glob.replaceAll("\\.", "\\\\.")
+            .replaceAll("\\*", "\\.\\*")));
+        }
+      }
+
+      DomainMatchRule whitelist=whitelist(globs.toArray(new String[0]));
+      DomainMatchRule blacklist=blacklist(globs.toArray(new String[0]));
+
+      for (int i=0;i<200;i++) {
+        String host=randomString(random, "ab.", random.nextInt(10));
+        boolean expected=false;
+
+        for (Pattern pattern : patterns) {
+          if (pattern.matcher(host).matches()) {
+            expected=true;
+            break;
+          }
+        }
+
+        assertEquals(globs+" "+host, expected, whitelist.matches(host));
+        assertEquals(globs+" "+host, !expected, blacklist.matches(host));
+
+        if (expected) {
+          matched++;
+        }
+      }
+    }
+
+    // both outcomes should have been covered plenty
+    assertTrue(matched>2000);
+    assertTrue(matched<18000);
+  }
+
+  @Test
+  public void _optimize() {
+    assertTrue(optimize(not(not(is("foo.com")))).matches("foo.com"));
+    assertFalse(optimize(not(not(is("foo.com")))).matches("bar.com"));
+    assertFalse(optimize(anyOf()).matches("foo.com"));
+    assertTrue(optimize(allOf()).matches("foo.com"));
+    assertTrue(optimize(allOf(anyOf(is("*.foo.com"), is("bar.com")),
+      not(is("www.foo.com")))).matches("api.foo.com"));
+    assertFalse(optimize(allOf(anyOf(is("*.foo.com"), is("bar.com")),
+      not(is("www.foo.com")))).matches("www.foo.com"));
+  }
+
+  /**
+   * Builds random trees of rules, including repeated rules, double
+   * negatives, regular expressions, and rules from outside of
+   * DomainMatchRule, and checks that optimize() does not change what
+   * any of them match.
+   */
+  @Test
+  public void _optimizeSameAsOriginal() {
+    Random random=new Random(4242);
+
+    for (int tree=0;tree<1000;tree++) {
+      DomainMatchRule original=randomRule(random, 4);
+      DomainMatchRule optimized=optimize(original);
+
+      for (int i=0;i<100;i++) {
+        String host=randomString(random, "ab.", random.nextInt(8));
+
+        assertEquals(host, original.matches(host), optimized.matches(host));
+      }
+    }
+  }
+
+  @Test
+  public void _cached() {
+    final AtomicInteger calls=new AtomicInteger();
+    DomainMatchRule rule=cached(new DomainMatchRule() {
+      @Override
+      public boolean matches(String host) {
+        calls.incrementAndGet();
+
+        return(host.endsWith(".foo.com"));
+      }
+    }, 10);
+
+    assertTrue(rule.matches("www.foo.com"));
+    assertTrue(rule.matches("www.foo.com"));
+    assertFalse(rule.matches("bar.com"));
+    assertFalse(rule.matches("bar.com"));
+    assertEquals(2, calls.get());
+
+    for (int i=0;i<100;i++) {
+      assertEquals(i % 2==0, rule.matches("host"+i+(i % 2==0 ? ".foo.com" : ".bar.com")));
+    }
+
+    assertEquals(102, calls.get());
+
+    // at most ten are remembered, but answers stay right
+    for (int i=0;i<100;i++) {
+      assertEquals(i % 2==0, rule.matches("host"+i+(i % 2==0 ? ".foo.com" : ".bar.com")));
+    }
+
+    assertTrue(calls.get()>=192);
+  }
+
+  private static DomainMatchRule randomRule(Random random, int depth) {
+    switch (random.nextInt(depth>0 ? 8 : 3)) {
+      case 0:
+      case 1:
+        return(is(randomString(random, "aab..*", 1+random.nextInt(5))));
+
+      case 2:
+        return(random.nextBoolean()
+          ? is(Pattern.compile("[ab]+\\.a.*"))
+          : new DomainMatchRule() {
+              @Override
+              public boolean matches(String host) {
+                return(host.length() % 3==0);
+              }
+            });
+
+      case 3:
+        return(not(randomRule(random, depth-1)));
+
+      case 4:
+        return(not(not(randomRule(random, depth-1))));
+
+      default:
+        List<DomainMatchRule> children=new ArrayList<>();
+        int count=random.nextInt(5);
+
+        for (int i=0;i<count;i++) {
+          if (i>0 && random.nextInt(4)==0) {
+            children.add(children.get(random.nextInt(i)));
+          }
+          else {
+            children.add(randomRule(random, depth-1));
+          }
+        }
+
+        return(random.nextBoolean() ? anyOf(children) : allOf(children));
+    }
+  }
+
+  private static String randomString(Random random, String alphabet,
+                                     int length) {
+    StringBuilder buf=new StringBuilder();
+
+    for (int i=0;i<length;i++) {
+      buf.append(alphabet.charAt(random.nextInt(alphabet.length())));
+    }
+
+    return(buf.toString());
+  }
 }
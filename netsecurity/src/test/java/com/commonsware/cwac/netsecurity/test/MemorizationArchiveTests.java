@@ -0,0 +1,128 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import com.commonsware.cwac.netsecurity.MemorizationArchive;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class MemorizationArchiveTests {
+  @Test
+  public void _roundTrip() throws Exception {
+    X509Certificate one=TestCertificates.parse(TestCertificates.ONE);
+    X509Certificate two=TestCertificates.parse(TestCertificates.TWO);
+    ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+    MemorizationArchive.Writer writer=new MemorizationArchive.Writer(bytes);
+
+    for (int i=0;i<1000;i++) {
+      writer.write("host"+i+".example.com",
+        i % 2==0 ? Collections.singletonList(one) : Arrays.asList(one, two));
+    }
+
+    writer.finish();
+
+    MemorizationArchive.Reader reader=
+      new MemorizationArchive.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+
+    for (int i=0;i<1000;i++) {
+      MemorizationArchive.Entry entry=reader.read();
+
+      assertEquals("host"+i+".example.com", entry.getHost());
+      assertEquals(i % 2==0 ? Collections.singletonList(one) : Arrays.asList(one, two),
+        entry.getCertificates());
+    }
+
+    assertNull(reader.read());
+    assertNull(reader.read());
+  }
+
+  @Test
+  public void _truncated() throws Exception {
+    X509Certificate one=TestCertificates.parse(TestCertificates.ONE);
+    ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+    MemorizationArchive.Writer writer=new MemorizationArchive.Writer(bytes);
+
+    writer.write("a.com", Collections.singletonList(one));
+    writer.write("b.com", Collections.singletonList(one));
+    writer.finish();
+
+    byte[] all=bytes.toByteArray();
+    MemorizationArchive.Reader reader=new MemorizationArchive.Reader(
+      new ByteArrayInputStream(Arrays.copyOf(all, all.length-20)));
+
+    assertEquals("a.com", reader.read().getHost());
+
+    try {
+      reader.read();
+      fail("Expected IOException");
+    }
+    catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void _hugeLength() throws Exception {
+    ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+
+    new MemorizationArchive.Writer(bytes).finish();
+
+    byte[] header=bytes.toByteArray();
+
+    bytes.reset();
+
+    DataOutputStream out=new DataOutputStream(bytes);
+
+    // the header, minus its end marker, then an entry claiming a 2GB
+    // certificate
+    out.write(header, 0, header.length-1);
+    out.writeByte(1);
+    out.writeUTF("a.com");
+    out.writeInt(1);
+    out.writeInt(Integer.MAX_VALUE);
+    out.flush();
+
+    MemorizationArchive.Reader reader=new MemorizationArchive.Reader(
+      new ByteArrayInputStream(bytes.toByteArray()));
+
+    try {
+      reader.read();
+      fail("Expected IOException");
+    }
+    catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void _notAnArchive() throws Exception {
+    try {
+      new MemorizationArchive.Reader(new ByteArrayInputStream(new byte[16]));
+      fail("Expected IOException");
+    }
+    catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,325 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import com.commonsware.cwac.netsecurity.FailingLogMemorizationPersistence;
+import com.commonsware.cwac.netsecurity.KeyStoreMemorizationPersistence;
+import com.commonsware.cwac.netsecurity.LogMemorizationPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MemorizationLogTests {
+  private static final char[] PASSWORD="sekrit".toCharArray();
+  private File dir;
+  private X509Certificate one;
+  private X509Certificate two;
+
+  @Before
+  public void setUp() throws Exception {
+    dir=File.createTempFile("memorized", "");
+    dir.delete();
+    dir.mkdirs();
+    one=TestCertificates.parse(TestCertificates.ONE);
+    two=TestCertificates.parse(TestCertificates.TWO);
+  }
+
+  @After
+  public void tearDown() {
+    File[] files=dir.listFiles();
+
+    if (files!=null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+
+    dir.delete();
+  }
+
+  @Test
+  public void _roundTrip() throws Exception {
+    LogMemorizationPersistence log=new LogMemorizationPersistence(dir);
+
+    log.save("a.com", Arrays.asList(one, two));
+    log.save("b.com", Collections.singletonList(two));
+    log.save("a.com", Collections.singletonList(one));
+    log.remove("c.com");
+    log.flush();
+
+    assertEquals(Collections.singletonList(one), log.load("a.com"));
+    assertEquals(Collections.singletonList(two), log.load("b.com"));
+    assertTrue(log.load("c.com").isEmpty());
+
+    log.close();
+    log=new LogMemorizationPersistence(dir);
+
+    assertEquals(Collections.singletonList(one), log.load("a.com"));
+    assertEquals(Collections.singletonList(two), log.load("b.com"));
+    assertEquals(2, log.getHosts().size());
+
+    log.remove("a.com");
+    log.close();
+    log=new LogMemorizationPersistence(dir);
+
+    assertTrue(log.load("a.com").isEmpty());
+    assertEquals(Collections.singletonList("b.com"), log.getHosts());
+    log.close();
+  }
+
+  @Test
+  public void _compaction() throws Exception {
+    LogMemorizationPersistence log=new LogMemorizationPersistence(dir);
+    File file=new File(dir, "memorized.log");
+
+    for (int i=0;i<50;i++) {
+      log.save("a.com", Arrays.asList(one, two));
+      log.save("b.com", Collections.singletonList(two));
+    }
+
+    log.flush();
+
+    long before=file.length();
+
+    log.compact();
+    assertTrue(file.length()<before);
+    assertEquals(Arrays.asList(one, two), log.load("a.com"));
+
+    log.save("c.com", Collections.singletonList(one));
+    log.close();
+    log=new LogMemorizationPersistence(dir);
+
+    assertEquals(Arrays.asList(one, two), log.load("a.com"));
+    assertEquals(Collections.singletonList(two), log.load("b.com"));
+    assertEquals(Collections.singletonList(one), log.load("c.com"));
+    log.close();
+  }
+
+  @Test
+  public void _tornRecord() throws Exception {
+    LogMemorizationPersistence log=new LogMemorizationPersistence(dir);
+    File file=new File(dir, "memorized.log");
+
+    log.save("a.com", Collections.singletonList(one));
+    log.flush();
+
+    long good=file.length();
+
+    log.save("b.com", Collections.singletonList(two));
+    log.close();
+
+    RandomAccessFile raf=new RandomAccessFile(file, "rw");
+
+    raf.setLength(raf.length()-10);
+    raf.close();
+
+    log=new LogMemorizationPersistence(dir);
+
+    assertEquals(Collections.singletonList(one), log.load("a.com"));
+    assertTrue(log.load("b.com").isEmpty());
+    assertEquals(good, file.length());
+
+    log.save("b.com", Collections.singletonList(two));
+    log.close();
+    log=new LogMemorizationPersistence(dir);
+
+    assertEquals(Collections.singletonList(two), log.load("b.com"));
+    log.close();
+  }
+
+  @Test
+  public void _failedWrite() throws Exception {
+    failedWrite(false);
+  }
+
+  @Test
+  public void _failedRollback() throws Exception {
+    failedWrite(true);
+  }
+
+  private void failedWrite(boolean failTruncate) throws Exception {
+    FailingLogMemorizationPersistence log=
+      new FailingLogMemorizationPersistence(dir);
+
+    log.save("a.com", Collections.singletonList(one));
+    log.failNextWrite(failTruncate);
+
+    try {
+      log.save("b.com", Collections.singletonList(two));
+      fail("Expected IOException");
+    }
+    catch (IOException e) {
+      // expected
+    }
+
+    log.save("c.com", Collections.singletonList(two));
+
+    assertEquals(Collections.singletonList(one), log.load("a.com"));
+    assertTrue(log.load("b.com").isEmpty());
+
+    log.flush();
+    log.close();
+
+    LogMemorizationPersistence reopened=new LogMemorizationPersistence(dir);
+
+    List<String> hosts=reopened.getHosts();
+
+    assertEquals(2, hosts.size());
+    assertTrue(hosts.contains("a.com"));
+    assertTrue(hosts.contains("c.com"));
+    assertEquals(Collections.singletonList(one), reopened.load("a.com"));
+    assertTrue(reopened.load("b.com").isEmpty());
+    assertEquals(Collections.singletonList(two), reopened.load("c.com"));
+    reopened.close();
+  }
+
+  @Test
+  public void _corruptRecord() throws Exception {
+    LogMemorizationPersistence log=new LogMemorizationPersistence(dir);
+    File file=new File(dir, "memorized.log");
+
+    log.save("a.com", Collections.singletonList(one));
+    log.flush();
+
+    long good=file.length();
+
+    log.save("b.com", Collections.singletonList(two));
+    log.save("c.com", Collections.singletonList(one));
+    log.close();
+
+    // flip a bit in the payload of the b.com record, so its checksum
+    // fails; the c.com record after it is lost too
+
+    RandomAccessFile raf=new RandomAccessFile(file, "rw");
+
+    raf.seek(good+20);
+
+    int b=raf.read();
+
+    raf.seek(good+20);
+    raf.write(b ^ 0x01);
+    raf.close();
+
+    log=new LogMemorizationPersistence(dir);
+
+    assertEquals(Collections.singletonList(one), log.load("a.com"));
+    assertTrue(log.load("b.com").isEmpty());
+    assertTrue(log.load("c.com").isEmpty());
+    assertEquals(good, file.length());
+    log.close();
+  }
+
+  @Test
+  public void _garbageLength() throws Exception {
+    LogMemorizationPersistence log=new LogMemorizationPersistence(dir);
+    File file=new File(dir, "memorized.log");
+
+    log.save("a.com", Collections.singletonList(one));
+    log.close();
+
+    long good=file.length();
+
+    // a record header claiming far more data than the file holds, as
+    // left by a crash after the header was written
+
+    RandomAccessFile raf=new RandomAccessFile(file, "rw");
+
+    raf.seek(good);
+    raf.writeInt(Integer.MAX_VALUE);
+    raf.writeInt(0);
+    raf.close();
+
+    log=new LogMemorizationPersistence(dir);
+
+    assertEquals(Collections.singletonList(one), log.load("a.com"));
+    assertEquals(good, file.length());
+    log.close();
+  }
+
+  @Test
+  public void _keyStoreInterruptedSave() throws Exception {
+    String type=KeyStore.getDefaultType();
+    KeyStoreMemorizationPersistence legacy=
+      new KeyStoreMemorizationPersistence(dir, PASSWORD, type);
+
+    legacy.save("a.com", Collections.singletonList(one));
+
+    // a save that died before its rename leaves a partial temp file
+
+    FileOutputStream fos=new FileOutputStream(new File(dir, "a.com.tmp"));
+
+    fos.write(new byte[] {1, 2, 3});
+    fos.close();
+
+    assertEquals(Collections.singletonList("a.com"), legacy.getHosts());
+    assertEquals(Collections.singletonList(one), legacy.load("a.com"));
+
+    legacy.save("a.com", Arrays.asList(one, two));
+    assertEquals(2, legacy.load("a.com").size());
+    assertFalse(new File(dir, "a.com.tmp").exists());
+
+    LogMemorizationPersistence log=
+      new LogMemorizationPersistence(dir, PASSWORD, type);
+
+    assertEquals(Collections.singletonList("a.com"), log.getHosts());
+    log.close();
+  }
+
+  @Test
+  public void _migration() throws Exception {
+    String type=KeyStore.getDefaultType();
+    KeyStoreMemorizationPersistence legacy=
+      new KeyStoreMemorizationPersistence(dir, PASSWORD, type);
+
+    legacy.save("a.com", Arrays.asList(one, two));
+    legacy.save("b.com", Collections.singletonList(two));
+
+    LogMemorizationPersistence log=
+      new LogMemorizationPersistence(dir, PASSWORD, type);
+    List<X509Certificate> certs=log.load("a.com");
+
+    assertEquals(2, certs.size());
+    assertTrue(certs.contains(one));
+    assertTrue(certs.contains(two));
+    assertEquals(Collections.singletonList(two), log.load("b.com"));
+    assertTrue(new File(dir, "a.com").exists());
+    assertTrue(new File(dir, "b.com").exists());
+
+    log.remove("a.com");
+    log.close();
+    log=new LogMemorizationPersistence(dir, PASSWORD, type);
+
+    assertEquals(Collections.singletonList(two), log.load("b.com"));
+    assertEquals(Collections.singletonList("b.com"), log.getHosts());
+    assertEquals(2, log.deleteLegacyFiles());
+    assertFalse(new File(dir, "a.com").exists());
+    assertFalse(new File(dir, "b.com").exists());
+    assertEquals(Collections.singletonList(two), log.load("b.com"));
+    log.close();
+  }
+}
@@ -0,0 +1,76 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import com.commonsware.cwac.netsecurity.config.Pin;
+import com.commonsware.cwac.netsecurity.config.PinSet;
+import com.commonsware.cwac.netsecurity.config.SpkiDigestCache;
+import org.junit.Test;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashSet;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpkiDigestCacheTests {
+  @Test
+  public void _digests() throws Exception {
+    SpkiDigestCache cache=new SpkiDigestCache();
+    X509Certificate one=TestCertificates.parse(TestCertificates.ONE);
+    X509Certificate two=TestCertificates.parse(TestCertificates.TWO);
+    byte[] sha256=cache.get(one, "SHA-256");
+
+    assertArrayEquals(digest("SHA-256", one), sha256);
+    assertSame(sha256, cache.get(one, "SHA-256"));
+    assertArrayEquals(digest("SHA-1", one), cache.get(one, "SHA-1"));
+    assertSame(sha256, cache.get(one, "SHA-256"));
+    assertArrayEquals(digest("SHA-256", two), cache.get(two, "SHA-256"));
+  }
+
+  @Test
+  public void _unknownAlgorithm() throws Exception {
+    X509Certificate one=TestCertificates.parse(TestCertificates.ONE);
+
+    try {
+      new SpkiDigestCache().get(one, "NOT-A-DIGEST");
+      fail("Expected RuntimeException");
+    }
+    catch (RuntimeException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void _pinSetContains() throws Exception {
+    X509Certificate one=TestCertificates.parse(TestCertificates.ONE);
+    X509Certificate two=TestCertificates.parse(TestCertificates.TWO);
+    PinSet pins=new PinSet(new HashSet<>(Arrays.asList(
+      new Pin("SHA-256", digest("SHA-256", one)))), Long.MAX_VALUE);
+
+    assertTrue(pins.contains("SHA-256", digest("SHA-256", one)));
+    assertFalse(pins.contains("SHA-1", digest("SHA-256", one)));
+    assertFalse(pins.contains("SHA-256", digest("SHA-256", two)));
+  }
+
+  private static byte[] digest(String algorithm, X509Certificate cert)
+    throws Exception {
+    return(MessageDigest.getInstance(algorithm)
+      .digest(cert.getPublicKey().getEncoded()));
+  }
+}
@@ -0,0 +1,58 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+/**
+ * Self-signed certificates for JVM tests that need real X.509 data.
+ */
+class TestCertificates {
+  static final String ONE=
+    "-----BEGIN CERTIFICATE-----\n"+
+    "MIIBizCCATGgAwIBAgIUUf3xp1bXXsQT8PMx2CCctxEZ46MwCgYIKoZIzj0EAwIw\n"+
+    "GjEYMBYGA1UEAwwPb25lLmV4YW1wbGUuY29tMCAXDTI2MTAxODA4NTkwNVoYDzIx\n"+
+    "MjYwOTI0MDg1OTA1WjAaMRgwFgYDVQQDDA9vbmUuZXhhbXBsZS5jb20wWTATBgcq\n"+
+    "hkjOPQIBBggqhkjOPQMBBwNCAASLimo4lfK3BmEWPzmBZuWrGfr05/u/WT7eImwW\n"+
+    "dXg9tkbgQiGSECE5typpLSSPerBSUDEJ2vC9r/VxlMTVAFu7o1MwUTAdBgNVHQ4E\n"+
+    "FgQUEM7/OzaxpGRzXe86pugna+KZ8PowHwYDVR0jBBgwFoAUEM7/OzaxpGRzXe86\n"+
+    "pugna+KZ8PowDwYDVR0TAQH/BAUwAwEB/zAKBggqhkjOPQQDAgNIADBFAiEAzsoM\n"+
+    "i36v2eq2sU/sLkinSKbys3JINNuEA5a/tZCyh/cCIBAZaASMw/WQUho42g2P3Deh\n"+
+    "UjkYFLD1UarJAS8M2GKo\n"+
+    "-----END CERTIFICATE-----\n";
+
+  static final String TWO=
+    "-----BEGIN CERTIFICATE-----\n"+
+    "MIIBijCCATGgAwIBAgIUOPy9aIom5NUbvGsgD/WyGOWzBhEwCgYIKoZIzj0EAwIw\n"+
+    "GjEYMBYGA1UEAwwPdHdvLmV4YW1wbGUuY29tMCAXDTI2MTAxODA4NTkwNVoYDzIx\n"+
+    "MjYwOTI0MDg1OTA1WjAaMRgwFgYDVQQDDA90d28uZXhhbXBsZS5jb20wWTATBgcq\n"+
+    "hkjOPQIBBggqhkjOPQMBBwNCAAS8lzrsNXTWrRqa2Y28YWCM8dKAMLwa5PEpuPMJ\n"+
+    "Z6c3HVPMY8bwQ74f+gpvXfr1ktxhqaEsi8qJE25JxlQ6gHuAo1MwUTAdBgNVHQ4E\n"+
+    "FgQUbUIOPvd1KYdbu/YrVVER02owPpowHwYDVR0jBBgwFoAUbUIOPvd1KYdbu/Yr\n"+
+    "VVER02owPpowDwYDVR0TAQH/BAUwAwEB/zAKBggqhkjOPQQDAgNHADBEAiBw1toq\n"+
+    "ZvUA+A4kz++vbSdUMatG2soAuErBLTdcmiVy8gIgfxccUWnHWL5iG3ZyaGHmECPC\n"+
+    "m3+sBQ7EXpsJbNqt9A4=\n"+
+    "-----END CERTIFICATE-----\n";
+
+  static X509Certificate parse(String pem) throws Exception {
+    CertificateFactory cf=CertificateFactory.getInstance("X.509");
+
+    return((X509Certificate)cf.generateCertificate(
+      new ByteArrayInputStream(pem.getBytes(Charset.forName("US-ASCII")))));
+  }
+}
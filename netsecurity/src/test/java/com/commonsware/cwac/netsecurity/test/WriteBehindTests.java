@@ -0,0 +1,196 @@
+/***
+ Copyright (c) 2017 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.netsecurity.test;
+
+import com.commonsware.cwac.netsecurity.LogMemorizationPersistence;
+import com.commonsware.cwac.netsecurity.MemorizationPersistence;
+import com.commonsware.cwac.netsecurity.WriteBehindMemorizationPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.File;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteBehindTests {
+  private File dir;
+  private X509Certificate one;
+  private X509Certificate two;
+  private final List<Runnable> queued=new ArrayList<>();
+  private final Executor executor=new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      queued.add(command);
+    }
+  };
+
+  @Before
+  public void setUp() throws Exception {
+    dir=File.createTempFile("writebehind", "");
+    dir.delete();
+    dir.mkdirs();
+    one=TestCertificates.parse(TestCertificates.ONE);
+    two=TestCertificates.parse(TestCertificates.TWO);
+  }
+
+  @After
+  public void tearDown() {
+    File[] files=dir.listFiles();
+
+    if (files!=null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+
+    dir.delete();
+  }
+
+  @Test
+  public void _coalescing() throws Exception {
+    LogMemorizationPersistence log=new LogMemorizationPersistence(dir);
+    WriteBehindMemorizationPersistence writeBehind=
+      new WriteBehindMemorizationPersistence(log, executor);
+
+    log.save("c.com", Collections.singletonList(one));
+    writeBehind.save("a.com", Collections.singletonList(one));
+    writeBehind.save("b.com", Collections.singletonList(two));
+    writeBehind.save("a.com", Arrays.asList(one, two));
+    writeBehind.remove("c.com");
+
+    assertEquals(1, queued.size());
+    assertTrue(writeBehind.hasPendingWrites());
+
+    // visible right away, but not yet written
+
+    assertEquals(Arrays.asList(one, two), writeBehind.load("a.com"));
+    assertTrue(writeBehind.load("c.com").isEmpty());
+    assertEquals(Arrays.asList("a.com", "b.com"), writeBehind.getHosts());
+    assertTrue(log.load("a.com").isEmpty());
+    assertEquals(Collections.singletonList(one), log.load("c.com"));
+
+    queued.remove(0).run();
+
+    assertFalse(writeBehind.hasPendingWrites());
+    assertEquals(Arrays.asList(one, two), log.load("a.com"));
+    assertEquals(Collections.singletonList(two), log.load("b.com"));
+    assertTrue(log.load("c.com").isEmpty());
+
+    writeBehind.save("b.com", Collections.singletonList(one));
+    assertEquals(1, queued.size());
+    log.close();
+  }
+
+  @Test
+  public void _flush() throws Exception {
+    LogMemorizationPersistence log=new LogMemorizationPersistence(dir);
+    WriteBehindMemorizationPersistence writeBehind=
+      new WriteBehindMemorizationPersistence(log, executor);
+
+    writeBehind.save("a.com", Collections.singletonList(one));
+    writeBehind.flush();
+    log.close();
+
+    assertFalse(writeBehind.hasPendingWrites());
+    assertEquals(Collections.singletonList(one),
+      new LogMemorizationPersistence(dir).load("a.com"));
+
+    // the queued write has nothing left to do
+    queued.remove(0).run();
+  }
+
+  @Test
+  public void _failedWrite() throws Exception {
+    final LogMemorizationPersistence log=new LogMemorizationPersistence(dir);
+    final boolean[] failing={true};
+    MemorizationPersistence flaky=new MemorizationPersistence() {
+      @Override
+      public List<String> getHosts() throws IOException {
+        return(log.getHosts());
+      }
+
+      @Override
+      public List<X509Certificate> load(String host) throws IOException {
+        return(log.load(host));
+      }
+
+      @Override
+      public long getSavedAt(String host) throws IOException {
+        return(log.getSavedAt(host));
+      }
+
+      @Override
+      public void save(String host, List<X509Certificate> certs)
+        throws IOException {
+        if (failing[0]) {
+          throw new IOException("disk full");
+        }
+
+        log.save(host, certs);
+      }
+
+      @Override
+      public void remove(String host) throws IOException {
+        log.remove(host);
+      }
+
+      @Override
+      public void flush() throws IOException {
+        log.flush();
+      }
+
+      @Override
+      public long compact() throws IOException {
+        return(log.compact());
+      }
+    };
+    WriteBehindMemorizationPersistence writeBehind=
+      new WriteBehindMemorizationPersistence(flaky, executor);
+
+    writeBehind.save("a.com", Collections.singletonList(one));
+
+    // flush() rather than the queued writer, which logs its failures
+    // through android.util.Log
+    try {
+      writeBehind.flush();
+      fail("Expected IOException");
+    }
+    catch (IOException e) {
+      // expected
+    }
+
+    assertTrue(writeBehind.hasPendingWrites());
+    assertEquals(Collections.singletonList(one), writeBehind.load("a.com"));
+
+    failing[0]=false;
+    writeBehind.flush();
+
+    assertFalse(writeBehind.hasPendingWrites());
+    assertEquals(Collections.singletonList(one), log.load("a.com"));
+    log.close();
+
+    // the queued write has nothing left to do, so it cannot fail
+    queued.remove(0).run();
+  }
+}